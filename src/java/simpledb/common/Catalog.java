@@ -165,6 +165,9 @@ public class Catalog {
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line describes one table as <code>name (field type, field type, ...)</code>,
+     * optionally followed by <code>mmap</code> to read the table's pages
+     * through a memory mapping of its file.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -202,10 +205,18 @@ public class Catalog {
                         }
                     }
                 }
+                boolean mmap = false;
+                String option = line.substring(line.indexOf(")") + 1).trim();
+                if (option.equalsIgnoreCase("mmap"))
+                    mmap = true;
+                else if (!option.isEmpty()) {
+                    System.out.println("Unknown table option " + option);
+                    System.exit(0);
+                }
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t, mmap);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -62,6 +62,7 @@ public class Database {
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
+            _instance.get()._bufferpool.stopBackgroundWriter();
             bufferPoolF.set(_instance.get(), new BufferPool(pages));
         } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
             e.printStackTrace();
@@ -70,6 +71,24 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /**
+     * Method used for testing -- install the given buffer pool and return it
+     */
+    public static BufferPool resetBufferPool(BufferPool pool) {
+        java.lang.reflect.Field bufferPoolF=null;
+        try {
+            bufferPoolF = Database.class.getDeclaredField("_bufferpool");
+            bufferPoolF.setAccessible(true);
+            if (_instance.get()._bufferpool != pool) {
+                _instance.get()._bufferpool.stopBackgroundWriter();
+            }
+            bufferPoolF.set(_instance.get(), pool);
+        } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
+            e.printStackTrace();
+        }
+        return _instance.get()._bufferpool;
+    }
+
     // reset the database, used for unit tests only.
     public static void reset() {
         _instance.set(new Database());
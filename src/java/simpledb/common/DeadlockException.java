@@ -1,9 +1,10 @@
 package simpledb.common;
 
-import java.lang.Exception;
+import simpledb.transaction.TransactionAbortedException;
 
-/** Exception that is thrown when a deadlock occurs. */
-public class DeadlockException extends Exception {
+/** Exception that is thrown when a transaction is aborted to break a
+    deadlock. */
+public class DeadlockException extends TransactionAbortedException {
     private static final long serialVersionUID = 1L;
 
     public DeadlockException() {
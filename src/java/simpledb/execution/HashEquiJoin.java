@@ -1,7 +1,12 @@
 package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -9,6 +14,15 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin builds a hash table over child1 and probes it with child2.
+ * When child1 is larger than the memory budget, both children are split
+ * into partitions by the hash of the join field, spilled to temporary
+ * files, and joined partition by partition, so that each child is read
+ * once however large it is.
+ * <p>
+ * Int join fields are hashed unboxed, in an {@link IntHashTable} that maps
+ * every key to a chain of rows of the build side.
  */
 public class HashEquiJoin extends Operator {
 
@@ -31,10 +45,29 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Constructor with a memory budget. If child1 does not fit in it, both
+     * children are partitioned into temporary files first, and the
+     * partitions are joined one by one (a Grace hash join).
+     *
+     * @param memoryPages
+     *            the number of pages of memory the join may use for its hash
+     *            table; fewer are used if the buffer pool grants less memory
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryPages) {
+        if (memoryPages < 1) {
+            throw new IllegalArgumentException("invalid memory budget: " + memoryPages);
+        }
+        this.memoryPages = memoryPages;
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        intKeys = child1.getTupleDesc().getFieldType(p.getField1()) == Type.INT_TYPE
+                && child2.getTupleDesc().getFieldType(p.getField2()) == Type.INT_TYPE;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -55,28 +88,291 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
+    /** Memory budget of a join, in pages, if none is given to the constructor */
+    public static final int DEFAULT_MEMORY_PAGES = 256;
+
+    /**
+     * Upper bound on the number of partitions an input is split into at a
+     * time, to keep the number of open files low; a partition that is still
+     * too large is split again.
+     */
+    public static final int MAX_PARTITIONS = 64;
+
+    /** Times a partition is split again before it is joined in memory anyway */
+    private static final int MAX_PARTITION_LEVELS = 3;
+
+    /** A partition of each input; tuples that join are in the same pair. */
+    private static class Partition {
+        final SpillFile build;
+        final SpillFile probe;
+        final int level;
+
+        Partition(SpillFile build, SpillFile probe, int level) {
+            this.build = build;
+            this.probe = probe;
+            this.level = level;
+        }
+
+        void delete() {
+            build.delete();
+            probe.delete();
+        }
+    }
+
+    private final int memoryPages;
+
+    /** Pages granted by the buffer pool while open */
+    private transient int grantedPages;
+
+    /** True if both join fields are ints, which are hashed unboxed */
+    private final boolean intKeys;
+
+    /** The hash table over the build side, unless intKeys */
     final Map<Object, List<Tuple>> map = new HashMap<>();
-    public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
+    /** The build side if intKeys: its tuples, the first row of every key,
+        and for every row the next row with the same key, or NOT_FOUND */
+    private final List<Tuple> rows = new ArrayList<>();
+    private final IntHashTable firstRows = new IntHashTable();
+    private int[] nextRows = new int[64];
+
+    /** Partitions of the inputs if child1 did not fit in memory, else null */
+    private List<Partition> partitions;
+    /** Partitions left to join; those split from others are deleted once joined */
+    private final Deque<Partition> pending = new ArrayDeque<>();
+    /** Partition being joined, and the reader of its probe side */
+    private Partition current;
+    private SpillFile.Reader probe;
+
+    private long memoryBytes() {
+        return (long) grantedPages * BufferPool.getPageSize();
+    }
+
+    private int numPartitions() {
+        return Math.max(2, Math.min(grantedPages - 1, MAX_PARTITIONS));
+    }
+
+    /** @return the partition of the key at a level, a different hash for every level */
+    private int partitionOf(Field key, int level) {
+        int h = key.hashCode() ^ (level * 0x9E3779B9);
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return Math.floorMod(h, numPartitions());
+    }
+
+    private List<Partition> newPartitions(int level) throws DbException {
+        List<Partition> parts = new ArrayList<>();
+        for (int i = 0; i < numPartitions(); i++) {
+            parts.add(new Partition(new SpillFile(child1.getTupleDesc()),
+                    new SpillFile(child2.getTupleDesc()), level));
+        }
+        return parts;
+    }
+
+    private void addBuild(List<Partition> parts, Tuple t, int level) throws DbException {
+        parts.get(partitionOf(t.getField(pred.getField1()), level)).build.add(t);
+    }
+
+    private void addProbe(List<Partition> parts, Tuple t, int level) throws DbException {
+        parts.get(partitionOf(t.getField(pred.getField2()), level)).probe.add(t);
+    }
+
+    private static void finishBuild(List<Partition> parts) throws DbException {
+        for (Partition part : parts) {
+            part.build.finish();
+        }
+    }
+
+    private static void finishProbe(List<Partition> parts) throws DbException {
+        for (Partition part : parts) {
+            part.probe.finish();
+        }
+    }
+
+    private void addToMap(Tuple t) {
+        if (!intKeys) {
+            map.computeIfAbsent(t.getField(pred.getField1()), k -> new ArrayList<>()).add(t);
+            return;
+        }
+        int row = rows.size();
+        rows.add(t);
+        if (row == nextRows.length) {
+            nextRows = Arrays.copyOf(nextRows, row * 2);
+        }
+        nextRows[row] = firstRows.put(((IntField) t.getField(pred.getField1())).getValue(), row);
+    }
+
+    private void clearMap() {
         map.clear();
+        rows.clear();
+        firstRows.clear();
+    }
+
+    /** @return the tuples of the hash table */
+    private Collection<Tuple> mapTuples() {
+        if (intKeys) {
+            return rows;
+        }
+        List<Tuple> tuples = new ArrayList<>();
+        for (List<Tuple> list : map.values()) {
+            tuples.addAll(list);
+        }
+        return tuples;
+    }
+
+    /** Start iterating over the build tuples that join with t2. */
+    private void findMatches() {
+        if (intKeys) {
+            nextMatch = firstRows.get(((IntField) t2.getField(pred.getField2())).getValue());
+        } else {
+            List<Tuple> l = map.get(t2.getField(pred.getField2()));
+            listIt = l == null ? null : l.iterator();
+        }
+    }
+
+    /** @return the next build tuple that joins with t2, or null */
+    private Tuple nextMatch() {
+        if (intKeys) {
+            if (nextMatch == IntHashTable.NOT_FOUND) {
+                return null;
+            }
+            Tuple t = rows.get(nextMatch);
+            nextMatch = nextRows[nextMatch];
+            return t;
+        }
+        return listIt != null && listIt.hasNext() ? listIt.next() : null;
+    }
+
+    /**
+     * Build the hash table over child1, or, if child1 does not fit in the
+     * memory budget, partition both children into spill files by the hash
+     * of the join field, so that every pair of partitions can be joined in
+     * memory. Each child is read once, and each spill file written once.
+     */
+    private void build() throws DbException, TransactionAbortedException {
+        clearMap();
+        long bytes = 0;
+        int tupleSize = child1.getTupleDesc().getSize();
         while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            Tuple t = child1.next();
+            if (partitions == null && bytes + tupleSize > memoryBytes()) {
+                partitions = newPartitions(0);
+                for (Tuple inMemory : mapTuples()) {
+                    addBuild(partitions, inMemory, 0);
+                }
+                clearMap();
+            }
+            if (partitions == null) {
+                addToMap(t);
+                bytes += tupleSize;
+            } else {
+                addBuild(partitions, t, 0);
+            }
+        }
+        if (partitions != null) {
+            finishBuild(partitions);
+            while (child2.hasNext()) {
+                addProbe(partitions, child2.next(), 0);
+            }
+            finishProbe(partitions);
+            pending.addAll(partitions);
         }
-        return cnt > 0;
+    }
 
+    /** @return the next tuple of child2, or of the probe side of the partitions */
+    private Tuple nextProbe() throws DbException, TransactionAbortedException {
+        if (partitions == null) {
+            return child2.hasNext() ? child2.next() : null;
+        }
+        while (true) {
+            if (probe != null) {
+                Tuple t = probe.next();
+                if (t != null) {
+                    return t;
+                }
+                endPartition();
+            }
+            current = pending.poll();
+            if (current == null) {
+                return null;
+            }
+            if (loadPartition()) {
+                probe = current.probe.read();
+            } else {
+                endPartition();
+            }
+        }
+    }
+
+    /**
+     * Load the build side of the current partition into the hash table.
+     * A partition too large for the memory budget is split again instead.
+     *
+     * @return false if there is nothing to probe the partition with
+     */
+    private boolean loadPartition() throws DbException {
+        clearMap();
+        if (current.build.size() == 0 || current.probe.size() == 0) {
+            return false;
+        }
+        if (current.build.bytes() > memoryBytes() && current.level < MAX_PARTITION_LEVELS) {
+            int level = current.level + 1;
+            List<Partition> parts = newPartitions(level);
+            try (SpillFile.Reader in = current.build.read()) {
+                for (Tuple t = in.next(); t != null; t = in.next()) {
+                    addBuild(parts, t, level);
+                }
+            }
+            finishBuild(parts);
+            try (SpillFile.Reader in = current.probe.read()) {
+                for (Tuple t = in.next(); t != null; t = in.next()) {
+                    addProbe(parts, t, level);
+                }
+            }
+            finishProbe(parts);
+            for (int i = parts.size() - 1; i >= 0; i--) {
+                pending.addFirst(parts.get(i));
+            }
+            return false;
+        }
+        try (SpillFile.Reader in = current.build.read()) {
+            for (Tuple t = in.next(); t != null; t = in.next()) {
+                addToMap(t);
+            }
+        }
+        return true;
+    }
+
+    /** Done with the current partition; delete it if it was split from another. */
+    private void endPartition() {
+        if (probe != null) {
+            probe.close();
+            probe = null;
+        }
+        if (current != null && current.level > 0) {
+            current.delete();
+        }
+        current = null;
+    }
+
+    /** Delete the partitions split from others that are left to join. */
+    private void clearPending() {
+        endPartition();
+        for (Partition part : pending) {
+            if (part.level > 0) {
+                part.delete();
+            }
+        }
+        pending.clear();
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        grantedPages = Database.getBufferPool().grantMemory(memoryPages);
+        build();
         super.open();
     }
 
@@ -87,15 +383,37 @@ public class HashEquiJoin extends Operator {
         this.t1=null;
         this.t2=null;
         this.listIt=null;
-        this.map.clear();
+        this.nextMatch=IntHashTable.NOT_FOUND;
+        clearMap();
+        clearPending();
+        if (partitions != null) {
+            for (Partition part : partitions) {
+                part.delete();
+            }
+            partitions = null;
+        }
+        if (grantedPages > 0) {
+            Database.getBufferPool().releaseMemory(grantedPages);
+            grantedPages = 0;
+        }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        child1.rewind();
-        child2.rewind();
+        listIt = null;
+        nextMatch = IntHashTable.NOT_FOUND;
+        if (partitions == null) {
+            child2.rewind();
+        } else {
+            // the spilled partitions are kept until close
+            clearPending();
+            clearMap();
+            pending.addAll(partitions);
+        }
     }
 
     transient Iterator<Tuple> listIt = null;
+    /** The next row of the build side that joins with t2, if intKeys */
+    transient private int nextMatch = IntHashTable.NOT_FOUND;
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -116,8 +434,6 @@ public class HashEquiJoin extends Operator {
      * @see JoinPredicate#filter
      */
     private Tuple processList() {
-        t1 = listIt.next();
-
         int td1n = t1.getTupleDesc().numFields();
         int td2n = t2.getTupleDesc().numFields();
 
@@ -132,32 +448,16 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
+        // loop around the probe side
+        while ((t1 = nextMatch()) == null) {
+            if ((t2 = nextProbe()) == null) {
+                return null;
+            }
+            findMatches();
         }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
-
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
-        }
-
-        return null;
+        // match: create a combined tuple and fill it with the values
+        // from both tuples
+        return processList();
     }
 
     @Override
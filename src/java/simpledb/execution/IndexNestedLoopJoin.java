@@ -0,0 +1,192 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * The IndexNestedLoopJoin operator joins child1 with a table that is a
+ * B+ tree keyed on its join field. Instead of scanning the table, it looks
+ * up the tuples that join with every tuple of child1 in the B+ tree, so
+ * that a join of a few tuples with a large table reads a few pages of it.
+ * <p>
+ * The table is given as the SeqScan that would otherwise read it. The scan
+ * is never opened; it names the table, its alias and the transaction.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private OpIterator child1;
+    private SeqScan child2;
+    private BTreeFile index;
+    private TupleDesc comboTD;
+
+    /** The tuple of child1 being joined, and the tuples of the table that join with it */
+    private transient Tuple t1;
+    private transient DbFileIterator matches;
+
+    /**
+     * Constructor. Accepts the outer child and the scan of the indexed table
+     * to join, and the predicate to join them on
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator
+     *            must be one that {@link #supports}
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            The scan of the right(inner) relation, which must be a
+     *            BTreeFile keyed on the join field
+     * @throws IllegalArgumentException if the join cannot probe child2
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, SeqScan child2) {
+        if (!supports(p.getOperator()) || !canProbe(child2, p.getField2())) {
+            throw new IllegalArgumentException("cannot probe " + child2.getTableName()
+                    + " on field " + p.getField2() + " with " + p.getOperator());
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.index = (BTreeFile) Database.getCatalog().getDatabaseFile(child2.getTableId());
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return true if an index join can evaluate a join predicate with this
+     *         operator: equality, or a range comparison
+     */
+    public static boolean supports(Predicate.Op op) {
+        return SortMergeJoin.supports(op);
+    }
+
+    /**
+     * @return true if it is a SeqScan of a B+ tree keyed on field, which an
+     *         index join can probe instead of scanning
+     */
+    public static boolean canProbe(OpIterator it, int field) {
+        if (!(it instanceof SeqScan)) {
+            return false;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) it).getTableId());
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    /**
+     * @return the operator to look up the keys of the table with, for the
+     *         join field of a tuple of child1: op with its operands swapped
+     */
+    private static Predicate.Op probeOp(Predicate.Op op) {
+        switch (op) {
+            case LESS_THAN:
+                return Predicate.Op.GREATER_THAN;
+            case LESS_THAN_OR_EQ:
+                return Predicate.Op.GREATER_THAN_OR_EQ;
+            case GREATER_THAN:
+                return Predicate.Op.LESS_THAN;
+            case GREATER_THAN_OR_EQ:
+                return Predicate.Op.LESS_THAN_OR_EQ;
+            default:
+                return op;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        endProbe();
+        child1.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        endProbe();
+        child1.rewind();
+    }
+
+    private void endProbe() {
+        if (matches != null) {
+            matches.close();
+            matches = null;
+        }
+        t1 = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The tuples of the table that join with a tuple of child1
+     * are looked up with {@link BTreeFile#indexIterator}.
+     * <p>
+     * Note that the tuples returned are the concatenation of joining tuples
+     * from the left and right relation, as in {@link Join}.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (matches == null || !matches.hasNext()) {
+            endProbe();
+            if (!child1.hasNext()) {
+                return null;
+            }
+            t1 = child1.next();
+            IndexPredicate ipred = new IndexPredicate(probeOp(pred.getOperator()),
+                    t1.getField(pred.getField1()));
+            matches = index.indexIterator(child2.getTransactionId(), ipred);
+            matches.open();
+        }
+        Tuple t2 = matches.next();
+        int td1n = t1.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++) {
+            t.setField(i, t1.getField(i));
+        }
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++) {
+            t.setField(td1n + i, t2.getField(i));
+        }
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        if (!canProbe(children[1], pred.getField2())) {
+            throw new IllegalArgumentException("cannot probe " + children[1]);
+        }
+        this.child1 = children[0];
+        this.child2 = (SeqScan) children[1];
+        this.index = (BTreeFile) Database.getCatalog().getDatabaseFile(child2.getTableId());
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+}
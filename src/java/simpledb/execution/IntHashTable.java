@@ -0,0 +1,114 @@
+package simpledb.execution;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A hash table from int keys to non-negative int values, such as row or
+ * group numbers, for operators on int columns. Keys and values live in two
+ * flat arrays with open addressing and linear probing, so neither lookups
+ * nor inserts allocate, unlike a HashMap over IntFields.
+ */
+class IntHashTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Returned by {@link #get} for keys that are not in the table */
+    static final int NOT_FOUND = -1;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] keys;
+    /** values[i] is NOT_FOUND for empty slots */
+    private int[] values;
+    private int size;
+    private int mask;
+
+    IntHashTable() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    /** @param expectedSize the number of keys to make room for up front */
+    IntHashTable(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2L) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, NOT_FOUND);
+        mask = capacity - 1;
+    }
+
+    private int slotOf(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /** @return the value of key, or NOT_FOUND */
+    int get(int key) {
+        for (int i = slotOf(key); values[i] != NOT_FOUND; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Map key to value.
+     *
+     * @param value a non-negative value
+     * @return the value key had before, or NOT_FOUND
+     */
+    int put(int key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("negative value: " + value);
+        }
+        int i = slotOf(key);
+        for (; values[i] != NOT_FOUND; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                int old = values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        // keep the table at most half full, so that probe sequences stay short
+        if (++size * 2 > values.length) {
+            grow();
+        }
+        return NOT_FOUND;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(oldValues.length * 2);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != NOT_FOUND) {
+                int j = slotOf(oldKeys[i]);
+                while (values[j] != NOT_FOUND) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    /** @return the number of keys in the table */
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(values, NOT_FOUND);
+        size = 0;
+    }
+}
@@ -1,17 +1,20 @@
 package simpledb.execution;
 
-import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
-import simpledb.transaction.TransactionAbortedException;
+import simpledb.storage.TupleIterator;
 
 import java.util.*;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * Groups are numbered, and the aggregate state of each lives in flat int
+ * arrays. Int group-by values find their group through an
+ * {@link IntHashTable}, without boxing.
  */
 public class IntegerAggregator implements Aggregator {
 
@@ -25,11 +28,23 @@ public class IntegerAggregator implements Aggregator {
 
     private Op what;
 
-    private Map<Field, Integer> groupMap;
+    /**
+     * Group number of every int group-by value. Groups are numbered in the
+     * order they first appear.
+     */
+    private final IntHashTable intGroups = new IntHashTable();
+
+    /** Group number of every other group-by value, or of null without grouping */
+    private final Map<Field, Integer> groups = new HashMap<>();
 
-    private Map<Field, Integer> countMap;
+    /** The group-by value of every group */
+    private final List<Field> groupFields = new ArrayList<>();
 
-    private Map<Field, List<Integer>> avgMap;
+    /** Per group: the minimum, maximum or sum of its values */
+    private int[] values = new int[16];
+
+    /** Per group: the number of its values */
+    private int[] counts = new int[16];
 
     /**
      * Aggregate constructor
@@ -52,10 +67,40 @@ public class IntegerAggregator implements Aggregator {
         this.gbfieldtype = gbfieldtype;
         this.afieldNum = afield;
         this.what = what;
+    }
 
-        this.groupMap = new HashMap<>();
-        this.countMap = new HashMap<>();
-        this.avgMap = new HashMap<>();
+    /** @return the number of tup's group, adding the group if it is new */
+    private int groupOf(Tuple tup) {
+        Field gbfield = this.gbfieldNum == NO_GROUPING ? null : tup.getField(gbfieldNum);
+        if (gbfield != null && gbfield.getType() != this.gbfieldtype) {
+            throw new IllegalArgumentException("Given tuple has wrong type");
+        }
+        if (gbfield != null && gbfieldtype == Type.INT_TYPE) {
+            // hash the int itself rather than the field object
+            int key = ((IntField) gbfield).getValue();
+            int group = intGroups.get(key);
+            if (group == IntHashTable.NOT_FOUND) {
+                group = newGroup(gbfield);
+                intGroups.put(key, group);
+            }
+            return group;
+        }
+        Integer group = groups.get(gbfield);
+        if (group == null) {
+            group = newGroup(gbfield);
+            groups.put(gbfield, group);
+        }
+        return group;
+    }
+
+    private int newGroup(Field gbfield) {
+        int group = groupFields.size();
+        groupFields.add(gbfield);
+        if (group == values.length) {
+            values = Arrays.copyOf(values, group * 2);
+            counts = Arrays.copyOf(counts, group * 2);
+        }
+        return group;
     }
 
     /**
@@ -67,59 +112,67 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        IntField afield = (IntField) tup.getField(afieldNum);
-        Field gbfield = this.gbfieldNum == NO_GROUPING ? null : tup.getField(gbfieldNum);
-        int val = afield.getValue();
-        if (gbfield != null && gbfield.getType() != this.gbfieldtype) {
-            throw new IllegalArgumentException("Given tuple has wrong type");
-        }
-        // Ops
         switch (this.what) {
             case MIN:
-                if(!this.groupMap.containsKey(gbfield)) {
-                    this.groupMap.put(gbfield, val);
-                } else {
-                    this.groupMap.put(gbfield, Math.min(val, this.groupMap.get(gbfield)));
-                }
-                break;
             case MAX:
-                if(!this.groupMap.containsKey(gbfield)) {
-                    this.groupMap.put(gbfield, val);
-                } else {
-                    this.groupMap.put(gbfield, Math.max(val, this.groupMap.get(gbfield)));
-                }
-                break;
             case SUM:
-                if(!this.groupMap.containsKey(gbfield)) {
-                    this.groupMap.put(gbfield, val);
-                } else {
-                    this.groupMap.put(gbfield, this.groupMap.get(gbfield) + val);
-                }
-                break;
             case COUNT:
-                if(!this.groupMap.containsKey(gbfield)) {
-                    this.groupMap.put(gbfield, 1);
-                } else {
-                    this.groupMap.put(gbfield, this.groupMap.get(gbfield) + 1);
-                }
-                break;
             case AVG:
-                if(!this.avgMap.containsKey(gbfield)) {
-                    List<Integer> l = new ArrayList<>();
-                    l.add(val);
-                    avgMap.put(gbfield, l);
-                } else {
-                    List<Integer> l = avgMap.get(gbfield);
-                    l.add(val);
-                }
                 break;
             case SC_AVG:
             case SUM_COUNT:
             default:
                 throw new IllegalArgumentException("Aggregate not supported");
         }
+        int group = groupOf(tup);
+        int val = ((IntField) tup.getField(afieldNum)).getValue();
+        boolean first = counts[group] == 0;
+        // Ops
+        switch (this.what) {
+            case MIN:
+                values[group] = first ? val : Math.min(val, values[group]);
+                break;
+            case MAX:
+                values[group] = first ? val : Math.max(val, values[group]);
+                break;
+            case SUM:
+            case AVG:
+                values[group] += val;
+                break;
+            default:
+                break;
+        }
+        counts[group]++;
     }
 
+    /** @return the result tuples, one per group */
+    private List<Tuple> results(TupleDesc td) {
+        List<Tuple> tuples = new ArrayList<>(groupFields.size());
+        for (int group = 0; group < groupFields.size(); group++) {
+            int value;
+            switch (this.what) {
+                case COUNT:
+                    value = counts[group];
+                    break;
+                case AVG:
+                    value = values[group] / counts[group];
+                    break;
+                default:
+                    value = values[group];
+                    break;
+            }
+            Tuple tuple = new Tuple(td);
+            Field gbfield = groupFields.get(group);
+            if (gbfield == null) {
+                tuple.setField(0, new IntField(value));
+            } else {
+                tuple.setField(0, gbfield);
+                tuple.setField(1, new IntField(value));
+            }
+            tuples.add(tuple);
+        }
+        return tuples;
+    }
 
     /**
      * Create a OpIterator over group aggregate results.
@@ -131,100 +184,11 @@ public class IntegerAggregator implements Aggregator {
      */
     public OpIterator iterator() {
         // some code goes here
-        return new IntAggIterator(groupMap, gbfieldtype);
-    }
-
-    private class IntAggIterator extends AggregateIterator {
-        private Iterator<Map.Entry<Field, List<Integer>>> avgIterator;
-        private boolean isAvg;
-        private boolean isSCAvg;
-        private boolean isSumCount;
-
-        public IntAggIterator(Map<Field, Integer> groupMap, Type gbFieldType) {
-            super(groupMap, gbFieldType);
-            this.isAvg = what.equals(Op.AVG);
-            this.isSCAvg = what.equals(Op.SC_AVG);
-            this.isSumCount = what.equals(Op.SUM_COUNT);
-            //SumCount 多一个字段
-            if(isSumCount) {
-                this.td = new TupleDesc(new Type[]{this.gbFieldType, Type.INT_TYPE, Type.INT_TYPE},
-                        new String[]{"groupVal", "sumVal", "countVal"});
-            }
-        }
-
-        @Override
-        public void open() throws DbException, TransactionAbortedException {
-            super.open();
-            if(this.isAvg || this.isSumCount) {
-                this.avgIterator = avgMap.entrySet().iterator();
-            } else {
-                this.avgIterator = null;
-            }
-        }
-
-        @Override
-        public boolean hasNext() throws DbException, TransactionAbortedException {
-            if(this.isAvg || this.isSumCount) {
-                return avgIterator.hasNext();
-            } else {
-                return super.it.hasNext();
-            }
-        }
-
-        @Override
-        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-            Tuple tuple = new Tuple(super.td);
-            if(this.isAvg || this.isSumCount) {
-                Map.Entry<Field, List<Integer>> avgOrSumCountEntry = this.avgIterator.next();
-                Field avgOrSumCountField = avgOrSumCountEntry.getKey();
-                List<Integer> avgOrSumCountList = avgOrSumCountEntry.getValue();
-                if (this.isAvg) {
-                    int value = this.listSum(avgOrSumCountList) / avgOrSumCountList.size();
-                    setFields(tuple, value, avgOrSumCountField);
-                    return tuple;
-                } else {
-                    setFields(tuple, listSum(avgOrSumCountList), avgOrSumCountField);
-                    if(avgOrSumCountField == null) {
-                        tuple.setField(1, new IntField(avgOrSumCountList.size()));
-                    } else {
-                        tuple.setField(2, new IntField(avgOrSumCountList.size()));
-                    }
-                    return tuple;
-                }
-            } else if(this.isSCAvg) {
-                Map.Entry<Field, Integer> entry = it.next();
-                Field f = entry.getKey();
-                setFields(tuple, entry.getValue() / countMap.size(), f);
-            }
-            return super.next();
-        }
-
-        @Override
-        public void rewind() throws DbException, TransactionAbortedException {
-            super.rewind();
-            if(this.isAvg || this.isSumCount) {
-                this.avgIterator = avgMap.entrySet().iterator();
-            }
-        }
-
-        @Override
-        public TupleDesc getTupleDesc() {
-            return super.getTupleDesc();
-        }
-
-        @Override
-        public void close() {
-            super.close();
-            this.avgIterator = null;
-        }
-
-        public int listSum(List<Integer> list) {
-            int sum = 0;
-            for(int i : list) {
-                sum += i;
-            }
-            return sum;
-        }
+        TupleDesc td = gbfieldtype == null
+                ? new TupleDesc(new Type[]{Type.INT_TYPE}, new String[]{"aggregateVal"})
+                : new TupleDesc(new Type[]{gbfieldtype, Type.INT_TYPE}, new String[]{"groupVal", "aggregateVal"});
+        // the results are computed when the iterator is opened or rewound
+        return new TupleIterator(td, () -> results(td).iterator());
     }
 
 }
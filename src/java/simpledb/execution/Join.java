@@ -1,7 +1,9 @@
 package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -9,18 +11,41 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * Join is a block nested-loop join: it reads the left child a block of pages
+ * at a time into memory granted by the buffer pool, and scans the right child
+ * once per block, so that a left child of n pages rescans the right child
+ * about n / blockPages times rather than once per tuple.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Pages of the left child buffered at a time, if none are given to the constructor */
+    public static final int DEFAULT_BLOCK_PAGES = 32;
+
     private final JoinPredicate p;
 
     private OpIterator it1;
 
     private OpIterator it2;
 
-    private Tuple t1;
+    private TupleDesc td;
+
+    private final int blockPages;
+
+    /** Pages granted by the buffer pool while open */
+    private transient int grantedPages;
+
+    /** The tuples of the current block of the left child */
+    private transient List<Tuple> block;
+
+    /** The right tuple being joined with the block, and the next block tuple to try */
+    private transient Tuple t2;
+    private transient int blockPos;
+
+    /** True once the right child has been scanned for a block */
+    private transient boolean scanned;
 
     /**
      * Constructor. Accepts two children to join and the predicate to join them
@@ -35,9 +60,26 @@ public class Join extends Operator {
      */
     public Join(JoinPredicate p, OpIterator child1, OpIterator child2) {
         // some code goes here
+        this(p, child1, child2, DEFAULT_BLOCK_PAGES);
+    }
+
+    /**
+     * Constructor with the size of the blocks of the left child. Fewer pages
+     * are buffered if the buffer pool grants less memory.
+     *
+     * @param blockPages
+     *            the number of pages of the left child to join with each
+     *            scan of the right child
+     */
+    public Join(JoinPredicate p, OpIterator child1, OpIterator child2, int blockPages) {
+        if (blockPages < 1) {
+            throw new IllegalArgumentException("invalid block size: " + blockPages);
+        }
         this.p = p;
         this.it1 = child1;
         this.it2 = child2;
+        this.blockPages = blockPages;
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -71,8 +113,7 @@ public class Join extends Operator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-        TupleDesc tupleDesc = TupleDesc.merge(it1.getTupleDesc(), it2.getTupleDesc());
-        return tupleDesc;
+        return td;
     }
 
     public void open() throws DbException, NoSuchElementException,
@@ -80,6 +121,9 @@ public class Join extends Operator {
         // some code goes here
         it1.open();
         it2.open();
+        grantedPages = Database.getBufferPool().grantMemory(blockPages);
+        block = new ArrayList<>();
+        resetBlock();
         super.open();
     }
 
@@ -88,19 +132,57 @@ public class Join extends Operator {
         super.close();
         it1.close();
         it2.close();
+        if (grantedPages > 0) {
+            Database.getBufferPool().releaseMemory(grantedPages);
+            grantedPages = 0;
+        }
+        block = null;
+        t2 = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         it1.rewind();
         it2.rewind();
+        resetBlock();
+    }
+
+    private void resetBlock() {
+        block.clear();
+        t2 = null;
+        blockPos = 0;
+        scanned = false;
+    }
+
+    /**
+     * Read the next block of the left child, and rewind the right child if
+     * it was scanned for the previous block.
+     *
+     * @return false if the left child is exhausted
+     */
+    private boolean nextBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        long capacity = Math.max(1, (long) grantedPages * BufferPool.getPageSize()
+                / it1.getTupleDesc().getSize());
+        while (block.size() < capacity && it1.hasNext()) {
+            block.add(it1.next());
+        }
+        if (block.isEmpty()) {
+            return false;
+        }
+        if (scanned) {
+            it2.rewind();
+        }
+        scanned = true;
+        return true;
     }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * satisfies the join predicate. Every tuple of the right child is joined
+     * with every tuple of the current block of the left child, before the
+     * next block is read.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -116,35 +198,36 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        while(it1.hasNext() || t1 != null) {
-            if(it1.hasNext() && t1 == null) {
-                t1 = it1.next();
-            }
-            while(it2.hasNext()) {
-                Tuple t2 = it2.next();
-                if(p.filter(t1, t2)) {
-                    TupleDesc td1 = t1.getTupleDesc();
-                    TupleDesc td2 = t2.getTupleDesc();
-                    TupleDesc td = TupleDesc.merge(td1, td2);
-                    Tuple newTuple = new Tuple(td);
-                    newTuple.setRecordId(t1.getRecordId());
-                    for(int i = 0; i < td1.numFields(); i ++) {
-                        newTuple.setField(i, t1.getField(i));
-                    }
-                    for(int i = 0; i < td2.numFields(); i ++) {
-                        newTuple.setField(td1.numFields() + i, t2.getField(i));
+        while (true) {
+            if (t2 != null) {
+                while (blockPos < block.size()) {
+                    Tuple t1 = block.get(blockPos++);
+                    if (p.filter(t1, t2)) {
+                        return merge(t1, t2);
                     }
-                    if(!it2.hasNext()) {
-                        it2.rewind();
-                        t1 = null;
-                    }
-                    return newTuple;
                 }
+                t2 = null;
             }
-            it2.rewind();
-            t1 = null;
+            if (!block.isEmpty() && it2.hasNext()) {
+                t2 = it2.next();
+                blockPos = 0;
+            } else if (!nextBlock()) {
+                return null;
+            }
+        }
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int n1 = t1.getTupleDesc().numFields();
+        Tuple newTuple = new Tuple(td);
+        newTuple.setRecordId(t1.getRecordId());
+        for (int i = 0; i < n1; i++) {
+            newTuple.setField(i, t1.getField(i));
+        }
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++) {
+            newTuple.setField(n1 + i, t2.getField(i));
         }
-        return null;
+        return newTuple;
     }
 
     @Override
@@ -157,8 +240,9 @@ public class Join extends Operator {
     public void setChildren(OpIterator[] children) {
         // some code goes here
         if(children == null || children.length < 2) return;
-        it1 = children[1];
-        it2 = children[2];
+        it1 = children[0];
+        it2 = children[1];
+        td = TupleDesc.merge(it1.getTupleDesc(), it2.getTupleDesc());
     }
 
 }
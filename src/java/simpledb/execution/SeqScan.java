@@ -5,7 +5,10 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Type;
 import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.DbFile;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -26,6 +29,8 @@ public class SeqScan implements OpIterator {
 
     private String tableAlias;
 
+    private final boolean bulkRead;
+
     private DbFileIterator iterator;
 
     /**
@@ -46,9 +51,30 @@ public class SeqScan implements OpIterator {
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
         // some code goes here
+        this(tid, tableid, tableAlias, false);
+    }
+
+    /**
+     * Creates a sequential scan that may ask for a private ring of buffer
+     * pool frames, so that it does not evict the pages other transactions
+     * are working on.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table (needed by the parser)
+     * @param bulkRead
+     *            true to read a heap file through a ScanRing even if it
+     *            would fit in the buffer pool
+     * @see HeapFile#iterator(TransactionId, boolean)
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, boolean bulkRead) {
         this.tid = tid;
         this.tableId = tableid;
         this.tableAlias = tableAlias;
+        this.bulkRead = bulkRead;
     }
 
     /**
@@ -60,6 +86,20 @@ public class SeqScan implements OpIterator {
         return Database.getCatalog().getTableName(tableId);
     }
 
+    /**
+     * @return the id of the table the operator scans
+     */
+    public int getTableId() {
+        return this.tableId;
+    }
+
+    /**
+     * @return the transaction the scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return this.tid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -93,7 +133,17 @@ public class SeqScan implements OpIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
-        this.iterator = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if(file instanceof HeapFile
+                && ((HeapFile) file).numPages() > Database.getBufferPool().getEscalationThreshold()) {
+            // a scan this large would escalate anyway; skip the page locks
+            Database.getBufferPool().lockTable(tid, tableId, Permissions.READ_ONLY);
+        }
+        if(bulkRead && file instanceof HeapFile) {
+            this.iterator = ((HeapFile) file).iterator(tid, true);
+        } else {
+            this.iterator = file.iterator(tid);
+        }
         iterator.open();
     }
 
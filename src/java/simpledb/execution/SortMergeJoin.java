@@ -0,0 +1,523 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator joins two children on an equality or a range
+ * predicate by sorting both of them on their join field and merging them.
+ * <p>
+ * Inputs that do not fit in the memory budget are sorted externally: sorted
+ * runs are spilled to temporary files and merged. A child that is already in
+ * order of its join field, such as a {@link BTreeScan} on its key field, is
+ * not sorted at all.
+ * <p>
+ * With both children sorted, the tuples of child2 that join with a tuple of
+ * child1 are a range of the sorted child2, whose bounds only move forward as
+ * child1 is read. Only those tuples are read for it, so no predicate is
+ * evaluated on tuples that do not join, unlike in a nested-loop join.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Memory budget of a join, in pages, if none is given to the constructor */
+    public static final int DEFAULT_MEMORY_PAGES = HashEquiJoin.DEFAULT_MEMORY_PAGES;
+
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+    private final int memoryPages;
+
+    /** Pages granted by the buffer pool while open */
+    private transient int grantedPages;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on, with the default memory budget of a join.
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator
+     *            must be one that {@link #supports}
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Constructor with a memory budget. A child that does not fit in it is
+     * sorted externally.
+     *
+     * @param memoryPages
+     *            the number of pages of memory the join may use to sort each
+     *            child, at least 3; fewer are used if the buffer pool grants
+     *            less memory, but never fewer than 3
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryPages) {
+        if (!supports(p.getOperator())) {
+            throw new IllegalArgumentException("sort-merge join on " + p.getOperator());
+        }
+        if (memoryPages < 3) {
+            throw new IllegalArgumentException("invalid memory budget: " + memoryPages);
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.memoryPages = memoryPages;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return true if a sort-merge join can evaluate a join predicate with
+     *         this operator: equality, or a range comparison
+     */
+    public static boolean supports(Predicate.Op op) {
+        switch (op) {
+            case EQUALS:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if the tuples of an iterator come in ascending order of a
+     *         field, so that it need not be sorted on it: a scan of a B+ tree
+     *         keyed on the field, which walks the leaf pages from left to right
+     */
+    public static boolean isOrdered(OpIterator it, int field) {
+        if (it instanceof BTreeScan) {
+            return ((BTreeScan) it).getKeyField() == field;
+        }
+        if (it instanceof SeqScan) {
+            DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) it).getTableId());
+            return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+        }
+        return false;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    /** A sequence of tuples, read once. */
+    private interface Cursor {
+        /** @return the next tuple, or null after the last one */
+        Tuple next() throws DbException, TransactionAbortedException;
+
+        void close();
+    }
+
+    /** A Cursor over a SortedInput, which can be moved to any position. */
+    private interface SortedCursor extends Cursor {
+        /** Continue with the tuple at position first, which may lie before the current one. */
+        void seek(int first) throws DbException;
+    }
+
+    /**
+     * A child, sorted on its join field, that can be read from any position:
+     * in memory if it fits in the budget, else in a spill file.
+     */
+    private static class SortedInput {
+        private final List<Tuple> tuples;
+        private final SpillFile file;
+
+        SortedInput(List<Tuple> tuples) {
+            this.tuples = tuples;
+            this.file = null;
+        }
+
+        SortedInput(SpillFile file) {
+            this.tuples = null;
+            this.file = file;
+        }
+
+        int size() {
+            return tuples != null ? tuples.size() : file.size();
+        }
+
+        /** @return a cursor over the tuples from position first on */
+        SortedCursor open(int first) throws DbException {
+            if (file != null) {
+                SpillFile.Reader in = file.read(first);
+                return new SortedCursor() {
+                    public Tuple next() throws DbException {
+                        return in.next();
+                    }
+
+                    public void seek(int first) throws DbException {
+                        in.seek(first);
+                    }
+
+                    public void close() {
+                        in.close();
+                    }
+                };
+            }
+            return new SortedCursor() {
+                private int pos = first;
+
+                public Tuple next() {
+                    return pos < tuples.size() ? tuples.get(pos++) : null;
+                }
+
+                public void seek(int first) {
+                    pos = first;
+                }
+
+                public void close() {
+                }
+            };
+        }
+
+        void delete() {
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * The first position of the sorted child2 whose join field is at least
+     * (or, if strict, greater than) that of the current tuple of child1.
+     * Since child1 is sorted too, it only moves forward.
+     */
+    private class Bound {
+        private final boolean strict;
+        private Cursor cursor;
+        private Tuple tuple;
+        private int pos;
+
+        Bound(boolean strict) throws DbException, TransactionAbortedException {
+            this.strict = strict;
+            cursor = sorted2.open(0);
+            tuple = cursor.next();
+        }
+
+        int advance(Field key) throws DbException, TransactionAbortedException {
+            Predicate.Op skip = strict ? Predicate.Op.LESS_THAN_OR_EQ : Predicate.Op.LESS_THAN;
+            while (tuple != null && tuple.getField(pred.getField2()).compare(skip, key)) {
+                tuple = cursor.next();
+                pos++;
+            }
+            return pos;
+        }
+
+        void close() {
+            cursor.close();
+        }
+    }
+
+    /** child2 sorted on its join field */
+    private transient SortedInput sorted2;
+    /** child1 sorted on its join field, or null if it is already in order */
+    private transient SortedInput sorted1;
+    /** The tuples of child1, in order of the join field */
+    private transient Cursor outer;
+    /** Where the tuples of child2 that join with t1 start and end, if bounded */
+    private transient Bound lower, upper;
+    /**
+     * The tuples of child2 that join with t1, and how many are left. The
+     * cursor is moved to the range of every tuple of child1 rather than
+     * opened again, so a spilled child2 is read through a single stream.
+     */
+    private transient SortedCursor matches;
+    private transient int remaining;
+    private transient Tuple t1;
+
+    private long memoryBytes() {
+        return (long) budgetPages() * BufferPool.getPageSize();
+    }
+
+    /** @return the pages granted while open, but at least the 3 a merge needs */
+    private int budgetPages() {
+        return Math.max(3, grantedPages);
+    }
+
+    /**
+     * Read a child into a SortedInput. Runs of tuples that fill the memory
+     * budget are sorted and spilled, then merged, budgetPages() - 1 at a time.
+     *
+     * @param ordered true if the child is already in order, so that it is
+     *            only copied
+     */
+    private SortedInput sort(OpIterator child, int field, boolean ordered)
+            throws DbException, TransactionAbortedException {
+        Comparator<Tuple> order = new TupleComparator(field, true);
+        int tupleSize = child.getTupleDesc().getSize();
+        Deque<SpillFile> runs = new ArrayDeque<>();
+        List<Tuple> buffer = new ArrayList<>();
+        long bytes = 0;
+        while (child.hasNext()) {
+            if (bytes + tupleSize > memoryBytes()) {
+                if (!ordered || runs.isEmpty()) {
+                    runs.add(new SpillFile(child.getTupleDesc()));
+                }
+                spill(buffer, ordered ? null : order, runs.getLast());
+                bytes = 0;
+            }
+            buffer.add(child.next());
+            bytes += tupleSize;
+        }
+        if (runs.isEmpty()) {
+            if (!ordered) {
+                buffer.sort(order);
+            }
+            return new SortedInput(buffer);
+        }
+        if (!buffer.isEmpty()) {
+            if (!ordered) {
+                runs.add(new SpillFile(child.getTupleDesc()));
+            }
+            spill(buffer, ordered ? null : order, runs.getLast());
+        }
+        while (runs.size() > 1) {
+            runs.add(merge(runs, order, child.getTupleDesc()));
+        }
+        SpillFile sorted = runs.getFirst();
+        sorted.finish();
+        return new SortedInput(sorted);
+    }
+
+    /** Append the buffered tuples to a run, sorted if order is not null, and clear the buffer. */
+    private static void spill(List<Tuple> buffer, Comparator<Tuple> order, SpillFile run) throws DbException {
+        if (order != null) {
+            buffer.sort(order);
+        }
+        for (Tuple t : buffer) {
+            run.add(t);
+        }
+        if (order != null) {
+            run.finish();
+        }
+        buffer.clear();
+    }
+
+    /** Merge and delete up to budgetPages() - 1 runs from the head of runs. */
+    private SpillFile merge(Deque<SpillFile> runs, Comparator<Tuple> order, TupleDesc td) throws DbException {
+        int fanIn = Math.min(runs.size(), budgetPages() - 1);
+        List<SpillFile> inputs = new ArrayList<>();
+        List<SpillFile.Reader> readers = new ArrayList<>();
+        Tuple[] current = new Tuple[fanIn];
+        SpillFile out = new SpillFile(td);
+        try {
+            for (int i = 0; i < fanIn; i++) {
+                SpillFile run = runs.poll();
+                inputs.add(run);
+                readers.add(run.read());
+            }
+            PriorityQueue<Integer> heads = new PriorityQueue<>(fanIn, (a, b) -> order.compare(current[a], current[b]));
+            for (int i = 0; i < fanIn; i++) {
+                if ((current[i] = readers.get(i).next()) != null) {
+                    heads.add(i);
+                }
+            }
+            while (!heads.isEmpty()) {
+                int i = heads.poll();
+                out.add(current[i]);
+                if ((current[i] = readers.get(i).next()) != null) {
+                    heads.add(i);
+                }
+            }
+            out.finish();
+        } finally {
+            for (SpillFile.Reader in : readers) {
+                in.close();
+            }
+            for (SpillFile run : inputs) {
+                run.delete();
+            }
+        }
+        return out;
+    }
+
+    /** @return the tuples of child1 in order, sorted again only if needed */
+    private Cursor openOuter() throws DbException {
+        if (sorted1 != null) {
+            return sorted1.open(0);
+        }
+        return new Cursor() {
+            public Tuple next() throws DbException, TransactionAbortedException {
+                return child1.hasNext() ? child1.next() : null;
+            }
+
+            public void close() {
+            }
+        };
+    }
+
+    /** Set up the bounds of the ranges of child2 for the join operator. */
+    private void openBounds() throws DbException, TransactionAbortedException {
+        switch (pred.getOperator()) {
+            case EQUALS:
+                lower = new Bound(false);
+                upper = new Bound(true);
+                break;
+            case LESS_THAN:
+                lower = new Bound(true);
+                break;
+            case LESS_THAN_OR_EQ:
+                lower = new Bound(false);
+                break;
+            case GREATER_THAN:
+                upper = new Bound(false);
+                break;
+            case GREATER_THAN_OR_EQ:
+                upper = new Bound(true);
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private void closeCursors() {
+        if (matches != null) {
+            matches.close();
+            matches = null;
+        }
+        if (outer != null) {
+            outer.close();
+            outer = null;
+        }
+        if (lower != null) {
+            lower.close();
+            lower = null;
+        }
+        if (upper != null) {
+            upper.close();
+            upper = null;
+        }
+        t1 = null;
+        remaining = 0;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        grantedPages = Database.getBufferPool().grantMemory(memoryPages);
+        int f1 = pred.getField1(), f2 = pred.getField2();
+        // child2 is read by position, so it is kept even if it is in order
+        sorted2 = sort(child2, f2, isOrdered(child2, f2));
+        if (!isOrdered(child1, f1)) {
+            sorted1 = sort(child1, f1, false);
+        }
+        outer = openOuter();
+        openBounds();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeCursors();
+        if (sorted1 != null) {
+            sorted1.delete();
+            sorted1 = null;
+        }
+        if (sorted2 != null) {
+            sorted2.delete();
+            sorted2 = null;
+        }
+        child2.close();
+        child1.close();
+        if (grantedPages > 0) {
+            Database.getBufferPool().releaseMemory(grantedPages);
+            grantedPages = 0;
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        // the sorted inputs are kept until close
+        closeCursors();
+        if (sorted1 == null) {
+            child1.rewind();
+        }
+        outer = openOuter();
+        openBounds();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Every tuple of child1, in order of the join field, is
+     * joined with the range of child2 between the bounds of its join field.
+     * <p>
+     * Note that the tuples returned are the concatenation of joining tuples
+     * from the left and right relation, as in {@link Join}.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (remaining == 0) {
+            if ((t1 = outer.next()) == null) {
+                return null;
+            }
+            Field key = t1.getField(pred.getField1());
+            int first = lower == null ? 0 : lower.advance(key);
+            int end = upper == null ? sorted2.size() : upper.advance(key);
+            if (first == sorted2.size() && upper == null) {
+                // the tuples of child1 left are all too large to join
+                return null;
+            }
+            if (first < end) {
+                if (matches == null) {
+                    matches = sorted2.open(first);
+                } else {
+                    matches.seek(first);
+                }
+                remaining = end - first;
+            }
+        }
+        remaining--;
+        Tuple t2 = matches.next();
+        int td1n = t1.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++) {
+            t.setField(i, t1.getField(i));
+        }
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++) {
+            t.setField(td1n + i, t2.getField(i));
+        }
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
@@ -0,0 +1,184 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+
+/**
+ * A temporary file of tuples, for operators whose input does not fit in
+ * their memory budget. Tuples are appended, then read back in the order
+ * they were added, as often as needed, from any position. Every open file
+ * and reader costs one page of buffer. Record ids are not kept.
+ */
+class SpillFile {
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int size;
+
+    SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            file = File.createTempFile("spill", ".dat");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), BufferPool.getPageSize()));
+        } catch (IOException e) {
+            throw new DbException("could not create spill file: " + e.getMessage());
+        }
+    }
+
+    /** Append a tuple; the file must not have been read yet. */
+    void add(Tuple t) throws DbException {
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                t.getField(i).serialize(out);
+            }
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        }
+        size++;
+    }
+
+    /** @return the number of tuples in the file */
+    int size() {
+        return size;
+    }
+
+    /** @return the number of bytes of the tuples in the file */
+    long bytes() {
+        return (long) size * td.getSize();
+    }
+
+    /** Stop adding tuples, and release the write buffer. */
+    void finish() throws DbException {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw new DbException("could not write spill file: " + e.getMessage());
+            }
+            out = null;
+        }
+    }
+
+    /** @return a reader over the tuples of the file, from the first one */
+    Reader read() throws DbException {
+        return read(0);
+    }
+
+    /**
+     * @param first the position of the first tuple to read, at most size()
+     * @return a reader over the tuples of the file, from the given one on
+     */
+    Reader read(int first) throws DbException {
+        finish();
+        try {
+            return new Reader(first);
+        } catch (IOException e) {
+            throw new DbException("could not read spill file: " + e.getMessage());
+        }
+    }
+
+    /** Delete the file; it cannot be used anymore. */
+    void delete() {
+        try {
+            finish();
+        } catch (DbException e) {
+            // it is being deleted anyway
+        }
+        file.delete();
+    }
+
+    /**
+     * Reads the tuples of a SpillFile in order, and can move back and forth
+     * between them.
+     */
+    class Reader implements Closeable {
+        private final SeekableInput buffer;
+        private final DataInputStream in;
+        private int remaining;
+
+        private Reader(int first) throws IOException {
+            buffer = new SeekableInput(new FileInputStream(file));
+            in = new DataInputStream(buffer);
+            position(first);
+        }
+
+        /**
+         * Continue with the tuple at the given position, which may lie before
+         * the current one. Tuples that are still buffered are not read again.
+         *
+         * @param first the position of the next tuple to read, at most size()
+         */
+        void seek(int first) throws DbException {
+            try {
+                position(first);
+            } catch (IOException e) {
+                throw new DbException("could not read spill file: " + e.getMessage());
+            }
+        }
+
+        private void position(int first) throws IOException {
+            // every tuple takes td.getSize() bytes, so any one can be sought
+            buffer.seek((long) first * td.getSize());
+            remaining = size - first;
+        }
+
+        /** @return the next tuple, or null after the last one */
+        Tuple next() throws DbException {
+            if (remaining == 0) {
+                return null;
+            }
+            remaining--;
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++) {
+                    t.setField(i, td.getFieldType(i).parse(in));
+                }
+            } catch (ParseException e) {
+                throw new DbException("could not read spill file: " + e.getMessage());
+            }
+            return t;
+        }
+
+        @Override
+        public void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing was written
+            }
+        }
+    }
+
+    /** A buffered file input that can move to any offset of the file. */
+    private static class SeekableInput extends BufferedInputStream {
+        private final FileChannel channel;
+
+        SeekableInput(FileInputStream in) {
+            super(in, BufferPool.getPageSize());
+            this.channel = in.getChannel();
+        }
+
+        /** Move to offset, within the buffer if it holds that offset. */
+        synchronized void seek(long offset) throws IOException {
+            // buf[0, count) always holds the bytes right before the channel's position
+            long start = channel.position() - count;
+            if (offset >= start && offset <= start + count) {
+                pos = (int) (offset - start);
+            } else {
+                channel.position(offset);
+                pos = 0;
+                count = 0;
+            }
+            markpos = -1;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb.index;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import simpledb.common.Database;
@@ -32,6 +33,8 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	private final DbFileChannel channel;
+	private final boolean memoryMapped;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -42,10 +45,34 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, key, td, false);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file, optionally
+	 * reading its pages out of a memory mapping of the file instead of with
+	 * a read call per page.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param memoryMapped - true to read pages through a memory mapping
+	 */
+	public BTreeFile(File f, int key, TupleDesc td, boolean memoryMapped) {
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.channel = new DbFileChannel(f);
+		this.memoryMapped = memoryMapped;
+	}
+
+	/**
+	 * Returns true if pages of this file are read through a memory mapping.
+	 */
+	public boolean isMemoryMapped() {
+		return memoryMapped;
 	}
 
 	/**
@@ -87,49 +114,76 @@ public class BTreeFile implements DbFile {
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
-            if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-                byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                return new BTreeRootPtrPage(id, pageBuf);
-            } else {
-                byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        // Close the file on success or error
-        // Ignore failures closing the file
-    }
+		try {
+			if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+				byte[] pageBuf = readBytes(0, BTreeRootPtrPage.getPageSize());
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				return new BTreeRootPtrPage(id, pageBuf);
+			} else {
+				byte[] pageBuf = readBytes(pageOffset(id.getPageNumber()), BufferPool.getPageSize());
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				if (id.pgcateg() == BTreePageId.INTERNAL) {
+					return new BTreeInternalPage(id, pageBuf, keyField);
+				} else if (id.pgcateg() == BTreePageId.LEAF) {
+					return new BTreeLeafPage(id, pageBuf, keyField);
+				} else { // id.pgcateg() == BTreePageId.HEADER
+					return new BTreeHeaderPage(id, pageBuf);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Read length bytes at the given offset of the file.
+	 *
+	 * @throws IllegalArgumentException if the file is too short
+	 */
+	private byte[] readBytes(long offset, int length) throws IOException {
+		if (offset >= channel.size()) {
+			throw new IllegalArgumentException("Read past end of table");
+		}
+		if (memoryMapped) {
+			// B+ tree pages parse their data, so copy it out of the mapping
+			ByteBuffer view = channel.map(offset, length);
+			if (view != null) {
+				byte[] pageBuf = new byte[length];
+				view.get(pageBuf);
+				return pageBuf;
+			}
+		}
+		try {
+			return channel.read(offset, length);
+		} catch (EOFException e) {
+			throw new IllegalArgumentException("Unable to read " + length + " bytes from BTreeFile");
+		}
+	}
+
+	/** Offset in the file of the given internal, leaf or header page. */
+	private static long pageOffset(int pageNumber) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNumber - 1) * BufferPool.getPageSize();
+	}
+
+	/**
+	 * Build a page of this file from its serialized form
+	 *
+	 * @param pid - the id of the page
+	 * @param data - the page data, as returned by getPageData()
+	 */
+	public Page createPage(PageId pid, byte[] data) throws IOException {
+		BTreePageId id = (BTreePageId) pid;
+		switch (id.pgcateg()) {
+		case BTreePageId.ROOT_PTR:
+			return new BTreeRootPtrPage(id, data);
+		case BTreePageId.INTERNAL:
+			return new BTreeInternalPage(id, data, keyField);
+		case BTreePageId.LEAF:
+			return new BTreeLeafPage(id, data, keyField);
+		default:
+			return new BTreeHeaderPage(id, data);
+		}
+	}
 
 	/**
 	 * Write a page to disk.  This should not be called directly but should
@@ -141,15 +195,11 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			channel.write(data, 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			channel.write(data, pageOffset(id.getPageNumber()));
 		}
 	}
 
@@ -169,60 +219,122 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the
-	 * leaf node with permission perm.
+	 * Function which finds and locks the leaf page in the B+ tree corresponding to
+	 * the left-most page possibly containing the key field f, descending from the root
+	 * pointer page. It locks the leaf node with permission perm for the rest of the
+	 * transaction, but locks the pages above it with READ_ONLY permission only while
+	 * the descent passes them (latch coupling): the lock on a page is released as soon
+	 * as its child is locked, unless the transaction held it before. Transactions which
+	 * split or merge upper-level pages therefore do not wait for the readers of those
+	 * pages to commit, and the descent never reads a page that a running transaction
+	 * is changing.
+	 *
+	 * The descent never waits for a lock while holding the lock on the parent. If the
+	 * child cannot be locked right away, the parent is released, the descent waits for
+	 * the child's lock and starts over from the root, since the child may have been
+	 * split or merged in the meantime.
 	 *
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 *
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, or null if
+	 * the tree is empty
 	 *
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm,
                                        Field f)
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-		//get page type
-		int type = pid.pgcateg();
-		//if page is leaf page, return
-		if(type == BTreePageId.LEAF) return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
-		//the page is internal page with ReadOnly
-		BTreeInternalPage internalPage = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-		//get this internal page's iterator
-		Iterator<BTreeEntry> it = internalPage.iterator();
+		try {
+			createRootPtrPage();
+		} catch (IOException e) {
+			throw new DbException("could not create the root pointer page: " + e.getMessage());
+		}
+		restart:
+		while(true) {
+			BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+			boolean held = holdsPage(tid, dirtypages, pid);
+			Page page = getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			BTreePageId childId = ((BTreeRootPtrPage) page).getRootId();
+			while(childId != null) {
+				boolean leaf = childId.pgcateg() == BTreePageId.LEAF;
+				Permissions childPerm = leaf ? perm : Permissions.READ_ONLY;
+				boolean childHeld = holdsPage(tid, dirtypages, childId);
+				Page child = tryGetPage(tid, dirtypages, childId, childPerm);
+				if(child == null) {
+					// wait for the child without holding the parent, then start over
+					unlatch(tid, page, held);
+					child = getPage(tid, dirtypages, childId, childPerm);
+					if(!leaf) {
+						unlatch(tid, child, childHeld);
+					}
+					continue restart;
+				}
+				unlatch(tid, page, held);
+				if(leaf) {
+					return (BTreeLeafPage) child;
+				}
+				page = child;
+				held = childHeld;
+				childId = findChild((BTreeInternalPage) page, f);
+			}
+			unlatch(tid, page, held);
+			return null;
+		}
+	}
+
+	/**
+	 * @return the child of an internal page that the left-most leaf page possibly
+	 * containing the key field f descends from, the left-most child if f is null
+	 */
+	private static BTreePageId findChild(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> it = page.iterator();
 		BTreeEntry entry = null;
 		while(it.hasNext()) {
 			entry = it.next();
-			if(f == null) return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, null);
-			Field key = entry.getKey();
-			if(key.compare(Op.GREATER_THAN_OR_EQ, f)) {
-				return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
+			if(f == null || entry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
+				return entry.getLeftChild();
 			}
 		}
-		return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
+		return entry.getRightChild();
+	}
+
+	/**
+	 * @return true if the transaction holds a lock on the page already, so that the
+	 * descent must not release it
+	 */
+	private static boolean holdsPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid) {
+		return dirtypages.containsKey(pid) || Database.getBufferPool().holdsLock(tid, pid);
+	}
+
+	/**
+	 * Release the lock the descent took on a page it passed.
+	 *
+	 * @param held - true if the transaction held the lock before the descent
+	 */
+	private static void unlatch(TransactionId tid, Page page, boolean held) {
+		if(!held) {
+			Database.getBufferPool().unsafeReleasePage(tid, page.getId());
+		}
 	}
 
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
 	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)
+	 * @see #findLeafPage(TransactionId, Map, Permissions, Field)
 	 *
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, or null if
+	 * the tree is empty
 	 *
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid,
-                               Field f)
+	BTreeLeafPage findLeafPage(TransactionId tid, Field f)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
+		return findLeafPage(tid, new HashMap<>(), Permissions.READ_ONLY, f);
 	}
 
 	/**
@@ -508,6 +620,22 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * Like {@link #getPage(TransactionId, Map, BTreePageId, Permissions)}, but returns null
+	 * rather than wait for another transaction's lock on the page.
+	 */
+	private Page tryGetPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		Page p = Database.getBufferPool().tryGetPage(tid, pid, perm);
+		if(p != null && perm == Permissions.READ_WRITE) {
+			dirtypages.put(pid, p);
+		}
+		return p;
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order.
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -521,20 +649,28 @@ public class BTreeFile implements DbFile {
 	public List<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
-
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+		try {
+			return insertTuple(tid, dirtypages, t);
+		} catch (DbException | IOException | TransactionAbortedException | RuntimeException e) {
+			abandon(tid, dirtypages);
+			throw e;
 		}
+	}
 
+	private List<Page> insertTuple(TransactionId tid, Map<PageId, Page> dirtypages, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, t.getField(keyField));
+		if(leafPage == null) {
+			// the tree is empty, so create the root and set the root pointer to point to it
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+					BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			if(rootPtr.getRootId() == null) {
+				rootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+			}
+			leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, t.getField(keyField));
+		}
 		if(leafPage.getNumEmptySlots() == 0) {
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
 		}
@@ -993,7 +1129,16 @@ public class BTreeFile implements DbFile {
 	public List<Page> deleteTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
+		try {
+			return deleteTuple(tid, dirtypages, t);
+		} catch (DbException | IOException | TransactionAbortedException | RuntimeException e) {
+			abandon(tid, dirtypages);
+			throw e;
+		}
+	}
 
+	private List<Page> deleteTuple(TransactionId tid, Map<PageId, Page> dirtypages, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
 		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
@@ -1009,6 +1154,23 @@ public class BTreeFile implements DbFile {
         return new ArrayList<>(dirtypages.values());
 	}
 
+	/**
+	 * Hand the pages an insert or delete got for writing to the BufferPool as dirtied
+	 * by tid when the operation fails halfway, typically because tid was aborted to
+	 * break a deadlock in the middle of a split, steal or merge. Some of the pages may
+	 * be changed already, and the abort that follows only restores dirty pages.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages the operation got for writing
+	 */
+	private static void abandon(TransactionId tid, Map<PageId, Page> dirtypages) {
+		try {
+			Database.getBufferPool().installDirtyPages(tid, new ArrayList<>(dirtypages.values()));
+		} catch (DbException e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Get a read lock on the root pointer page. Create the root pointer page and root page
 	 * if necessary.
@@ -1021,23 +1183,27 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized(this) {
-			if(f.length() == 0) {
-				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
-			}
-		}
+		createRootPtrPage();
 
 		// get a read lock on the root pointer page
 		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
+	/**
+	 * Create the root pointer page and root page if the file is empty.
+	 *
+	 * @throws IOException
+	 */
+	private synchronized void createRootPtrPage() throws IOException {
+		if(channel.size() == 0) {
+			// create the root pointer page and the root page
+			byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+			byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+			channel.write(emptyRootPtrData, 0);
+			channel.write(emptyLeafData, emptyRootPtrData.length);
+		}
+	}
+
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
@@ -1086,11 +1252,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				channel.write(emptyData, channel.size());
 				emptyPageNo = numPages();
 			}
 		}
@@ -1121,10 +1284,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		channel.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 
 		// make sure the page is not in the buffer pool	or in the local cache
 		Database.getBufferPool().discardPage(newPageId);
@@ -1272,11 +1432,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
-		it = curp.iterator();
+		curp = f.findLeafPage(tid, null);
+		it = curp == null ? null : curp.iterator();
 	}
 
 	/**
@@ -1357,17 +1514,14 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+			curp = f.findLeafPage(tid, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			curp = f.findLeafPage(tid, null);
 		}
-		it = curp.iterator();
+		it = curp == null ? null : curp.iterator();
 	}
 
 	/**
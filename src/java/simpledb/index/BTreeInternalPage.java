@@ -765,8 +765,13 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key != null) {
+					// the left child is in the closest used slot to the left, which
+					// need not be the adjacent one once entries have been deleted
+					BTreePageId childId = p.getChildId(curEntry);
+					while(childId == null) {
+						childId = p.getChildId(--curEntry);
+					}
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
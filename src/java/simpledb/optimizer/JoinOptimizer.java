@@ -4,6 +4,9 @@ import com.sun.jmx.remote.internal.ArrayQueue;
 import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -74,18 +77,14 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
-
-            try {
-                // dynamically load HashEquiJoin -- if it doesn't exist, just
-                // fall back on regular join
-                Class<?> c = Class.forName("simpledb.execution.HashEquiJoin");
-                java.lang.reflect.Constructor<?> ct = c.getConstructors()[0];
-                j = (OpIterator) ct
-                        .newInstance(new Object[] { p, plan1, plan2 });
-            } catch (Exception e) {
-                j = new Join(p, plan1, plan2);
-            }
+        if (lj.indexJoin && IndexNestedLoopJoin.canProbe(plan2, t2id)) {
+            j = new IndexNestedLoopJoin(p, plan1, (SeqScan) plan2);
+        } else if (lj.p == Predicate.Op.EQUALS && !(SortMergeJoin.isOrdered(plan1, t1id)
+                && SortMergeJoin.isOrdered(plan2, t2id))) {
+            j = new HashEquiJoin(p, plan1, plan2);
+        } else if (SortMergeJoin.supports(lj.p)) {
+            // range joins, and equi-joins whose inputs need no sorting
+            j = new SortMergeJoin(p, plan1, plan2);
         } else {
             j = new Join(p, plan1, plan2);
         }
@@ -131,10 +130,80 @@ public class JoinOptimizer {
             // HINT: You may need to use the variable "j" if you implemented
             // a join algorithm that's more complicated than a basic
             // nested-loops join.
+            if (j.p != Predicate.Op.EQUALS && SortMergeJoin.supports(j.p)) {
+                return estimateSortMergeJoinCost(j.p, card1, card2, cost1, cost2);
+            }
             return cost1 + card1 * cost2 + card1 * card2;
         }
     }
 
+    /**
+     * Estimate the cost of a {@link SortMergeJoin}: one scan of each side,
+     * sorting both sides, and reading the tuples of the right-hand side that
+     * join with each tuple of the left-hand side. Tuples that do not join are
+     * not compared, so unlike in a nested-loop join the cost of a range join
+     * grows with its output rather than with card1 * card2.
+     *
+     * @param op
+     *            the join operator, one that SortMergeJoin supports
+     * @return An estimate of the cost of the join, in terms of cost1 and
+     *         cost2
+     */
+    public static double estimateSortMergeJoinCost(Predicate.Op op, int card1, int card2,
+            double cost1, double cost2) {
+        double output = op == Predicate.Op.EQUALS ? Math.max(card1, card2)
+                : 0.3 * card1 * card2;
+        return cost1 + cost2 + sortCost(card1) + sortCost(card2) + output;
+    }
+
+    /**
+     * Estimate the cost of an {@link IndexNestedLoopJoin}: one scan of the
+     * left-hand side, and for each of its tuples a descent of the B+ tree of
+     * the right-hand table and a read of the leaves that join with it. This
+     * is only possible if the right-hand side is a table, without filters,
+     * stored in a B+ tree keyed on the join field.
+     *
+     * @return An estimate of the cost of the join, in terms of cost1 and
+     *         cost2, or infinity if j cannot be an index join
+     */
+    public double estimateIndexJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2) {
+        if (j instanceof LogicalSubplanJoinNode || !IndexNestedLoopJoin.supports(j.p)
+                || p.getTableId(j.t2Alias) == null || p.hasFilter(j.t2Alias)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(p.getTableId(j.t2Alias));
+        if (!(f instanceof BTreeFile)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        BTreeFile index = (BTreeFile) f;
+        TupleDesc td = index.getTupleDesc();
+        int field;
+        try {
+            field = td.fieldNameToIndex(j.f2PureName);
+        } catch (NoSuchElementException e) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (field != index.keyField()) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        int pages = Math.max(1, index.numPages());
+        double pageCost = cost2 / pages;
+        // an internal entry is a key and a page number
+        int fanout = Math.max(2, BufferPool.getPageSize() / (td.getFieldType(field).getLen() + 4));
+        double height = 1 + Math.ceil(Math.log(pages) / Math.log(fanout));
+        double leaves = j.p == Predicate.Op.EQUALS ? 1 : 0.3 * pages;
+        double output = j.p == Predicate.Op.EQUALS ? Math.max(card1, card2)
+                : 0.3 * card1 * card2;
+        return cost1 + card1 * (height + leaves) * pageCost + output;
+    }
+
+    /** @return the number of comparisons to sort card tuples */
+    private static double sortCost(int card) {
+        return card <= 1 ? card : card * (Math.log(card) / Math.log(2));
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -428,6 +497,23 @@ public class JoinOptimizer {
 
         LogicalJoinNode j2 = j.swapInnerOuter();
         double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+
+        // an index join probes the table of its inner side, so that side
+        // must be a base table rather than prevbest
+        if (!doesJoin(prevBest, j.t2Alias)) {
+            double indexCost = estimateIndexJoinCost(j, t1card, t2card, t1cost, t2cost);
+            if (indexCost < cost1) {
+                j = j.withIndexJoin();
+                cost1 = indexCost;
+            }
+        }
+        if (!doesJoin(prevBest, j2.t2Alias)) {
+            double indexCost = estimateIndexJoinCost(j2, t2card, t1card, t2cost, t1cost);
+            if (indexCost < cost2) {
+                j2 = j2.withIndexJoin();
+                cost2 = indexCost;
+            }
+        }
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
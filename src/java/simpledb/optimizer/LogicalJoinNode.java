@@ -25,6 +25,9 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** True if the join should probe an index of t2 for every tuple of t1 */
+    public boolean indexJoin;
+
     public LogicalJoinNode() {
     }
 
@@ -64,6 +67,13 @@ public class LogicalJoinNode {
         return new LogicalJoinNode(t2Alias,t1Alias,f2PureName,f1PureName, newp);
     }
     
+    /** Return a copy of this LogicalJoinNode that is an index join. */
+    public LogicalJoinNode withIndexJoin() {
+        LogicalJoinNode j = new LogicalJoinNode(t1Alias, t2Alias, f1PureName, f2PureName, p);
+        j.indexJoin = true;
+        return j;
+    }
+
     @Override public boolean equals(Object o) {
         if (!(o instanceof LogicalJoinNode)) return false;
         LogicalJoinNode j2 =(LogicalJoinNode)o;
@@ -79,6 +79,16 @@ public class LogicalPlan {
         return tableMap.get(alias);
     }
     
+    /** @return true if a filter applies to the table with the given alias */
+    boolean hasFilter(String alias) {
+        for (LogicalFilterNode lf : filters) {
+            if (lf.tableAlias.equals(alias)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public Map<String,Integer> getTableAliasToIdMapping()
     {
         return this.tableMap;
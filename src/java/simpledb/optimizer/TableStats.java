@@ -5,6 +5,7 @@ import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
@@ -105,8 +106,8 @@ public class TableStats {
         this.tableId = tableid;
         this.ioCostPerPage = ioCostPerPage;
 
-        HeapFile heapFile = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
-        this.td = heapFile.getTupleDesc();
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        this.td = file.getTupleDesc();
 
         int[] min = new int[td.numFields()];
         int[] max = new int[td.numFields()];
@@ -117,7 +118,7 @@ public class TableStats {
         }
 
         this.histogram = new Object[td.numFields()];
-        DbFileIterator it = heapFile.iterator(new TransactionId());
+        DbFileIterator it = file.iterator(new TransactionId());
 
         try {
             it.open();
@@ -165,7 +166,9 @@ public class TableStats {
         }
 
         it.close();
-        this.numPages = ((HeapFile) Database.getCatalog().getDatabaseFile(tableid)).numPages();
+        // tables stored in B+ trees are costed too, for index joins
+        this.numPages = file instanceof BTreeFile ? ((BTreeFile) file).numPages()
+                : ((HeapFile) file).numPages();
     }
 
     /**
@@ -0,0 +1,46 @@
+package simpledb.storage;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Helper for implementing EvictionPolicies. Keeps the hit/miss counters. */
+public abstract class AbstractEvictionPolicy implements EvictionPolicy {
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public void pageHit(PageId pid) {
+        hits.increment();
+        recordHit(pid);
+    }
+
+    public void pageLoaded(PageId pid) {
+        misses.increment();
+        recordLoad(pid);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** @return the fraction of requests served from the pool, 0 if none were made */
+    public double getHitRatio() {
+        long h = getHits();
+        long total = h + getMisses();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /** Update the replacement state for a page that was hit. */
+    protected abstract void recordHit(PageId pid);
+
+    /** Start tracking a page that was just read into the pool. */
+    protected abstract void recordLoad(PageId pid);
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[hits=" + getHits() + ", misses=" + getMisses() + "]";
+    }
+}
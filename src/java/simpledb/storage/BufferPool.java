@@ -13,6 +13,7 @@ import java.io.*;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -23,6 +24,29 @@ import java.util.concurrent.ConcurrentHashMap;
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
  *
+ * <p>
+ * The frames are split into hash partitions by PageId. Every partition has
+ * its own frame table, eviction policy and latch, so getPage calls on pages
+ * of different partitions proceed in parallel.
+ *
+ * <p>
+ * In off-heap mode the pool allocates a {@link PageArena} with one frame per
+ * page up front and reads heap file pages straight into it; see
+ * {@link HeapPage}. Other pages, such as those of B+ trees, stay on the heap.
+ *
+ * <p>
+ * The {@link WritePolicy} decides when changes reach the disk. In the
+ * default NO_STEAL_FORCE mode dirty pages stay in the pool until their
+ * transaction commits, which writes them out. In STEAL_NO_FORCE mode a commit
+ * only logs its pages, and a background {@link PageWriter} writes them, as
+ * well as pages of running transactions, to keep a fraction of the frames
+ * clean; a page is always logged and the log forced before it is written.
+ *
+ * <p>
+ * Read-only transactions may run on a snapshot instead of taking locks; see
+ * {@link #beginSnapshot}. The page versions they read are kept in a
+ * {@link VersionStore}.
+ *
  * @Threadsafe, all fields are final
  */
 public class BufferPool {
@@ -36,30 +60,172 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Replacement policy used when none is given to the constructor. */
+    public static final EvictionPolicy.Kind DEFAULT_EVICTION_POLICY = EvictionPolicy.Kind.TWO_Q;
+
+    /** Upper bound on the number of frames a single sequential scan may occupy. */
+    public static final int MAX_SCAN_RING_PAGES = 32;
+
+    /** Fraction of the pool that may be granted to operators as working memory. */
+    public static final double MAX_GRANT_FRACTION = 0.5;
+
+    /**
+     * Pools are only partitioned when every partition gets at least this many
+     * frames; a small partition fills up with dirty pages too easily.
+     */
+    public static final int MIN_PAGES_PER_PARTITION = 64;
+
+    /** Upper bound on the number of partitions picked by default. */
+    public static final int MAX_PARTITIONS = 64;
+
+    /** Fraction of the frames the page writer keeps clean in STEAL mode. */
+    public static final double DEFAULT_CLEAN_FRACTION = 0.1;
+
+    /** Number of latches the writes of pages are striped over. */
+    private static final int WRITE_LATCHES = 64;
+
+    /** When the changes of a transaction are written to disk. */
+    public enum WritePolicy {
+        /**
+         * Dirty pages are never written before their transaction ends, and
+         * a commit writes all of them.
+         */
+        NO_STEAL_FORCE,
+        /**
+         * Dirty pages may be written before their transaction ends, once
+         * their changes are logged, and a commit only logs its pages. An
+         * abort undoes the written changes from the log.
+         */
+        STEAL_NO_FORCE
+    }
+
     private final int numPages;
 
-    private final ConcurrentHashMap<PageId, Page> map;
+    private final BufferPoolPartition[] partitions;
+
+    /** Off-heap page frames, or null if pages live on the heap. */
+    private final PageArena arena;
 
-    private final LinkedHashMap<PageId, Page> cache;
+    private final ReadAhead readAhead;
+
+    private volatile boolean readAheadEnabled = true;
+
+    private final PageWriter pageWriter;
+
+    private volatile WritePolicy writePolicy = WritePolicy.NO_STEAL_FORCE;
+
+    private volatile double cleanFraction = DEFAULT_CLEAN_FRACTION;
+
+    /**
+     * Latches that keep two writes of the same page apart; see the locking
+     * note in {@link LogFile}.
+     */
+    private final ReentrantLock[] writeLatches = new ReentrantLock[WRITE_LATCHES];
 
     private final LockManager lockManager;
 
+    /** Page versions for the snapshots of read-only transactions */
+    private final VersionStore versions = new VersionStore();
+
+    /** Pages of working memory granted to operators and not released yet */
+    private int grantedPages;
+
+    /**
+     * Dirty page table: the LSN of the first log record of every page whose
+     * logged changes have not been written to disk yet.
+     */
+    private final Map<PageId, Long> recLSNs = new ConcurrentHashMap<>();
+
+    /**
+     * For every page of the dirty page table, the number of bytes appended
+     * to the log up to its last record: the log has to be durable up to
+     * there before the page is written. Changed under the LogFile monitor.
+     */
+    private final Map<PageId, Long> pageLogEnds = new ConcurrentHashMap<>();
+
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, DEFAULT_EVICTION_POLICY);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and picks the
+     * pages to evict with the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the replacement algorithm to use
+     */
+    public BufferPool(int numPages, EvictionPolicy.Kind policy) {
+        this(numPages, defaultPartitions(numPages), policy);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into the
+     * given number of hash partitions.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numPartitions number of partitions, at most numPages
+     * @param policy the replacement algorithm each partition uses
+     */
+    public BufferPool(int numPages, int numPartitions, EvictionPolicy.Kind policy) {
+        this(numPages, numPartitions, policy, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into the
+     * given number of hash partitions, optionally keeping the page images in
+     * a pre-allocated off-heap arena.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numPartitions number of partitions, at most numPages
+     * @param policy the replacement algorithm each partition uses
+     * @param offHeap true to store heap file pages in a {@link PageArena}
+     */
+    public BufferPool(int numPages, int numPartitions, EvictionPolicy.Kind policy, boolean offHeap) {
         // some code goes here
+        if(numPartitions < 1 || numPartitions > Math.max(1, numPages)) {
+            throw new IllegalArgumentException("invalid number of partitions: " + numPartitions);
+        }
         this.numPages = numPages;
-        this.map = new ConcurrentHashMap<>();
-        this.cache = new LinkedHashMap<PageId, Page>(numPages, 0.75f, true) {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry eldest) {
-                return cache.size() > numPages;
-            }
-        };
+        this.arena = offHeap ? new PageArena(numPages) : null;
+        this.partitions = new BufferPoolPartition[numPartitions];
+        for(int i = 0; i < numPartitions; i++) {
+            int capacity = numPages / numPartitions + (i < numPages % numPartitions ? 1 : 0);
+            partitions[i] = new BufferPoolPartition(capacity, policy, arena, recLSNs.keySet());
+        }
+        for(int i = 0; i < WRITE_LATCHES; i++) {
+            writeLatches[i] = new ReentrantLock();
+        }
         this.lockManager = new LockManager();
+        this.readAhead = new ReadAhead(this);
+        this.pageWriter = new PageWriter(this);
+    }
+
+    /**
+     * One partition per {@link #MIN_PAGES_PER_PARTITION} frames, rounded down
+     * to a power of two and capped at twice the number of processors.
+     */
+    private static int defaultPartitions(int numPages) {
+        int cap = Math.min(MAX_PARTITIONS, 2 * Runtime.getRuntime().availableProcessors());
+        int n = Math.max(1, Math.min(cap, numPages / MIN_PAGES_PER_PARTITION));
+        return Integer.highestOneBit(n);
+    }
+
+    private ReentrantLock latchOf(PageId pid) {
+        return writeLatches[Math.floorMod(pid.hashCode(), WRITE_LATCHES)];
+    }
+
+    private BufferPoolPartition partitionOf(PageId pid) {
+        if(partitions.length == 1) {
+            return partitions[0];
+        }
+        // HeapPageId hashes are close together for neighbouring pages, so mix them
+        int h = Integer.rotateLeft(pid.hashCode() * 0x9E3779B9, 16);
+        return partitions[Math.floorMod(h, partitions.length)];
     }
 
     public static int getPageSize() {
@@ -76,6 +242,165 @@ public class BufferPool {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /** @return the maximum number of pages this buffer pool caches */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /** @return the off-heap page frames, or null if pages live on the heap */
+    public PageArena getArena() {
+        return arena;
+    }
+
+    /** @return the number of hash partitions the frames are split into */
+    public int getNumPartitions() {
+        return partitions.length;
+    }
+
+    /** @return the number of {@link #getPage} calls served from the pool */
+    public long getHitCount() {
+        long hits = 0;
+        for(BufferPoolPartition partition : partitions) {
+            hits += partition.getEvictionPolicy().getHits();
+        }
+        return hits;
+    }
+
+    /** @return the number of {@link #getPage} calls that had to read from disk */
+    public long getMissCount() {
+        long misses = 0;
+        for(BufferPoolPartition partition : partitions) {
+            misses += partition.getEvictionPolicy().getMisses();
+        }
+        return misses;
+    }
+
+    /**
+     * Turn reading ahead of sequential HeapFile scans on or off. It is on by
+     * default.
+     *
+     * @see ReadAhead
+     */
+    public void setReadAhead(boolean enabled) {
+        this.readAheadEnabled = enabled;
+    }
+
+    /** @return the number of pages read into the pool ahead of a scan */
+    public long getReadAheadCount() {
+        return readAhead.getPagesRead();
+    }
+
+    /**
+     * Write pages of the dirty page table whose changes are committed to
+     * disk in the background, at most pagesPerSecond of them per second.
+     * 0, the default, turns the background writer off.
+     *
+     * @see PageWriter
+     */
+    public void setBackgroundWriter(int pagesPerSecond) {
+        pageWriter.setRate(pagesPerSecond);
+    }
+
+    /**
+     * Stop the background writer, waiting for a write in progress. Database
+     * calls this when it replaces the pool, so that the old pool does not
+     * write pages behind the back of the new one, or of recovery.
+     */
+    public void stopBackgroundWriter() {
+        pageWriter.stop();
+    }
+
+    /** @return the number of pages written by the background writer */
+    public long getBackgroundWriteCount() {
+        return pageWriter.getPagesWritten();
+    }
+
+    /**
+     * Choose when changes are written to disk. STEAL_NO_FORCE also starts
+     * the background writer, which keeps the configured fraction of frames
+     * clean. Only change the policy while no transaction is running.
+     *
+     * @see #setCleanFraction(double)
+     */
+    public void setWritePolicy(WritePolicy policy) {
+        this.writePolicy = policy;
+        pageWriter.setCleanFraction(policy == WritePolicy.STEAL_NO_FORCE ? cleanFraction : 0);
+    }
+
+    public WritePolicy getWritePolicy() {
+        return writePolicy;
+    }
+
+    /**
+     * Set the fraction of the frames of every partition the background
+     * writer keeps free or clean in STEAL_NO_FORCE mode, so that pages can
+     * be evicted without waiting for a write. Defaults to
+     * {@link #DEFAULT_CLEAN_FRACTION}.
+     */
+    public void setCleanFraction(double fraction) {
+        if(fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("clean fraction must be between 0 and 1: " + fraction);
+        }
+        this.cleanFraction = fraction;
+        if(writePolicy == WritePolicy.STEAL_NO_FORCE) {
+            pageWriter.setCleanFraction(fraction);
+        }
+    }
+
+    /**
+     * Create a ring of frames for a large sequential scan. The ring gets an
+     * eighth of the pool, but never more than {@link #MAX_SCAN_RING_PAGES}.
+     *
+     * @see #getPage(TransactionId, PageId, Permissions, ScanRing)
+     */
+    public ScanRing newScanRing() {
+        return new ScanRing(Math.min(MAX_SCAN_RING_PAGES, Math.max(1, numPages / 8)));
+    }
+
+    /**
+     * Grant an operator working memory, such as the buffer of a join, out of
+     * the {@link #MAX_GRANT_FRACTION} of the pool shared by all operators.
+     * An operator gets what it asks for while that lasts, and a single page
+     * afterwards, so that it can still make progress. The grant must be
+     * given back with {@link #releaseMemory}.
+     * <p>
+     * Granted pages are taken from the frames that cache pages: every
+     * partition gives up its share of the grant and evicts clean pages down
+     * to what is left. Only while none of its pages can be evicted does a
+     * partition keep using the frames it gave up.
+     *
+     * @param pages the number of pages wanted, at least 1
+     * @return the number of pages granted, between 1 and pages
+     */
+    public synchronized int grantMemory(int pages) {
+        if(pages < 1) {
+            throw new IllegalArgumentException("invalid memory grant: " + pages);
+        }
+        int limit = (int) (numPages * MAX_GRANT_FRACTION);
+        int grant = Math.max(1, Math.min(pages, limit - grantedPages));
+        grantedPages += grant;
+        reserveGrantedPages();
+        return grant;
+    }
+
+    /** Give back pages granted by {@link #grantMemory}. */
+    public synchronized void releaseMemory(int pages) {
+        grantedPages -= pages;
+        reserveGrantedPages();
+    }
+
+    /** @return the number of pages of working memory granted and not released */
+    public synchronized int getGrantedPages() {
+        return grantedPages;
+    }
+
+    /** Take the granted pages from the partitions, in proportion to their size. */
+    private void reserveGrantedPages() {
+        for(BufferPoolPartition partition : partitions) {
+            partition.setReserved((int) ((long) grantedPages * partition.getCapacity() / numPages));
+        }
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -94,15 +419,187 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-        Page page = map.get(pid);
-        if(page == null) {
-            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-            addToBufferPool(pid, page);
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page on behalf of a large sequential scan.
+     * Behaves like {@link #getPage(TransactionId, PageId, Permissions)},
+     * except that a page which has to be read from disk is installed in one of
+     * the frames of the given ring, recycling the oldest page of the ring once
+     * it is full. Pages that are already resident are simply returned.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param ring the scan's ring of frames, or null to use the pool normally
+     */
+    public  Page getPage(TransactionId tid, PageId pid, Permissions perm, ScanRing ring)
+        throws TransactionAbortedException, DbException {
+        Long snapshot = versions.snapshotOf(tid);
+        if(snapshot != null) {
+            return getSnapshotPage(snapshot, pid, perm, ring);
+        }
+        return lockResident(tid, pid, perm, ring, true);
+    }
+
+    /**
+     * Like {@link #getPage(TransactionId, PageId, Permissions)}, but return
+     * null rather than wait for another transaction's lock.
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        Long snapshot = versions.snapshotOf(tid);
+        if(snapshot != null) {
+            return getSnapshotPage(snapshot, pid, perm, null);
+        }
+        return lockResident(tid, pid, perm, null, false);
+    }
+
+    /**
+     * Lock a page and return its resident copy.
+     *
+     * @param wait false to return null rather than wait for the lock
+     */
+    private Page lockResident(TransactionId tid, PageId pid, Permissions perm, ScanRing ring, boolean wait)
+        throws TransactionAbortedException, DbException {
+        while(true) {
+            Page page = resident(pid, ring);
+            if(wait) {
+                lockManager.acquire(tid, pid, perm);
+            } else if(!lockManager.tryAcquire(tid, pid, perm)) {
+                return null;
+            }
+            // an abort may have replaced the page while we waited for the lock
+            if(partitionOf(pid).peek(pid) == page) {
+                if(perm == Permissions.READ_WRITE) {
+                    versions.saveCommitted(tid, page);
+                }
+                return page;
+            }
+        }
+    }
+
+    /**
+     * Get the version of a page a snapshot sees, without locking it. The
+     * page is a private copy, so the snapshot may keep it as long as it
+     * likes.
+     */
+    private Page getSnapshotPage(long snapshot, PageId pid, Permissions perm, ScanRing ring)
+        throws DbException {
+        if(perm != Permissions.READ_ONLY) {
+            throw new DbException("read-only transaction cannot write page " + pid);
+        }
+        Page page = resident(pid, ring);
+        byte[] data = versions.read(snapshot, pid, page::getPageData);
+        try {
+            return Database.getCatalog().getDatabaseFile(pid.getTableId()).createPage(pid, data);
+        } catch (IOException e) {
+            throw new DbException("could not copy page " + pid + ": " + e.getMessage());
+        }
+    }
+
+    /** Look up a page, reading it into the pool if it is not resident. */
+    private Page resident(PageId pid, ScanRing ring) throws DbException {
+        BufferPoolPartition partition = partitionOf(pid);
+        Page page = partition.lookup(pid, ring);
+        boolean waited = false;
+        if(page == null && readAheadEnabled && readAhead.awaitRead(pid)) {
+            waited = true;
+            page = partition.lookup(pid, ring);
+        }
+        boolean miss = page == null;
+        while(page == null) {
+            page = load(partition, pid, ring);
+        }
+        if(readAheadEnabled) {
+            readAhead.pageAccessed(pid, ring, miss, waited);
         }
-        lockManager.acquire(tid, pid, perm);
         return page;
     }
 
+    /**
+     * Read a page from disk and install it in its partition.
+     *
+     * @return the resident copy of the page, or null if the page was written
+     *         while it was read and has to be read again
+     */
+    private Page load(BufferPoolPartition partition, PageId pid, ScanRing ring) throws DbException {
+        long version = partition.getVersion();
+        if(arena != null) {
+            withFreeFrame(partition, () -> {
+                partition.makeRoom();
+                return null;
+            });
+        }
+        // read outside the latch so that misses don't serialize on disk I/O
+        Page loaded = readPage(pid);
+        if(ring != null) {
+            PageId recycled = ring.add(pid);
+            if(recycled != null && !recycled.equals(pid)) {
+                partitionOf(recycled).recycle(recycled);
+            }
+        }
+        return withFreeFrame(partition, () -> partition.install(pid, loaded, ring, version));
+    }
+
+    /** An operation on a partition that may have to evict a page. */
+    private interface FrameAction<T> {
+        T run() throws DbException;
+    }
+
+    /**
+     * Run an action that may evict a page of partition. If every frame of
+     * the partition holds changes that are not on disk, pages of the
+     * partition are written out, the dirty ones only in STEAL mode, and the
+     * action is retried.
+     */
+    private <T> T withFreeFrame(BufferPoolPartition partition, FrameAction<T> action) throws DbException {
+        while(true) {
+            try {
+                return action.run();
+            } catch (BufferPoolPartition.NoFreeFrameException e) {
+                if(!cleanOne(partition)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /** Write out one page of partition; return false if none could be. */
+    private boolean cleanOne(BufferPoolPartition partition) throws DbException {
+        boolean steal = writePolicy == WritePolicy.STEAL_NO_FORCE;
+        for(PageId pid : partition.pagesToClean(Integer.MAX_VALUE)) {
+            try {
+                if(writeBack(pid, steal)) {
+                    return true;
+                }
+            } catch (IOException e) {
+                throw new DbException("could not write page " + pid + ": " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read a page into the pool ahead of a scan, without locking it.
+     *
+     * @return true if the page was read, false if it was resident already
+     */
+    boolean prefetch(PageId pid, ScanRing ring) throws DbException {
+        BufferPoolPartition partition = partitionOf(pid);
+        if(partition.peek(pid) != null) {
+            return false;
+        }
+        return load(partition, pid, ring) != null;
+    }
+
+    /** Read a page from disk, into an arena frame in off-heap mode. */
+    private Page readPage(PageId pid) {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        return arena == null ? file.readPage(pid) : file.readPage(pid, arena);
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -129,6 +626,33 @@ public class BufferPool {
         transactionComplete(tid, true);
     }
 
+    /**
+     * Lock a whole table for a transaction, SHARED for READ_ONLY and
+     * EXCLUSIVE otherwise, so that getPage takes no page locks on it.
+     * Meant for operations that touch most pages of a large table.
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException {
+        if(versions.snapshotOf(tid) != null) {
+            return;
+        }
+        lockManager.acquireTable(tid, tableId, perm);
+    }
+
+    /**
+     * Replace a transaction's page locks in a table by a table lock once it
+     * holds more than threshold of them.
+     *
+     * @see LockManager#DEFAULT_ESCALATION_THRESHOLD
+     */
+    public void setEscalationThreshold(int threshold) {
+        lockManager.setEscalationThreshold(threshold);
+    }
+
+    public int getEscalationThreshold() {
+        return lockManager.getEscalationThreshold();
+    }
+
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
@@ -148,24 +672,95 @@ public class BufferPool {
         // not necessary for lab1|lab2
         if(commit) {
             try {
-                flushPages(tid);
+                commit(tid, false);
             } catch (IOException e) {
-                e.printStackTrace();
+                throw new RuntimeException("could not commit transaction " + tid.getId(), e);
             }
+            return;
+        }
+        restorePages(tid);
+        versions.abort(tid);
+        versions.end(tid);
+        lockManager.releaseAll(tid);
+    }
+
+    /**
+     * Commit a transaction and append its COMMIT record to the log. The
+     * record is forced before the transaction's changes are published to
+     * snapshots and its locks are released, so no other transaction can
+     * build on a commit that a crash could still undo.
+     *
+     * @throws IOException if the changes or the COMMIT record could not be
+     *         logged; the transaction then keeps its locks and should be
+     *         aborted
+     */
+    public void commitTransaction(TransactionId tid) throws IOException {
+        commit(tid, true);
+    }
+
+    private void commit(TransactionId tid, boolean logCommit) throws IOException {
+        if(writePolicy == WritePolicy.STEAL_NO_FORCE) {
+            logPages(tid);
         } else {
-            for (Page page : map.values()) {
-                if(tid.equals(page.isDirty())) {
-                    discardPage(page.getId());
-                    page = Database.getCatalog().getDatabaseFile(page.getId().getTableId()).readPage(page.getId());
+            flushPages(tid);
+        }
+        if(logCommit) {
+            Database.getLogFile().logCommit(tid);
+        }
+        versions.commit(tid);
+        versions.end(tid);
+        lockManager.releaseAll(tid);
+    }
+
+    /**
+     * Make tid a read-only transaction that sees the database as of now.
+     * getPage then hands it copies of the pages as they were when the last
+     * transaction committed before this call, without taking locks, so it
+     * neither waits for writers nor keeps them waiting. Writers save the
+     * committed images of the pages they change for as long as snapshots
+     * may need them.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.begin(tid);
+    }
+
+    /** @return the number of replaced page versions kept for snapshots */
+    public int getSnapshotVersionCount() {
+        return versions.getVersionCount();
+    }
+
+    /**
+     * Replace every page dirtied by an aborting transaction with its last
+     * logged version. That is the on-disk version, unless pages may stay
+     * unwritten after their changes are logged (STEAL mode), in which case
+     * it is the page's before image. Changes that were logged are undone by
+     * {@link LogFile#rollback}.
+     */
+    void restorePages(TransactionId tid) {
+        for(BufferPoolPartition partition : partitions) {
+            for(Page page : partition.dirtyPages(tid)) {
+                PageId pid = page.getId();
+                if(writePolicy == WritePolicy.STEAL_NO_FORCE) {
+                    page = page.getBeforeImage();
+                    // the monitor keeps the page writer from logging it meanwhile
+                    synchronized(Database.getLogFile()) {
+                        partition.replace(page);
+                    }
+                } else {
+                    partition.discard(pid);
+                    page = readPage(pid);
                     try {
-                        addToBufferPool(page.getId(), page);
+                        partition.put(pid, page);
                     } catch (DbException e) {
                         e.printStackTrace();
                     }
                 }
+                if(page instanceof HeapPage) {
+                    // the aborted inserts and deletes no longer take or free slots
+                    ((HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).pageRestored((HeapPage) page);
+                }
             }
         }
-        lockManager.releaseAll(tid);
     }
 
     /**
@@ -188,9 +783,7 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         List<Page> pages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid, t);
-        for(Page page : pages) {
-            addToBufferPool(page.getId(), page);
-        }
+        installDirtyPages(tid, pages);
     }
 
     /**
@@ -211,7 +804,34 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         DbFile dbFile = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
-        dbFile.deleteTuple(tid, t);
+        List<Page> pages = dbFile.deleteTuple(tid, t);
+        installDirtyPages(tid, pages);
+    }
+
+    /**
+     * Mark the pages modified by an insert or delete as dirtied by tid and
+     * make them the resident versions, so the eviction policy can no longer
+     * pick them and the changes are not lost before the transaction completes.
+     * <p>
+     * A DbFile whose insert or delete fails halfway also installs the pages
+     * it got for writing so far, since some of them may already be changed
+     * and an abort only restores dirty pages.
+     */
+    public void installDirtyPages(TransactionId tid, List<Page> pages) throws DbException {
+        for(Page page : pages) {
+            ReentrantLock latch = latchOf(page.getId());
+            latch.lock();
+            try {
+                page.markDirty(true, tid);
+            } finally {
+                latch.unlock();
+            }
+            BufferPoolPartition partition = partitionOf(page.getId());
+            withFreeFrame(partition, () -> {
+                partition.put(page.getId(), page);
+                return null;
+            });
+        }
     }
 
     /**
@@ -219,14 +839,14 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for(Page page : map.values()) {
-            if(page.isDirty() != null) {
-                flushPage(page.getId());
-            }
+        List<Page> pages = new ArrayList<>();
+        for(BufferPoolPartition partition : partitions) {
+            pages.addAll(partition.dirtyPages());
         }
+        flushPages(pages);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -237,92 +857,214 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
         if(pid == null) return;
-        synchronized (cache) {
-            map.remove(pid);
-//            cache.remove(pid);
-        }
+        partitionOf(pid).invalidate(pid);
+        recLSNs.remove(pid);
+        pageLogEnds.remove(pid);
+    }
+
+    /**
+     * Return a snapshot of the dirty page table, mapping every page with
+     * logged changes that are not on disk yet to the LSN of the first of
+     * those changes. Checkpoints record it so recovery can skip the log
+     * records of pages that were written since.
+     */
+    Map<PageId, Long> dirtyPageTable() {
+        return new HashMap<>(recLSNs);
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        if(map.containsKey(pid)) {
-            Page page = map.get(pid);
-            TransactionId tid = page.isDirty();
-            if(tid != null) {
-                Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
-                Database.getLogFile().force();
-            }
-            page.markDirty(false, null);
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+        Page page = partitionOf(pid).peek(pid);
+        if(page != null) {
+            flushPage(page);
         }
     }
 
-    /** Write all pages of the specified transaction to disk.
+    /**
+     * Writes a resident page to disk, logging it first if it is dirty.
+     * Runs without any partition latch, so the log and disk I/O never block
+     * getPage calls on the same partition.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
-        for(Page page : map.values()) {
-            if(tid.equals(page.isDirty())) {
-                page.setBeforeImage();
-                flushPage(page.getId());
+    private void flushPage(Page page) throws IOException {
+        writePage(page, true);
+    }
+
+    /**
+     * Writes resident pages to disk, logging the dirty ones first. The log is
+     * forced once for all of them rather than once per page.
+     */
+    private void flushPages(List<Page> pages) throws IOException {
+        for(Page page : pages) {
+            logChanges(page);
+        }
+        for(Page page : pages) {
+            writePage(page, true);
+        }
+    }
+
+    /**
+     * Log the changes of the pages dirtied by tid and mark them clean. They
+     * stay in the dirty page table until they are written.
+     */
+    private void logPages(TransactionId tid) throws IOException {
+        for(BufferPoolPartition partition : partitions) {
+            for(Page page : partition.dirtyPages(tid)) {
+                ReentrantLock latch = latchOf(page.getId());
+                latch.lock();
+                try {
+                    logChanges(page);
+                    page.markDirty(false, null);
+                } finally {
+                    latch.unlock();
+                }
+                partition.pageCleaned(page.getId());
             }
         }
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Append an UPDATE record for the changes of a dirty page since its
+     * before image, if there are any. The logged image becomes the page's
+     * before image, so the next record for the page only holds what changed
+     * after this one.
      */
-    private synchronized  void evictPage() throws DbException {
-        // some code goes here
-        // not necessary for lab1
-        assert map.size() == numPages;
-        for(Page page : map.values()) {
-            // 留下脏页刷盘
-            if(page.isDirty() == null) {
-                map.remove(page.getId());
+    private void logChanges(Page page) throws IOException {
+        LogFile log = Database.getLogFile();
+        synchronized(log) {
+            TransactionId tid = page.isDirty();
+            if(tid == null) {
                 return;
             }
+            Page before = page.getBeforeImage();
+            page.setBeforeImage();
+            Page after = page.getBeforeImage();
+            if(!Arrays.equals(before.getPageData(), after.getPageData())) {
+                log.logWrite(tid, before, after, this);
+            }
+        }
+    }
+
+    /**
+     * Called by the LogFile, under its monitor, for every UPDATE record it
+     * appends for a page of this pool.
+     *
+     * @param lsn the LSN of the record
+     * @param logEnd the number of bytes appended to the log up to the end of
+     *               the record
+     */
+    void pageLogged(PageId pid, long lsn, long logEnd) {
+        recLSNs.putIfAbsent(pid, lsn);
+        pageLogEnds.put(pid, logEnd);
+    }
+
+    /** @return the resident copy of a page, or null */
+    Page residentPage(PageId pid) {
+        return partitionOf(pid).peek(pid);
+    }
+
+    /**
+     * Make page the resident version of its id, if that id is resident.
+     *
+     * @return false if the page is not resident
+     */
+    boolean replaceResident(Page page) {
+        return partitionOf(page.getId()).replace(page);
+    }
+
+    /**
+     * The pages to write so that every partition has at least the given
+     * fraction of its frames free or clean.
+     */
+    List<PageId> pagesToClean(double fraction) {
+        List<PageId> pids = new ArrayList<>();
+        for(BufferPoolPartition partition : partitions) {
+            pids.addAll(partition.pagesToClean((int) Math.ceil(fraction * partition.getCapacity())));
+        }
+        return pids;
+    }
+
+    /**
+     * Write a resident page to disk for the page writer, or to free a frame.
+     * A dirty page is only written if steal is true, after logging its
+     * changes.
+     *
+     * @return true if the page was written
+     */
+    boolean writeBack(PageId pid, boolean steal) throws IOException {
+        Page page = partitionOf(pid).peek(pid);
+        return page != null && writePage(page, steal);
+    }
+
+    /**
+     * Write the last logged image of a resident page to disk, once the log
+     * is durable up to the page's last record. A dirty page is logged first,
+     * or skipped if logDirty is false. Afterwards the page is marked clean,
+     * unless it changed while it was written.
+     *
+     * @return false if the page was not written
+     */
+    private boolean writePage(Page page, boolean logDirty) throws IOException {
+        PageId pid = page.getId();
+        LogFile log = Database.getLogFile();
+        ReentrantLock latch = latchOf(pid);
+        latch.lock();
+        try {
+            Page image;
+            Long logEnd;
+            synchronized(log) {
+                if(partitionOf(pid).peek(pid) != page) {
+                    return false;
+                }
+                if(page.isDirty() != null) {
+                    if(!logDirty) {
+                        return false;
+                    }
+                    logChanges(page);
+                }
+                image = page.getBeforeImage();
+                logEnd = pageLogEnds.get(pid);
+            }
+            if(logEnd != null) {
+                log.awaitDurable(logEnd);
+            }
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+            partitionOf(pid).pageWritten();
+            synchronized(log) {
+                // a record appended meanwhile keeps the page in the table
+                if(Objects.equals(logEnd, pageLogEnds.get(pid))) {
+                    recLSNs.remove(pid);
+                    pageLogEnds.remove(pid);
+                }
+            }
+            if(page.isDirty() != null && Arrays.equals(page.getPageData(), image.getPageData())) {
+                page.markDirty(false, null);
+            }
+            partitionOf(pid).pageCleaned(pid);
+            return true;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** Write all pages of the specified transaction to disk.
+     */
+    public void flushPages(TransactionId tid) throws IOException {
+        // some code goes here
+        // not necessary for lab1|lab2
+        List<Page> pages = new ArrayList<>();
+        for(BufferPoolPartition partition : partitions) {
+            pages.addAll(partition.dirtyPages(tid));
         }
-        //如果没有脏页，采用LRU
-//        Iterator<Map.Entry<PageId, Page>> iterator = cache.entrySet().iterator();
-//        while(iterator.hasNext()) {
-//            Map.Entry<PageId, Page> first = iterator.next();
-//            synchronized (cache) {
-//                map.remove(first.getKey());
-//                cache.remove(first.getKey());
-//            }
-//            return;
-//        }
-        //如果没有脏页，抛出异常
-        throw new DbException("No page to evict");
-    }
-
-    /**
-     * load page into a BufferPool, if BufferPool is full, evict a page
-     * @param pid
-     * @param page
-     * @throws DbException
-     */
-    private void addToBufferPool(PageId pid, Page page) throws DbException {
-        if(!map.containsKey(pid) && map.size() >= numPages) {
-            evictPage();
-        }
-//        synchronized (cache) {
-//            map.put(pid, page);
-//            cache.put(pid, page);
-//        }
-        map.put(pid, page);
+        flushPages(pages);
     }
 
 }
@@ -0,0 +1,352 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * One hash partition of the BufferPool. A partition owns a fixed share of the
+ * pool's frames together with its own frame table and eviction state, all of
+ * which are protected by the partition's monitor. Threads working on pages of
+ * different partitions never contend with each other.
+ * <p>
+ * No method of a partition performs I/O or calls into the LogFile while
+ * holding the monitor; see the locking note in {@link LogFile}.
+ *
+ * @see BufferPool
+ */
+class BufferPoolPartition {
+
+    /**
+     * Thrown when a page has to be evicted but every frame holds changes
+     * that are not on disk yet.
+     */
+    static final class NoFreeFrameException extends DbException {
+        private static final long serialVersionUID = 1L;
+
+        NoFreeFrameException() {
+            super("No page to evict");
+        }
+    }
+
+    private final int capacity;
+
+    /** Frames given up to working memory granted by the BufferPool */
+    private int reserved;
+
+    private final Map<PageId, Page> frames;
+
+    private final EvictionPolicy evictionPolicy;
+
+    /**
+     * Pages loaded through a ScanRing that nobody but the ring's own scan has
+     * hit since, with the ring they belong to.
+     */
+    private final Map<PageId, ScanRing> ringPages;
+
+    /** Off-heap frames pages leaving the partition give back, or null. */
+    private final PageArena arena;
+
+    /**
+     * Pages whose logged changes are not on disk yet; the keys of the pool's
+     * dirty page table. Such pages are not evicted even if they are clean.
+     */
+    private final Set<PageId> unwritten;
+
+    /**
+     * Bumped whenever a page of this partition is written to disk or
+     * invalidated, so that a read that raced with either can be detected.
+     */
+    private long version;
+
+    BufferPoolPartition(int capacity, EvictionPolicy.Kind policy, PageArena arena, Set<PageId> unwritten) {
+        this.capacity = capacity;
+        this.frames = new HashMap<>(capacity * 2);
+        this.evictionPolicy = policy.create(capacity);
+        this.ringPages = new HashMap<>();
+        this.arena = arena;
+        this.unwritten = unwritten;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Give up frames to working memory, or take them back. Clean pages beyond
+     * what is left are evicted right away, the others as they become clean
+     * and new pages are read.
+     */
+    synchronized void setReserved(int pages) {
+        reserved = pages;
+        while(frames.size() > limit()) {
+            if(!tryEvict()) {
+                break;
+            }
+        }
+    }
+
+    /** @return the number of frames pages may use while memory is granted */
+    private int limit() {
+        return Math.max(1, capacity - reserved);
+    }
+
+    EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * Return the resident copy of a page and count the hit, or null if the
+     * page is not in this partition.
+     *
+     * @param ring the ring of the scan asking for the page, or null
+     */
+    synchronized Page lookup(PageId pid, ScanRing ring) {
+        Page page = frames.get(pid);
+        if(page != null) {
+            evictionPolicy.pageHit(pid);
+            claim(pid, ring);
+        }
+        return page;
+    }
+
+    /**
+     * A page that somebody other than its ring's scan asks for is no longer
+     * the ring's to recycle; the scan itself may find a page read ahead.
+     */
+    private void claim(PageId pid, ScanRing ring) {
+        if(ring == null || ringPages.get(pid) != ring) {
+            ringPages.remove(pid);
+        }
+    }
+
+    /** Return the resident copy of a page without counting an access. */
+    synchronized Page peek(PageId pid) {
+        return frames.get(pid);
+    }
+
+    /** @return the current version, to be passed to install after a read */
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /** Record that a page of this partition was written to disk. */
+    synchronized void pageWritten() {
+        version++;
+    }
+
+    /**
+     * Let the eviction policy know that a page may be evictable again, if
+     * it is resident and clean now.
+     */
+    synchronized void pageCleaned(PageId pid) {
+        Page page = frames.get(pid);
+        if(page != null && isClean(pid, page)) {
+            evictionPolicy.pageCleaned(pid);
+        }
+    }
+
+    /**
+     * Install a page that was just read from disk, unless another thread
+     * installed it first, in which case that copy wins. If a page of the
+     * partition was written or invalidated since the read started, the
+     * loaded copy may be stale and is dropped.
+     *
+     * @param ring the ScanRing the page was read for, or null
+     * @param readVersion the result of getVersion before the read
+     * @return the resident copy of the page, or null if it must be read again
+     */
+    synchronized Page install(PageId pid, Page loaded, ScanRing ring, long readVersion) throws DbException {
+        Page page = frames.get(pid);
+        if(page != null) {
+            evictionPolicy.pageHit(pid);
+            claim(pid, ring);
+            release(loaded);
+            return page;
+        }
+        if(readVersion != version) {
+            release(loaded);
+            return null;
+        }
+        put(pid, loaded);
+        if(ring != null) {
+            ringPages.put(pid, ring);
+        }
+        return loaded;
+    }
+
+    /**
+     * Give up the frame of a page a ScanRing is done with, if the page still
+     * belongs to the ring and is clean.
+     */
+    synchronized void recycle(PageId pid) {
+        if(ringPages.remove(pid) != null) {
+            Page page = frames.get(pid);
+            if(page != null && isClean(pid, page)) {
+                discard(pid);
+            }
+        }
+    }
+
+    /**
+     * Make page the resident version of pid, evicting another page if the
+     * partition is full.
+     */
+    synchronized void put(PageId pid, Page page) throws DbException {
+        if(frames.containsKey(pid)) {
+            // a newer version of a resident page, e.g. one dirtied by insertTuple
+            Page old = frames.put(pid, page);
+            if(old != page) {
+                release(old);
+            }
+            pageCleaned(pid);
+            return;
+        }
+        makeRoom();
+        frames.put(pid, page);
+        evictionPolicy.pageLoaded(pid);
+    }
+
+    /**
+     * Evict pages if the partition is full. Called before reading a page
+     * into an arena frame, so that a frame is free for it. The frames given
+     * up to working memory are only used while no page can be evicted.
+     */
+    synchronized void makeRoom() throws DbException {
+        while(frames.size() >= limit()) {
+            if(frames.size() >= capacity) {
+                evict();
+            } else if(!tryEvict()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Make page the resident version of its id if that id is resident.
+     *
+     * @return false if the page is not resident
+     */
+    synchronized boolean replace(Page page) {
+        PageId pid = page.getId();
+        if(!frames.containsKey(pid)) {
+            return false;
+        }
+        ringPages.remove(pid);
+        Page old = frames.put(pid, page);
+        if(old != page) {
+            release(old);
+        }
+        pageCleaned(pid);
+        return true;
+    }
+
+    /** Remove a page from this partition, dirty or not. */
+    synchronized void discard(PageId pid) {
+        ringPages.remove(pid);
+        Page page = frames.remove(pid);
+        if(page != null) {
+            evictionPolicy.pageRemoved(pid);
+            release(page);
+        }
+    }
+
+    /**
+     * Remove a page whose on-disk version is being replaced, so that reads of
+     * it that are in flight do not install the old version.
+     */
+    synchronized void invalidate(PageId pid) {
+        discard(pid);
+        version++;
+    }
+
+    /** Give back the arena frame of a page that is no longer resident. */
+    private void release(Page page) {
+        if(arena != null) {
+            arena.release(page);
+        }
+    }
+
+    /** @return a snapshot of the pages that are currently dirty */
+    synchronized List<Page> dirtyPages() {
+        List<Page> dirty = new ArrayList<>();
+        for(Page page : frames.values()) {
+            if(page.isDirty() != null) {
+                dirty.add(page);
+            }
+        }
+        return dirty;
+    }
+
+    /** @return a snapshot of the pages dirtied by the given transaction */
+    synchronized List<Page> dirtyPages(TransactionId tid) {
+        List<Page> dirty = new ArrayList<>();
+        for(Page page : frames.values()) {
+            if(tid.equals(page.isDirty())) {
+                dirty.add(page);
+            }
+        }
+        return dirty;
+    }
+
+    synchronized int size() {
+        return frames.size();
+    }
+
+    /**
+     * Pick the pages to write out so that at least target frames are free
+     * or hold clean pages, which can be evicted without any I/O. Pages
+     * whose changes are committed come before dirty pages.
+     *
+     * @return the pages to write, empty if enough frames are clean already
+     */
+    synchronized List<PageId> pagesToClean(int target) {
+        List<PageId> committed = new ArrayList<>();
+        List<PageId> dirty = new ArrayList<>();
+        for(Map.Entry<PageId, Page> e : frames.entrySet()) {
+            if(e.getValue().isDirty() != null) {
+                dirty.add(e.getKey());
+            } else if(unwritten.contains(e.getKey())) {
+                committed.add(e.getKey());
+            }
+        }
+        int clean = capacity - committed.size() - dirty.size();
+        if(clean >= target) {
+            return Collections.emptyList();
+        }
+        committed.addAll(dirty);
+        return committed.subList(0, Math.min(committed.size(), target - clean));
+    }
+
+    /** A page can be evicted if it is clean and all its changes are on disk. */
+    private boolean isClean(PageId pid, Page page) {
+        return page.isDirty() == null && !unwritten.contains(pid);
+    }
+
+    /**
+     * Discards a page from the partition.
+     * The victim is chosen by the eviction policy among the clean pages only;
+     * dirty pages, and pages whose changes are not on disk yet, stay in the
+     * pool until the BufferPool writes them out.
+     */
+    private void evict() throws DbException {
+        //如果没有干净页，抛出异常
+        if(!tryEvict()) {
+            throw new NoFreeFrameException();
+        }
+    }
+
+    /** Evict a page if one is clean; return false if none is. */
+    private boolean tryEvict() {
+        PageId victim = evictionPolicy.chooseVictim(pid -> {
+            Page page = frames.get(pid);
+            return page == null || isClean(pid, page);
+        });
+        if(victim == null) {
+            return false;
+        }
+        discard(victim);
+        return true;
+    }
+}
@@ -0,0 +1,106 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement. Every tracked page owns a slot on a
+ * circular array together with a reference bit that is set on each hit. The
+ * clock hand sweeps the array, clearing reference bits, and stops on the first
+ * evictable page whose bit is already clear. Hits and loads are O(1), and a
+ * victim is found in at most two sweeps.
+ */
+public class ClockEvictionPolicy extends AbstractEvictionPolicy {
+
+    private PageId[] slots;
+    private boolean[] referenced;
+    private final Map<PageId, Integer> slotOf;
+    private final Deque<Integer> freeSlots;
+    private int hand;
+
+    public ClockEvictionPolicy(int capacity) {
+        int n = Math.max(1, capacity);
+        this.slots = new PageId[n];
+        this.referenced = new boolean[n];
+        this.slotOf = new HashMap<>(n * 2);
+        this.freeSlots = new ArrayDeque<>(n);
+        for (int i = 0; i < n; i++) {
+            freeSlots.addLast(i);
+        }
+        this.hand = 0;
+    }
+
+    @Override
+    protected void recordHit(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null) {
+            referenced[slot] = true;
+        }
+    }
+
+    @Override
+    protected void recordLoad(PageId pid) {
+        if (slotOf.containsKey(pid)) {
+            recordHit(pid);
+            return;
+        }
+        if (freeSlots.isEmpty()) {
+            grow();
+        }
+        int slot = freeSlots.removeFirst();
+        slots[slot] = pid;
+        // a freshly loaded page has not earned its second chance yet
+        referenced[slot] = false;
+        slotOf.put(pid, slot);
+    }
+
+    public void pageRemoved(PageId pid) {
+        Integer slot = slotOf.remove(pid);
+        if (slot != null) {
+            slots[slot] = null;
+            referenced[slot] = false;
+            freeSlots.addLast(slot);
+        }
+    }
+
+    public void pageCleaned(PageId pid) {
+        // the hand tests every page again on its next sweep anyway
+    }
+
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        if (slotOf.isEmpty()) {
+            return null;
+        }
+        // the first sweep may only clear reference bits; the second one is
+        // guaranteed to stop on any evictable page
+        for (int steps = 0; steps < 2 * slots.length; steps++) {
+            int slot = hand;
+            hand = (hand + 1) % slots.length;
+            PageId pid = slots[slot];
+            if (pid == null) {
+                continue;
+            }
+            if (referenced[slot]) {
+                referenced[slot] = false;
+                continue;
+            }
+            if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    private void grow() {
+        int old = slots.length;
+        slots = Arrays.copyOf(slots, old * 2);
+        referenced = Arrays.copyOf(referenced, old * 2);
+        for (int i = old; i < old * 2; i++) {
+            freeSlots.addLast(i);
+        }
+    }
+}
@@ -24,6 +24,27 @@ public interface DbFile {
      */
     Page readPage(PageId id);
 
+    /**
+     * Read the specified page from disk into a frame of the given arena, if
+     * this kind of file supports off-heap pages and a frame is free. Files
+     * that don't simply return {@link #readPage(PageId)}.
+     *
+     * @throws IllegalArgumentException if the page does not exist in this file.
+     * @see PageArena
+     */
+    default Page readPage(PageId id, PageArena arena) {
+        return readPage(id);
+    }
+
+    /**
+     * Build a page of this file from its serialized form, as returned by
+     * {@link Page#getPageData()}. Recovery uses this to turn page images it
+     * reconstructed from the log back into pages it can write.
+     *
+     * @throws IOException if the data cannot be parsed
+     */
+    Page createPage(PageId id, byte[] data) throws IOException;
+
     /**
      * Push the specified page to disk.
      *
@@ -0,0 +1,144 @@
+package simpledb.storage;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * DbFileChannel is the long-lived handle a DbFile does its page I/O through.
+ * The underlying FileChannel is opened on first use and then kept open, and
+ * all reads and writes are positional, so there is no per-page open/close
+ * and no shared seek position: concurrent reads of the same file proceed in
+ * parallel.
+ * <p>
+ * A DbFileChannel can also hand out read-only views of a memory mapping of
+ * the file, see {@link #map(long, int)}. The mapping is taken lazily and
+ * replaced by a larger one when the file has grown past its end.
+ *
+ * @see HeapFile
+ * @see simpledb.index.BTreeFile
+ */
+public class DbFileChannel implements Closeable {
+
+    private final File file;
+
+    private volatile FileChannel channel;
+
+    /** Read-only mapping of the file as it was when last mapped, or null. */
+    private volatile MappedByteBuffer mapping;
+
+    public DbFileChannel(File file) {
+        this.file = file;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel c = channel;
+        // an interrupted read or write closes the channel, so reopen it then
+        if (c == null || !c.isOpen()) {
+            synchronized (this) {
+                c = channel;
+                if (c == null || !c.isOpen()) {
+                    c = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    channel = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    /** @return the current size of the file in bytes */
+    public long size() throws IOException {
+        return channel().size();
+    }
+
+    /**
+     * Fill dst with the bytes of the file starting at position.
+     *
+     * @throws EOFException if the file ends before dst is full
+     */
+    public void read(ByteBuffer dst, long position) throws IOException {
+        FileChannel c = channel();
+        while (dst.hasRemaining()) {
+            int n = c.read(dst, position);
+            if (n < 0) {
+                throw new EOFException("read past end of " + file);
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * Read length bytes of the file starting at position.
+     *
+     * @throws EOFException if the file ends before length bytes were read
+     */
+    public byte[] read(long position, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        read(ByteBuffer.wrap(bytes), position);
+        return bytes;
+    }
+
+    /** Write all of data to the file starting at position. */
+    public void write(byte[] data, long position) throws IOException {
+        FileChannel c = channel();
+        ByteBuffer src = ByteBuffer.wrap(data);
+        while (src.hasRemaining()) {
+            position += c.write(src, position);
+        }
+    }
+
+    /**
+     * Return a read-only view of length bytes of the file starting at
+     * position, backed by a memory mapping of the file. Writes made through
+     * this channel show through the view. The file is mapped again if it has
+     * grown past the current mapping.
+     *
+     * @return the view, or null if the range lies beyond the end of the file
+     *         or beyond what a single mapping can cover
+     */
+    public ByteBuffer map(long position, int length) throws IOException {
+        long end = position + length;
+        if (end > Integer.MAX_VALUE) {
+            return null;
+        }
+        MappedByteBuffer m = mapping;
+        if (m == null || m.capacity() < end) {
+            synchronized (this) {
+                m = mapping;
+                if (m == null || m.capacity() < end) {
+                    long size = Math.min(channel().size(), Integer.MAX_VALUE);
+                    if (size < end) {
+                        return null;
+                    }
+                    m = channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    mapping = m;
+                }
+            }
+        }
+        ByteBuffer view = m.duplicate();
+        view.limit((int) end);
+        view.position((int) position);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    /** Force all writes so far to disk. */
+    public void force() throws IOException {
+        channel().force(false);
+    }
+
+    /** Close the channel; it is reopened if the file is used again. */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        // an existing mapping stays valid until it is garbage collected
+        mapping = null;
+    }
+}
@@ -0,0 +1,75 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * EvictionPolicy decides which resident page the BufferPool gives up when it
+ * needs a free frame. The BufferPool reports every hit, load and removal, and
+ * the policy keeps enough bookkeeping to answer {@link #chooseVictim} without
+ * walking the whole pool.
+ * <p>
+ * Implementations are not thread safe; the BufferPool only calls them while
+ * holding its own latch.
+ *
+ * @see BufferPool
+ */
+public interface EvictionPolicy {
+
+    /** The replacement algorithms the BufferPool knows how to build. */
+    enum Kind {
+        CLOCK,
+        LRU_K,
+        TWO_Q;
+
+        /**
+         * Create a fresh policy of this kind for a pool of the given size.
+         *
+         * @param capacity the number of frames managed by the policy
+         */
+        public EvictionPolicy create(int capacity) {
+            switch (this) {
+                case CLOCK:
+                    return new ClockEvictionPolicy(capacity);
+                case LRU_K:
+                    return new LRUKEvictionPolicy(capacity, LRUKEvictionPolicy.DEFAULT_K);
+                default:
+                    return new TwoQEvictionPolicy(capacity);
+            }
+        }
+    }
+
+    /** A page that was already resident has been requested again. */
+    void pageHit(PageId pid);
+
+    /** A page has been read from disk and installed in the pool. */
+    void pageLoaded(PageId pid);
+
+    /** A page has left the pool, either evicted or discarded. */
+    void pageRemoved(PageId pid);
+
+    /**
+     * A page that was not evictable, e.g. because it was dirty, may be
+     * evictable again, e.g. because it was written to disk.
+     */
+    void pageCleaned(PageId pid);
+
+    /**
+     * Pick the page to evict next. The page is not removed from the policy;
+     * the BufferPool calls {@link #pageRemoved} once it has dropped it.
+     * <p>
+     * A policy may set aside the candidates that fail the test until
+     * {@link #pageCleaned} is reported for them, so that pages which stay
+     * dirty for long are not tested again on every call.
+     *
+     * @param evictable tells whether a candidate may be evicted right now
+     *                  (e.g. it is not dirty)
+     * @return the victim, or null if no tracked page is evictable
+     */
+    PageId chooseVictim(Predicate<PageId> evictable);
+
+    /** @return the number of requests served from the pool */
+    long getHits();
+
+    /** @return the number of requests that had to read from disk */
+    long getMisses();
+}
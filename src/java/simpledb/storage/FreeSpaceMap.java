@@ -0,0 +1,255 @@
+package simpledb.storage;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * FreeSpaceMap records the number of free tuple slots of every page of a
+ * HeapFile, so that inserts can go straight to a page with room instead of
+ * locking and reading every full page in front of it.
+ * <p>
+ * The map is kept in memory and persisted in a sidecar file next to the heap
+ * file (same name plus {@link #SUFFIX}), holding a header followed by one
+ * unsigned two-byte count per page. The sidecar is updated whenever the
+ * HeapFile writes a page, so it describes the pages as they are on disk. In
+ * memory the counts also follow inserts and deletes of running transactions.
+ * <p>
+ * The header records the page size, the number of pages, the length and
+ * modification time of the heap file and a CRC of the counts. It is cleared
+ * while writes of the heap file are in flight and written again once they
+ * have all been recorded, so a sidecar that does not describe the heap file
+ * as it is on disk, e.g. after a crash or after the heap file was replaced,
+ * fails the check and the map is rebuilt from the page headers. So are pages
+ * appended to the heap file behind the map's back. When an aborting
+ * transaction rolls back its changes to a page, the count is taken again
+ * from the restored page.
+ * <p>
+ * The counts are hints. A page the map believes to have room may turn out to
+ * be full, because the transaction that filled it has not been written yet;
+ * HeapFile then corrects the count and moves on.
+ * <p>
+ * A sidecar whose heap file is gone, like that of a temporary table deleted
+ * on exit, is deleted the first time a map is loaded from its directory.
+ *
+ * @see HeapFile#insertTuple
+ */
+class FreeSpaceMap {
+
+    /** Suffix of the sidecar file name. */
+    static final String SUFFIX = ".fsm";
+
+    /** First four bytes of a valid sidecar: "FSM" and the format version. */
+    private static final int MAGIC = 0x46534d01;
+
+    /** First four bytes of a sidecar whose header is cleared. */
+    private static final int CLEARED = 0x46534d00;
+
+    // magic, page size, number of pages, heap file length and modification
+    // time, CRC of the counts
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 8;
+
+    private static final int ENTRY_SIZE = 2;
+
+    /** Directories whose orphaned sidecars were deleted already. */
+    private static final Set<File> swept = ConcurrentHashMap.newKeySet();
+
+    private final HeapFile heapFile;
+
+    private final DbFileChannel sidecar;
+
+    /** The counts as stored in the sidecar, for the first numPages pages. */
+    private byte[] entries = new byte[0];
+    private int numPages = -1;
+
+    /** Pages with at least one free slot. */
+    private final BitSet hasSpace = new BitSet();
+
+    /** Writes of the heap file that have started but not ended. */
+    private int writing;
+
+    /** True if a write of the heap file failed, so the header stays cleared. */
+    private boolean failed;
+
+    FreeSpaceMap(HeapFile heapFile) {
+        this.heapFile = heapFile;
+        this.sidecar = new DbFileChannel(new File(heapFile.getFile().getPath() + SUFFIX));
+    }
+
+    /**
+     * Return the first page at or after from that has a free slot according
+     * to the map, or -1 if there is none.
+     */
+    synchronized int pageWithSpace(int from) throws IOException {
+        refresh();
+        return hasSpace.nextSetBit(from);
+    }
+
+    /**
+     * Record the number of free slots of a page as seen in the buffer pool.
+     */
+    synchronized void update(int page, int freeSlots) throws IOException {
+        refresh();
+        set(page, freeSlots);
+    }
+
+    /**
+     * Announce a write of the heap file. Until it ends the sidecar may not
+     * match the heap file, so its header is cleared.
+     */
+    synchronized void writeStarted() throws IOException {
+        refresh();
+        if (writing++ == 0) {
+            sidecar.write(ByteBuffer.allocate(4).putInt(CLEARED).array(), 0);
+        }
+    }
+
+    /**
+     * End a write of the heap file announced by writeStarted, and persist the
+     * number of free slots of the page written.
+     *
+     * @param freeSlots the free slots of the page, or -1 if the write failed
+     */
+    synchronized void writeEnded(int page, int freeSlots) throws IOException {
+        try {
+            if (freeSlots < 0) {
+                failed = true;
+            } else {
+                set(page, freeSlots);
+                sidecar.write(Arrays.copyOfRange(entries, page * ENTRY_SIZE, (page + 1) * ENTRY_SIZE),
+                        HEADER_SIZE + (long) page * ENTRY_SIZE);
+            }
+        } finally {
+            writing--;
+        }
+        writeHeader();
+    }
+
+    private void set(int page, int freeSlots) {
+        if ((page + 1) * ENTRY_SIZE > entries.length) {
+            entries = Arrays.copyOf(entries, Math.max((page + 1) * ENTRY_SIZE, entries.length * 2));
+        }
+        numPages = Math.max(numPages, page + 1);
+        int count = Math.min(freeSlots, 0xffff);
+        entries[page * ENTRY_SIZE] = (byte) (count >> 8);
+        entries[page * ENTRY_SIZE + 1] = (byte) count;
+        hasSpace.set(page, freeSlots > 0);
+    }
+
+    /**
+     * Load the map on first use, or rebuild it if the sidecar does not match
+     * the heap file, and count the free slots of pages that were added to
+     * the heap file without the map noticing.
+     */
+    private void refresh() throws IOException {
+        int filePages = heapFile.numPages();
+        if (numPages < 0) {
+            sweep(heapFile.getFile().getAbsoluteFile().getParentFile());
+            numPages = 0;
+            load(filePages);
+        }
+        if (numPages < filePages) {
+            int first = numPages;
+            for (int page = first; page < filePages; page++) {
+                set(page, countFreeSlots(page));
+            }
+            sidecar.write(Arrays.copyOfRange(entries, first * ENTRY_SIZE, filePages * ENTRY_SIZE),
+                    HEADER_SIZE + (long) first * ENTRY_SIZE);
+            writeHeader();
+        }
+    }
+
+    /** Take the counts from the sidecar if its header matches the heap file. */
+    private void load(int filePages) throws IOException {
+        long size = sidecar.size();
+        if (size < HEADER_SIZE) {
+            return;
+        }
+        ByteBuffer header = ByteBuffer.wrap(sidecar.read(0, HEADER_SIZE));
+        File f = heapFile.getFile();
+        if (header.getInt() != MAGIC || header.getInt() != BufferPool.getPageSize()
+                || header.getInt() != filePages || header.getLong() != f.length()
+                || header.getLong() != f.lastModified()
+                || size < HEADER_SIZE + (long) filePages * ENTRY_SIZE) {
+            return;
+        }
+        long crc = header.getLong();
+        byte[] saved = sidecar.read(HEADER_SIZE, filePages * ENTRY_SIZE);
+        if (crc(saved, saved.length) != crc) {
+            return;
+        }
+        for (int page = 0; page < filePages; page++) {
+            set(page, ((saved[page * ENTRY_SIZE] & 0xff) << 8) | (saved[page * ENTRY_SIZE + 1] & 0xff));
+        }
+    }
+
+    /**
+     * Write a valid header for the counts recorded so far, unless writes of
+     * the heap file are in flight or one of them failed.
+     */
+    private void writeHeader() throws IOException {
+        if (writing > 0 || failed) {
+            return;
+        }
+        File f = heapFile.getFile();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(BufferPool.getPageSize());
+        header.putInt(numPages);
+        header.putLong(f.length());
+        header.putLong(f.lastModified());
+        header.putLong(crc(entries, numPages * ENTRY_SIZE));
+        sidecar.write(header.array(), 0);
+    }
+
+    private static long crc(byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return crc.getValue();
+    }
+
+    /** Count the free slots of a page from its header on disk. */
+    private int countFreeSlots(int page) throws IOException {
+        int slots = (BufferPool.getPageSize() * 8) / (heapFile.getTupleDesc().getSize() * 8 + 1);
+        byte[] header = heapFile.readHeader(page, (slots + 7) / 8);
+        int used = 0;
+        for (int i = 0; i < slots; i++) {
+            used += (header[i / 8] >> (i % 8)) & 1;
+        }
+        return slots - used;
+    }
+
+    /**
+     * Delete the sidecars in dir whose heap file no longer exists, once per
+     * directory. Only files that start like a sidecar are deleted.
+     */
+    private static void sweep(File dir) {
+        if (dir == null || !swept.add(dir)) {
+            return;
+        }
+        File[] orphans = dir.listFiles((d, name) -> name.endsWith(SUFFIX)
+                && !new File(d, name.substring(0, name.length() - SUFFIX.length())).exists());
+        if (orphans == null) {
+            return;
+        }
+        for (File orphan : orphans) {
+            int magic;
+            try (DataInputStream in = new DataInputStream(new FileInputStream(orphan))) {
+                magic = in.readInt();
+            } catch (IOException e) {
+                // too short, or gone already
+                continue;
+            }
+            if (magic == MAGIC || magic == CLEARED) {
+                orphan.delete();
+            }
+        }
+    }
+}
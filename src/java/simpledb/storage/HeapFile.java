@@ -9,6 +9,7 @@ import simpledb.transaction.TransactionId;
 
 import javax.xml.crypto.Data;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -27,6 +28,15 @@ public class HeapFile implements DbFile {
 
     private final TupleDesc td;
 
+    private final DbFileChannel channel;
+
+    private final boolean memoryMapped;
+
+    private final FreeSpaceMap freeSpace;
+
+    /** Held while a page is appended, from picking its number to writing it */
+    private final Object appendLatch = new Object();
+
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -35,9 +45,29 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally reading
+     * its pages through a memory mapping of the file. A memory mapped heap
+     * file hands out pages that are views of the mapping rather than parsed
+     * copies, which suits read-mostly tables; pages are only copied when they
+     * are modified.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param memoryMapped
+     *            true to read pages through a memory mapping
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
         // some code goes here
         this.file = f;
         this.td = td;
+        this.channel = new DbFileChannel(f);
+        this.memoryMapped = memoryMapped;
+        this.freeSpace = new FreeSpaceMap(this);
     }
 
     /**
@@ -50,6 +80,13 @@ public class HeapFile implements DbFile {
         return this.file;
     }
 
+    /**
+     * Returns true if pages of this file are read through a memory mapping.
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -80,37 +117,63 @@ public class HeapFile implements DbFile {
         // some code goes here
         int tableID = pid.getTableId();
         int pageNumber = pid.getPageNumber();
-
-        RandomAccessFile accessFile = null;
-
         try {
-            accessFile = new RandomAccessFile(this.file, "r");
-            if((pageNumber + 1) * BufferPool.getPageSize() > accessFile.length()) {
-                accessFile.close();
+            long offset = (long) pageNumber * BufferPool.getPageSize();
+            if(offset + BufferPool.getPageSize() > channel.size()) {
                 throw new IllegalArgumentException("No match page in HeapFile");
             }
+            HeapPageId pageId = new HeapPageId(tableID, pageNumber);
+            if(memoryMapped) {
+                ByteBuffer view = channel.map(offset, BufferPool.getPageSize());
+                if(view != null) {
+                    return new HeapPage(pageId, view);
+                }
+            }
+            byte[] bytes = channel.read(offset, BufferPool.getPageSize());
+            return new HeapPage(pageId, bytes);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        throw new IllegalArgumentException(String.format("table %d page %d is invalid", tableID, pageNumber));
+    }
 
-            byte[] bytes = new byte[BufferPool.getPageSize()];
-            accessFile.seek(pageNumber * BufferPool.getPageSize());
-            int len = accessFile.read(bytes, 0, BufferPool.getPageSize());
-            if(len != BufferPool.getPageSize()) {
-                throw new IllegalArgumentException(String.format("table %d page %d read %d bytes", tableID, pageNumber, len));
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid, PageArena arena) {
+        if(memoryMapped) {
+            // the mapping already keeps the page off the heap
+            return readPage(pid);
+        }
+        int frame = arena.allocate();
+        if(frame < 0) {
+            return readPage(pid);
+        }
+        int tableID = pid.getTableId();
+        int pageNumber = pid.getPageNumber();
+        try {
+            long offset = (long) pageNumber * BufferPool.getPageSize();
+            if(offset + BufferPool.getPageSize() > channel.size()) {
+                throw new IllegalArgumentException("No match page in HeapFile");
             }
-            HeapPageId pageId = new HeapPageId(tableID, pageNumber);
-            HeapPage page = new HeapPage(pageId, bytes);
+            // read straight into the frame, without a byte[] on the heap
+            channel.read(arena.frame(frame).duplicate(), offset);
+            HeapPage page = new HeapPage(new HeapPageId(tableID, pageNumber), arena, frame);
+            frame = -1;
             return page;
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            try {
-                accessFile.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+            if(frame >= 0) {
+                arena.release(frame);
             }
         }
         throw new IllegalArgumentException(String.format("table %d page %d is invalid", tableID, pageNumber));
     }
 
+    // see DbFile.java for javadocs
+    public Page createPage(PageId pid, byte[] data) throws IOException {
+        return new HeapPage((HeapPageId) pid, data);
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
@@ -119,11 +182,34 @@ public class HeapFile implements DbFile {
         if(pageNumber > numPages()) {
             throw new IllegalArgumentException("page is not in the HeapFile or pageId is wrong");
         }
-        RandomAccessFile accessFile = new RandomAccessFile(this.file, "rw");
-        accessFile.seek(pageNumber * BufferPool.getPageSize());
-        byte[] bytes = page.getPageData();
-        accessFile.write(bytes);
-        accessFile.close();
+        freeSpace.writeStarted();
+        int freeSlots = -1;
+        try {
+            channel.write(page.getPageData(), (long) pageNumber * BufferPool.getPageSize());
+            freeSlots = ((HeapPage) page).getNumEmptySlots();
+        } finally {
+            freeSpace.writeEnded(pageNumber, freeSlots);
+        }
+    }
+
+    /**
+     * Correct the free space recorded for a page whose changes were rolled
+     * back by an aborting transaction.
+     */
+    void pageRestored(HeapPage page) {
+        try {
+            freeSpace.update(page.getId().getPageNumber(), page.getNumEmptySlots());
+        } catch (IOException e) {
+            // only a hint: a wrong count is corrected by the next insert
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Read the first length bytes of a page, i.e. its header, from disk.
+     */
+    byte[] readHeader(int pageNumber, int length) throws IOException {
+        return channel.read((long) pageNumber * BufferPool.getPageSize(), length);
     }
 
     /**
@@ -144,25 +230,35 @@ public class HeapFile implements DbFile {
         ArrayList<Page> list = new ArrayList<>();
         BufferPool pool = Database.getBufferPool();
         int tableid = getId();
-        for(int i = 0; i < numPages(); i ++) {
+        // only visit pages the free space map says have room, so full pages are never locked
+        for(int i = freeSpace.pageWithSpace(0); i >= 0; i = freeSpace.pageWithSpace(i + 1)) {
             PageId pid = new HeapPageId(tableid, i);
             HeapPage page = (HeapPage) pool.getPage(tid, pid, Permissions.READ_WRITE);
             //该页没有空slot时释放该page上的锁
             if(page.getNumEmptySlots() == 0) {
+                freeSpace.update(i, 0);
                 Database.getBufferPool().unsafeReleasePage(tid, pid);
                 continue;
             }
-            if(page.getNumEmptySlots() > 0) {
-                page.insertTuple(t);
-                page.markDirty(true, tid);
-                list.add(page);
-                return list;
-            }
+            page.insertTuple(t);
+            page.markDirty(true, tid);
+            freeSpace.update(i, page.getNumEmptySlots());
+            list.add(page);
+            return list;
         }
         //需要创建新的页去插入tuple
-        HeapPage page = new HeapPage(new HeapPageId(tableid, numPages()), HeapPage.createEmptyPageData());
+        // append an empty page and insert into it like into any other page, so the
+        // page is locked and snapshots see it as empty until the insert commits;
+        // the latch keeps two appends from picking the same page number
+        HeapPageId pid;
+        synchronized(appendLatch) {
+            pid = new HeapPageId(tableid, numPages());
+            writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+        }
+        HeapPage page = (HeapPage) pool.getPage(tid, pid, Permissions.READ_WRITE);
         page.insertTuple(t);
-        writePage(page);
+        page.markDirty(true, tid);
+        freeSpace.update(pid.getPageNumber(), page.getNumEmptySlots());
         list.add(page);
         return list;
     }
@@ -175,6 +271,11 @@ public class HeapFile implements DbFile {
         ArrayList<Page> list = new ArrayList<>();
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
         page.deleteTuple(t);
+        try {
+            freeSpace.update(page.getId().getPageNumber(), page.getNumEmptySlots());
+        } catch (IOException e) {
+            throw new DbException("could not update free space map: " + e.getMessage());
+        }
         list.add(page);
         return list;
     }
@@ -182,22 +283,40 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        DbFileIterator it = new HeapFileIterator(this, tid);
+        DbFileIterator it = new HeapFileIterator(this, tid, false);
         return it;
     }
 
+    /**
+     * Returns an iterator over all the tuples stored in this HeapFile.
+     * A scan over a file larger than the buffer pool always reads through a
+     * private {@link ScanRing}; bulkRead asks for one regardless of the size.
+     *
+     * @param tid the transaction performing the scan
+     * @param bulkRead true if the scan should not populate the buffer pool
+     * @see BufferPool#newScanRing()
+     */
+    public DbFileIterator iterator(TransactionId tid, boolean bulkRead) {
+        return new HeapFileIterator(this, tid, bulkRead);
+    }
+
     private static final class HeapFileIterator implements DbFileIterator {
         private final HeapFile heapFile;
 
         private final TransactionId tid;
 
+        private final boolean bulkRead;
+
         private Iterator<Tuple> iterator;
 
         private int pageNum;
 
-        public HeapFileIterator(HeapFile heapFile, TransactionId tid) {
+        private ScanRing ring;
+
+        public HeapFileIterator(HeapFile heapFile, TransactionId tid, boolean bulkRead) {
             this.heapFile = heapFile;
             this.tid = tid;
+            this.bulkRead = bulkRead;
         }
 
 
@@ -208,6 +327,11 @@ public class HeapFile implements DbFile {
          */
         @Override
         public void open() throws DbException, TransactionAbortedException {
+            BufferPool pool = Database.getBufferPool();
+            // a file that cannot fit in the pool anyway must not wipe it out
+            if(bulkRead || heapFile.numPages() > pool.getNumPages()) {
+                ring = pool.newScanRing();
+            }
             pageNum = 0;
             iterator = getPageTuples(pageNum);
         }
@@ -222,7 +346,7 @@ public class HeapFile implements DbFile {
         private Iterator<Tuple> getPageTuples(int pageNumber) throws DbException, TransactionAbortedException {
             if(pageNumber >= 0 && pageNumber < heapFile.numPages()) {
                 HeapPageId pid = new HeapPageId(heapFile.getId(), pageNumber);
-                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY, ring);
                 return page.iterator();
             } else {
                 throw new DbException(String.format("HeapFile %d dosen't contain page %d !", heapFile.getId(), pageNumber));
@@ -287,6 +411,7 @@ public class HeapFile implements DbFile {
         @Override
         public void close() {
             iterator = null;
+            ring = null;
         }
     }
 
@@ -8,10 +8,19 @@ import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A HeapPage either parses its image into a header and an array of tuples
+ * when it is created, or it keeps the image in a ByteBuffer and decodes slots
+ * only when they are read. The buffer is a {@link PageArena} frame when the
+ * BufferPool runs off-heap, and a read-only view of the file when the
+ * HeapFile is memory mapped. Once the BufferPool gives the frame back, or
+ * before a mapped page is first modified, the page switches to a heap copy of
+ * the image.
  *
  * @see HeapFile
  * @see BufferPool
@@ -24,7 +33,22 @@ public class HeapPage implements Page {
     final byte[] header;
     final Tuple[] tuples;
     final int numSlots;
+    final int headerSize;
 
+    /**
+     * The image of a page that lives in a PageArena frame or a file mapping,
+     * or a heap copy of it; null for a parsed page, in which case header and
+     * tuples are used instead.
+     */
+    private volatile ByteBuffer data;
+    /** Index of the arena frame data points into, or -1. Guarded by this. */
+    private int frame = -1;
+
+    /**
+     * The image before the first modification since the last call to
+     * setBeforeImage. A page backed by data only takes this copy when it is
+     * first modified; until then null means the current image.
+     */
     byte[] oldData;
     private final Byte oldDataLock= (byte) 0;
 
@@ -52,10 +76,11 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
+        this.headerSize = getHeaderSize();
         DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
         // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
+        header = new byte[headerSize];
         for (int i=0; i<header.length; i++)
             header[i] = dis.readByte();
         
@@ -72,6 +97,55 @@ public class HeapPage implements Page {
         setBeforeImage();
     }
 
+    /**
+     * Create a HeapPage whose image has already been read into a frame of the
+     * given arena. Nothing is parsed up front: slots are decoded when they are
+     * read, and inserted tuples are encoded straight into the frame.
+     *
+     * @see PageArena#release(Page)
+     */
+    HeapPage(HeapPageId id, PageArena arena, int frame) {
+        this(id, arena.frame(frame));
+        this.frame = frame;
+    }
+
+    /**
+     * Create a HeapPage on top of the given page image without parsing it.
+     * If the image is read-only, as a view of a memory mapped file is, the
+     * page copies it to the heap before it is first modified.
+     */
+    HeapPage(HeapPageId id, ByteBuffer image) {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = getNumTuples();
+        this.headerSize = getHeaderSize();
+        this.header = null;
+        this.tuples = null;
+        this.data = image;
+
+        setBeforeImage();
+    }
+
+    /**
+     * Stop using the arena frame this page lives in, copying the image to the
+     * heap so the page stays valid.
+     *
+     * @return the index of the frame that was given up, or -1 if the page
+     *         did not live in a frame
+     */
+    synchronized int detachFrame() {
+        if (frame < 0) {
+            return -1;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(data.capacity());
+        copy.put(data.duplicate());
+        copy.clear();
+        data = copy;
+        int released = frame;
+        frame = -1;
+        return released;
+    }
+
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
@@ -104,6 +178,10 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
+            if (oldDataRef == null) {
+                // not modified since the last setBeforeImage
+                oldDataRef = getPageData();
+            }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
@@ -116,7 +194,23 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = data == null ? getPageData().clone() : null;
+        }
+    }
+
+    /**
+     * Take the copy of the before image a page backed by data postpones until
+     * it is first modified.
+     */
+    private void preserveBeforeImage() {
+        if (data == null) {
+            return;
+        }
+        synchronized(oldDataLock)
+        {
+            if (oldData == null) {
+                oldData = getPageData();
+            }
         }
     }
 
@@ -174,6 +268,12 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
+        if (data != null) {
+            byte[] bytes = new byte[data.capacity()];
+            readImage(0, bytes);
+            return bytes;
+        }
+
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -262,8 +362,8 @@ public class HeapPage implements Page {
         if(recordId != null && pid.equals(recordId.getPageId())) {
             int tupleIndex = recordId.getTupleNumber();
             if(tupleIndex < getNumTuples() && isSlotUsed(tupleIndex)) {
-                this.tuples[tupleIndex] = null;
                 markSlotUsed(tupleIndex, false);
+                setTuple(tupleIndex, null);
                 return;
             }
             throw new DbException("can't find tuple in this page");
@@ -283,11 +383,11 @@ public class HeapPage implements Page {
         // not necessary for lab1
         if(getNumEmptySlots() == 0) throw new DbException("Not enough space to insert tuple");
         if(!(t.getTupleDesc().equals(this.td))) throw new DbException("Tuple's description doesn't match");
-        for(int i = 0; i < this.tuples.length; i ++) {
+        for(int i = 0; i < numSlots; i ++) {
             if(!isSlotUsed(i)) {
                 markSlotUsed(i, true);
-                tuples[i] = t;
                 t.setRecordId(new RecordId(this.pid, i));
+                setTuple(i, t);
                 break;
             }
         }
@@ -333,7 +433,15 @@ public class HeapPage implements Page {
         // some code goes here
         int byteIndex = i / 8;
         int bitIndex = i % 8;
-        int flag = (header[byteIndex] >> bitIndex) & 1;
+        byte b;
+        if (data != null) {
+            synchronized (this) {
+                b = data.get(byteIndex);
+            }
+        } else {
+            b = header[byteIndex];
+        }
+        int flag = (b >> bitIndex) & 1;
         return flag == 1;
     }
 
@@ -346,6 +454,15 @@ public class HeapPage implements Page {
         int byteIndex = i / 8;
         int bitIndex = i % 8;
         int tmp = 1 << bitIndex;
+        if(data != null) {
+            preserveBeforeImage();
+            synchronized (this) {
+                ByteBuffer image = writableData();
+                byte b = image.get(byteIndex);
+                image.put(byteIndex, value ? (byte) (b | tmp) : (byte) (b & ~tmp));
+            }
+            return;
+        }
         byte b = header[byteIndex];
         if(value) {
             header[byteIndex] = (byte) (b | tmp);
@@ -354,6 +471,76 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * Return data, after replacing it with a heap copy if it is read-only.
+     * Must be called while synchronized on this.
+     */
+    private ByteBuffer writableData() {
+        if (data.isReadOnly()) {
+            ByteBuffer copy = ByteBuffer.allocate(data.capacity());
+            copy.put(data.duplicate());
+            copy.clear();
+            data = copy;
+        }
+        return data;
+    }
+
+    /**
+     * Copy bytes.length bytes of the page image from offset on into bytes.
+     * Readers of the image hold the page monitor, like detachFrame, so that
+     * the BufferPool cannot give an arena frame back for reuse while it is
+     * still being read.
+     */
+    private synchronized void readImage(int offset, byte[] bytes) {
+        ByteBuffer slice = data.duplicate();
+        slice.position(offset);
+        slice.get(bytes);
+    }
+
+    /**
+     * Store t in slot i, or clear the slot if t is null.
+     */
+    private void setTuple(int i, Tuple t) {
+        if(data == null) {
+            tuples[i] = t;
+            return;
+        }
+        preserveBeforeImage();
+        byte[] bytes = new byte[td.getSize()];
+        if(t != null) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length);
+            DataOutputStream dos = new DataOutputStream(baos);
+            try {
+                for (int j=0; j<td.numFields(); j++) {
+                    t.getField(j).serialize(dos);
+                }
+                dos.flush();
+            } catch (IOException e) {
+                // this really shouldn't happen
+                e.printStackTrace();
+            }
+            bytes = baos.toByteArray();
+        }
+        synchronized (this) {
+            ByteBuffer slot = writableData().duplicate();
+            slot.position(headerSize + i * td.getSize());
+            slot.put(bytes);
+        }
+    }
+
+    /**
+     * Return the tuple in slot i, which must be in use, decoding it from the
+     * page image if the page is not parsed.
+     */
+    private Tuple getTuple(int i) {
+        if(data == null) {
+            return tuples[i];
+        }
+        byte[] bytes = new byte[td.getSize()];
+        readImage(headerSize + i * td.getSize(), bytes);
+        return readNextTuple(new DataInputStream(new ByteArrayInputStream(bytes)), i);
+    }
+
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
@@ -361,9 +548,9 @@ public class HeapPage implements Page {
     public Iterator<Tuple> iterator() {
         // some code goes here
         List<Tuple> list= new ArrayList<>();
-        for(int i = 0; i < tuples.length; i ++) {
+        for(int i = 0; i < numSlots; i ++) {
             if(isSlotUsed(i)) {
-                list.add(tuples[i]);
+                list.add(getTuple(i));
             }
         }
         return list.iterator();
@@ -0,0 +1,147 @@
+package simpledb.storage;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). The victim is the page whose
+ * K-th most recent reference lies furthest in the past. Pages referenced fewer
+ * than K times have an infinite backward K-distance and go first, oldest last
+ * reference first, which keeps pages touched once by a scan from pushing out
+ * pages that are referenced over and over, such as B+ tree internal nodes.
+ * <p>
+ * Reference history survives eviction for up to {@code capacity} pages, so a
+ * hot page that was unlucky once keeps its rank when it is read back in.
+ * A page that is not evictable when it comes up as the victim is set aside
+ * until it is cleaned, keeping its history. Hits and loads cost O(log n) to
+ * maintain the K-distance order, and so does picking a victim, amortized
+ * over the pages set aside.
+ */
+public class LRUKEvictionPolicy extends AbstractEvictionPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private final int retainedLimit;
+    private long clock;
+
+    // history[0] is the most recent reference, history[k - 1] the k-th one
+    private final Map<PageId, long[]> history;
+    // cold holds the pages with fewer than k references by their last one,
+    // hot the others by their k-th one; parked pages are in neither
+    private final TreeMap<Long, PageId> cold;
+    private final TreeMap<Long, PageId> hot;
+    private final Set<PageId> parked;
+    private final LinkedHashMap<PageId, long[]> retained;
+
+    public LRUKEvictionPolicy(int capacity, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        this.k = k;
+        this.retainedLimit = Math.max(1, capacity);
+        this.clock = 0;
+        this.history = new HashMap<>();
+        this.cold = new TreeMap<>();
+        this.hot = new TreeMap<>();
+        this.parked = new HashSet<>();
+        this.retained = new LinkedHashMap<>();
+    }
+
+    @Override
+    protected void recordHit(PageId pid) {
+        long[] h = history.get(pid);
+        if (h != null) {
+            reference(pid, h);
+        }
+    }
+
+    @Override
+    protected void recordLoad(PageId pid) {
+        if (history.containsKey(pid)) {
+            recordHit(pid);
+            return;
+        }
+        long[] h = retained.remove(pid);
+        if (h == null) {
+            h = new long[k];
+        }
+        history.put(pid, h);
+        reference(pid, h);
+    }
+
+    public void pageRemoved(PageId pid) {
+        long[] h = history.remove(pid);
+        if (h == null) {
+            return;
+        }
+        unlink(pid, h);
+        retained.put(pid, h);
+        if (retained.size() > retainedLimit) {
+            Iterator<PageId> it = retained.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    public void pageCleaned(PageId pid) {
+        if (parked.remove(pid)) {
+            link(pid, history.get(pid));
+        }
+    }
+
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        PageId victim = firstEvictable(cold, evictable);
+        return victim != null ? victim : firstEvictable(hot, evictable);
+    }
+
+    /** Park the pages at the head of order up to the first evictable one. */
+    private PageId firstEvictable(TreeMap<Long, PageId> order, Predicate<PageId> evictable) {
+        Map.Entry<Long, PageId> first;
+        while ((first = order.firstEntry()) != null) {
+            if (evictable.test(first.getValue())) {
+                return first.getValue();
+            }
+            order.pollFirstEntry();
+            parked.add(first.getValue());
+        }
+        return null;
+    }
+
+    private void reference(PageId pid, long[] h) {
+        boolean linked = !parked.contains(pid);
+        if (linked) {
+            unlink(pid, h);
+        }
+        System.arraycopy(h, 0, h, 1, k - 1);
+        h[0] = ++clock;
+        if (linked) {
+            link(pid, h);
+        }
+    }
+
+    private void link(PageId pid, long[] h) {
+        if (h[k - 1] != 0) {
+            hot.put(h[k - 1], pid);
+        } else {
+            cold.put(h[0], pid);
+        }
+    }
+
+    private void unlink(PageId pid, long[] h) {
+        if (parked.remove(pid)) {
+            return;
+        }
+        if (h[k - 1] != 0) {
+            hot.remove(h[k - 1]);
+        } else {
+            cold.remove(h[0]);
+        }
+    }
+}
@@ -6,8 +6,14 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -19,23 +25,34 @@ two-phase locking discipline are followed.  <p>
 <p>
 
 Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
-
+writes from happening.)  The BufferPool writes log records (on page
+flushes) and the log file flushes and discards BufferPool pages (on
+checkpoints and recovery), so the two could deadlock.  They don't,
+because the locks are always taken in the same order: a thread may
+enter a BufferPool partition latch while holding the LogFile monitor,
+but the BufferPool never calls into the LogFile while holding one of
+its partition latches.  Any LogFile operation that needs to access
+the BufferPool can therefore simply be synchronized on this.  The
+BufferPool's page write latches, which keep two writes of the same page
+apart, come before the monitor: they are taken before entering it, and
+never while holding it.
+
+<u> Group commit: </u>
 <p>
-<pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
-
-       ..
 
-       }
-    }
-</pre>
+Log records are not written to the file one field at a time; they are
+appended to an in-memory tail and written out in one piece when the log
+is forced.  A thread that needs the log on disk (a committing
+transaction, or the BufferPool before it writes a dirty page) does not
+force the file itself but waits for the flusher thread, which writes
+the whole tail with a single write, forces it, and releases every
+thread waiting for a record in that tail at once.  Forces issued while
+one is already running are thus batched into the next one, and
+setGroupCommitWindow() makes the flusher wait a little to collect more.
+Threads that hold the LogFile monitor (rollback, checkpoints) still
+force synchronously, since the flusher needs the monitor to write the
+tail.  The waiting is done on a separate lock, which is never held
+while entering the LogFile monitor.
 */
 
 /**
@@ -43,11 +60,14 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is stored in fixed-size segment files next to the log file,
+which holds the segment index: the offset of the last written checkpoint,
+or -1 if there are no checkpoints, and the offset recovery starts at
+otherwise (see LogSegments).  Offsets are LSNs; they count from the start
+of the first segment and never change.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> All data in the segments consists of log records.  Log
+records are variable length, and may span segments.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
@@ -60,23 +80,30 @@ CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE RECORDS consist of a page delta: the id of the updated page
+and the byte ranges in which its after image differs from its before
+image, with the old and new contents of each range.  Deltas are read
+and written with PageDelta.read() and PageDelta.write().  See
+LogFile.print() for an example.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
-for each active transaction.
+for each active transaction.  This is followed by the dirty page table:
+an integer count of pages, and for each page whose logged changes might
+not be on disk yet its id (see PageDelta.writePageId()) and the offset
+of the first log record that changed it since it was last written.
 
 </ul>
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private final LogSegments segments;
+    private final LogSegments.Reader reader;
+    /** Size of the segments of a log started by this LogFile */
+    private final int segmentSize;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -89,7 +116,48 @@ public class LogFile {
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    /** Default size of a log segment file */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+
     long currentOffset = -1;//protected by this
+
+    /** Number of threads recover() redoes pages on */
+    static final int REDO_THREADS = 4;
+
+    /** Records appended but not yet written to the file; protected by this */
+    private final ByteArrayOutputStream tailBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream tail = new DataOutputStream(tailBuffer);
+    /** File offset the tail will be written at; protected by this */
+    private long tailOffset;
+    /** The tail is written out once it grows beyond this many bytes */
+    static final int MAX_TAIL_BYTES = 1 << 20;
+
+    /** Bytes appended to the log since it was opened; protected by this */
+    private long appendedBytes;
+
+    /** Guards durableBytes, requestedBytes, flushing and the failure fields */
+    private final Object durable = new Object();
+    /** Bytes of appendedBytes known to be on disk */
+    private long durableBytes;
+    /** Bytes of appendedBytes some thread is waiting for */
+    private long requestedBytes;
+    private boolean flushing;
+    private long forces;
+    /** Number of forces that failed, the error of the last one, and the
+        bytes it was to make durable. Only the threads waiting for those
+        bytes when it failed see the error; later forces try again. */
+    private long failures;
+    private IOException flushError;
+    private long failedBytes;
+
+    private volatile long groupCommitWindowNanos;
+
+    private final ThreadPoolExecutor flusher = new ThreadPoolExecutor(1, 1,
+            1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "log-flusher");
+                t.setDaemon(true);
+                return t;
+            });
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
@@ -107,9 +175,26 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor for a log whose segment files hold segmentSize bytes.
+        An existing log keeps the segment size it was written with until
+        it is thrown out.
+
+        @param f The log file's name, which is also the segment index
+        @param segmentSize The size of a segment file
+    */
+    public LogFile(File f, int segmentSize) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segment size must be positive: " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+        segments = new LogSegments(f, segmentSize);
+        reader = segments.reader();
         recoveryUndecided = true;
+        flusher.allowCoreThreadTimeOut(true);
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -129,11 +214,48 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.reset(segmentSize);
+            currentOffset = segments.length();
+            tailOffset = currentOffset;
+        }
+    }
+
+    /** @return the offset in the log file the next record will start at */
+    private long endOffset() {
+        return tailOffset + tailBuffer.size();
+    }
+
+    /** Account for a record just appended to the tail. */
+    private void appended() throws IOException {
+        appendedBytes += endOffset() - currentOffset;
+        currentOffset = endOffset();
+        if (tailBuffer.size() > MAX_TAIL_BYTES) {
+            writeTail();
+        }
+    }
+
+    /** Write the tail to the segments, without forcing it. */
+    private void writeTail() throws IOException {
+        if (tailBuffer.size() > 0) {
+            segments.write(tailOffset, tailBuffer.toByteArray());
+            tailOffset += tailBuffer.size();
+            tailBuffer.reset();
+        }
+    }
+
+    /**
+     * Set how long the flusher thread waits for more records before it
+     * forces the log, so that more commits share one force. The default of
+     * zero only batches the commits that arrive while a force is running.
+     */
+    public void setGroupCommitWindow(long time, TimeUnit unit) {
+        groupCommitWindowNanos = unit.toNanos(time);
+    }
+
+    /** @return the number of times the log file was forced to disk */
+    public long getForceCount() {
+        synchronized (durable) {
+            return forces;
         }
     }
 
@@ -145,147 +267,122 @@ public class LogFile {
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
     */
-    public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
-
-        synchronized (Database.getBufferPool()) {
-
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
+    public synchronized void logAbort(TransactionId tid) throws IOException {
+        preAppend();
+        //Debug.log("ABORT");
+        //should we verify that this is a live transaction?
 
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
+        // must do this here, since rollback only works for
+        // live transactions (needs tidToFirstLogRecord)
+        rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
-        }
+        tail.writeInt(ABORT_RECORD);
+        tail.writeLong(tid.getId());
+        tail.writeLong(currentOffset);
+        appended();
+        force();
+        tidToFirstLogRecord.remove(tid.getId());
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  The force is shared with the
+        transactions committing at the same time.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long end;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            tail.writeInt(COMMIT_RECORD);
+            tail.writeLong(tid.getId());
+            tail.writeLong(currentOffset);
+            appended();
+            tidToFirstLogRecord.remove(tid.getId());
+            end = appendedBytes;
+        }
+        awaitDurable(end);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  Only the
+        byte ranges that differ between the two images are logged.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the record, for the BufferPool's dirty page table
 
         @see Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        return logWrite(tid, before, after, null);
+    }
+
+    /** Write an UPDATE record and, in the same critical section, report
+        it to pool, which enters the page in its dirty page table.  A
+        checkpoint can therefore never see the record without the dirty
+        page table entry that makes recovery redo it.
+    */
+    synchronized long logWrite(TransactionId tid, Page before, Page after,
+                               BufferPool pool)
+        throws IOException  {
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           page delta (see PageDelta)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        tail.writeInt(UPDATE_RECORD);
+        tail.writeLong(tid.getId());
+
+        long lsn = currentOffset;
+        PageDelta.diff(before, after).write(tail);
+        tail.writeLong(currentOffset);
+        appended();
+        if (pool != null) {
+            pool.pageLogged(after.getId(), lsn, appendedBytes);
+        }
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
+    /** Read the on-disk image of the page a delta applies to into images,
+        unless it is there already.  A page that is not on disk yet starts
+        out as zeroes, which is what an empty page consists of.
+    */
+    private static byte[] pageImage(Map<PageId, byte[]> images, PageDelta delta) {
+        PageId pid = delta.getPageId();
+        byte[] image = images.get(pid);
+        if (image == null) {
+            try {
+                image = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid).getPageData();
+            } catch (IllegalArgumentException e) {
+                image = new byte[delta.getPageSize()];
+            }
+            images.put(pid, image);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        return image;
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
+    /** Write page images rebuilt from the log to disk, dropping any cached
+        versions of those pages from the BufferPool.
+    */
+    private static void installImages(Map<PageId, byte[]> images) throws IOException {
+        for (Map.Entry<PageId, byte[]> e : images.entrySet()) {
+            PageId pid = e.getKey();
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            Database.getBufferPool().discardPage(pid);
+            file.writePage(file.createPage(pid, e.getValue()));
         }
-        return newPage;
-
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -300,50 +397,60 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        tail.writeInt(BEGIN_RECORD);
+        tail.writeLong(tid.getId());
+        tail.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        appended();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+
+        <p> The checkpoint is fuzzy: it does not flush the BufferPool, but
+        records the active transactions and the BufferPool's dirty page
+        table, from which recovery knows where to start.  Appending the
+        record only takes the LogFile monitor for as long as any other
+        append; the record is forced like a commit, and only then does the
+        pointer in the segment index move to it.  Dirty pages reach the
+        disk through commits and the BufferPool's background writer.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        long cpLsn, end;
+        synchronized (this) {
+            preAppend();
+            cpLsn = currentOffset;
+            tail.writeInt(CHECKPOINT_RECORD);
+            tail.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            tail.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                tail.writeLong(e.getKey());
+                tail.writeLong(e.getValue());
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table, as offsets into the log
+            Map<PageId, Long> dirtyPages = Database.getBufferPool().dirtyPageTable();
+            tail.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                PageDelta.writePageId(tail, e.getKey());
+                tail.writeLong(e.getValue());
+            }
+            tail.writeLong(currentOffset);
+            appended();
+            end = appendedBytes;
+        }
+        awaitDurable(end);
+
+        synchronized (this) {
+            //once the CP is on disk, make sure the CP location in the
+            // segment index is updated
+            // a concurrent checkpoint may have moved the pointer past ours
+            if (segments.getCheckpoint() < cpLsn) {
+                segments.setCheckpoint(cpLsn);
             }
         }
 
@@ -351,99 +458,51 @@ public class LogFile {
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Records are never moved: the start of the log moves
+        forward to the oldest record recovery needs, and the segment files
+        before it are deleted. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        long cpLoc = segments.getCheckpoint();
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return;
+        }
+        writeTail();
 
         long minLogRecord = cpLoc;
+        reader.seek(cpLoc);
+        int cpType = reader.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = reader.readLong();
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
 
-            int numOutstanding = raf.readInt();
+        int numOutstanding = reader.readInt();
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+        for (int i = 0; i < numOutstanding; i++) {
+            @SuppressWarnings("unused")
+            long tid = reader.readLong();
+            long firstLogRecord = reader.readLong();
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+        // redo of a dirty page starts at its first unwritten change
+        int numDirty = reader.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            PageDelta.readPageId(reader);
+            long recOffset = reader.readLong();
+            if (recOffset < minLogRecord) {
+                minLogRecord = recOffset;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        // we can drop everything before minLogRecord
+        int deleted = segments.truncate(minLogRecord);
+        Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord + " DELETED SEGMENTS: " + deleted);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -452,51 +511,97 @@ public class LogFile {
         transactions that have already committed (though this may not
         be enforced by this method.)
 
+        <p> The logged changes are undone on the last logged image of
+        every page: the before image of the resident copy, or the image
+        on disk.  The undo itself is logged as compensating UPDATE
+        records.  In STEAL mode a resident page is replaced by its
+        restored version, which the BufferPool writes out like any other;
+        otherwise the restored page is written right away.
+
         @param tid The transaction to rollback
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
-                Long firstRecordPos = tidToFirstLogRecord.get(tid.getId());
-                this.raf.seek(firstRecordPos);
-                HashSet<PageId> set = new HashSet<>();
-                while(true) {
-                    try {
-                        final int type = raf.readInt();
-                        final long record_tid = raf.readLong();
-                        switch (type) {
-                            case UPDATE_RECORD:{
-                                final Page before = readPageData(raf);
-                                final Page after = readPageData(raf);
-                                final PageId pid = before.getId();
-                                if(tid.getId() == record_tid && !set.contains(pid)) {
-                                    set.add(pid);
-                                    Database.getBufferPool().discardPage(pid);
-                                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(before);
-                                }
-                                break;
-                            }
-                            case CHECKPOINT_RECORD:{
-                                skipCheckPointRecord();
-                                break;
+        synchronized(this) {
+            preAppend();
+            writeTail();
+            // some code goes here
+            BufferPool pool = Database.getBufferPool();
+            if(pool.getWritePolicy() == BufferPool.WritePolicy.STEAL_NO_FORCE) {
+                // drop the changes nothing has logged yet first, so that no
+                // page of tid can be stolen once its records have been read
+                pool.restorePages(tid);
+            }
+            Long firstRecordPos = tidToFirstLogRecord.get(tid.getId());
+            reader.seek(firstRecordPos);
+            List<PageDelta> deltas = new ArrayList<>();
+            while(true) {
+                try {
+                    final int type = reader.readInt();
+                    final long record_tid = reader.readLong();
+                    switch (type) {
+                        case UPDATE_RECORD:{
+                            final PageDelta delta = PageDelta.read(reader);
+                            if(tid.getId() == record_tid) {
+                                deltas.add(delta);
                             }
+                            break;
                         }
-                        raf.readLong();
-                    } catch (EOFException e) {
-                        break;
+                        case CHECKPOINT_RECORD:{
+                            skipCheckPointRecord();
+                            break;
+                        }
+                    }
+                    reader.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+            // undo in reverse order, starting from the last logged image
+            Map<PageId, byte[]> logged = new HashMap<>();
+            Map<PageId, byte[]> images = new HashMap<>();
+            for(int i = deltas.size() - 1; i >= 0; i--) {
+                PageDelta delta = deltas.get(i);
+                PageId pid = delta.getPageId();
+                if(!images.containsKey(pid)) {
+                    Page resident = pool.residentPage(pid);
+                    if(resident != null) {
+                        images.put(pid, resident.getBeforeImage().getPageData().clone());
+                    } else {
+                        pageImage(images, delta);
                     }
+                    logged.put(pid, images.get(pid).clone());
+                }
+                delta.undo(images.get(pid));
+            }
+
+            // log the undo as compensating updates, which recovery redoes
+            // like any other, and install the restored pages
+            for(Map.Entry<PageId, byte[]> e : images.entrySet()) {
+                PageId pid = e.getKey();
+                DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                Page restored = file.createPage(pid, e.getValue());
+                logWrite(tid, file.createPage(pid, logged.get(pid)), restored, pool);
+                if(pool.getWritePolicy() == BufferPool.WritePolicy.STEAL_NO_FORCE
+                        && pool.replaceResident(restored)) {
+                    continue;
                 }
+                force();
+                pool.discardPage(pid);
+                file.writePage(restored);
             }
         }
     }
 
     private void skipCheckPointRecord() throws IOException{
-        final int transactionNums = this.raf.readInt();
+        final int transactionNums = reader.readInt();
         int skip = transactionNums * 2 * 8;
-        this.raf.skipBytes(skip);
+        reader.skipBytes(skip);
+        int dirtyPages = reader.readInt();
+        while (dirtyPages-- > 0) {
+            PageDelta.readPageId(reader);
+            reader.readLong();
+        }
     }
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
@@ -505,7 +610,7 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            segments.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -515,138 +620,279 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+
+        <p> Recovery streams over the log in three passes and never holds
+        more than the pages it is changing.  Analysis reads forward from
+        the last checkpoint, starting from the transactions and dirty page
+        table recorded in it, and finds the transactions that never ended
+        and the first log record each dirty page may be missing.  Redo
+        reads forward from the oldest of those records and reapplies the
+        changes of the other transactions, skipping records of pages that
+        were already written when the record was appended; pages are
+        partitioned across REDO_THREADS threads by PageId.  Undo reads
+        backward from the end of the log, following the start offset every
+        record ends with, and reverts the changes of the transactions that
+        never ended.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
-                this.raf.seek(0);
-                final long cp = raf.readLong();
-                if(cp > 0) {
-                    raf.seek(cp);
+        synchronized (this) {
+            recoveryUndecided = false;
+            writeTail();
+            // some code goes here
+            final long cp = segments.getCheckpoint();
+
+            // analysis: transactions without an end record, and the dirty page table
+            final Map<Long, Long> losers = new HashMap<>();
+            final Map<PageId, Long> dirtyPages = new HashMap<>();
+            if (cp != NO_CHECKPOINT_ID) {
+                reader.seek(cp);
+                reader.readInt();
+                reader.readLong();
+                int numXactions = reader.readInt();
+                while (numXactions-- > 0) {
+                    long tid = reader.readLong();
+                    losers.put(tid, reader.readLong());
                 }
-                final HashSet<Long> commitIds = new HashSet<>();
-                final HashMap<Long, List<Page>> beforePages = new HashMap<>();
-                final HashMap<Long, List<Page>> afterPages = new HashMap<>();
-                while(true) {
-                    try {
-                        final int type = this.raf.readInt();
-                        final long record_tid = this.raf.readLong();
+                int numDirty = reader.readInt();
+                while (numDirty-- > 0) {
+                    PageId pid = PageDelta.readPageId(reader);
+                    dirtyPages.put(pid, reader.readLong());
+                }
+                reader.readLong();
+            } else {
+                reader.seek(segments.getStart());
+            }
+            long logEnd = reader.getFilePointer();
+            while (true) {
+                try {
+                    final long start = reader.getFilePointer();
+                    final int type = reader.readInt();
+                    final long record_tid = reader.readLong();
+                    switch (type) {
+                        case BEGIN_RECORD:
+                            losers.put(record_tid, start);
+                            break;
+                        case UPDATE_RECORD:
+                            dirtyPages.putIfAbsent(PageDelta.skip(reader), start);
+                            losers.putIfAbsent(record_tid, start);
+                            break;
+                        case COMMIT_RECORD:
+                            losers.remove(record_tid);
+                            break;
+                        case ABORT_RECORD:
+                            // rollback() logged the undo of its changes, which
+                            // redo repeats together with the changes themselves
+                            losers.remove(record_tid);
+                            break;
+                        case CHECKPOINT_RECORD:
+                            skipCheckPointRecord();
+                            break;
+                    }
+                    reader.readLong();
+                    logEnd = reader.getFilePointer();
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+            // drop a record torn by the crash
+            segments.setLength(logEnd);
+
+            // redo
+            if (!dirtyPages.isEmpty()) {
+                ParallelRedo redo = new ParallelRedo(REDO_THREADS);
+                reader.seek(Collections.min(dirtyPages.values()));
+                try {
+                    while (reader.getFilePointer() < logEnd) {
+                        final long start = reader.getFilePointer();
+                        final int type = reader.readInt();
+                        final long record_tid = reader.readLong();
                         switch (type) {
-                            case UPDATE_RECORD:{
-                                final Page before = readPageData(raf);
-                                final Page after = readPageData(raf);
-                                List<Page> beforeList = beforePages.getOrDefault(record_tid, new ArrayList<>());
-                                beforeList.add(before);
-                                beforePages.put(record_tid, beforeList);
-
-                                List<Page> afterList = afterPages.getOrDefault(record_tid, new ArrayList<>());
-                                afterList.add(after);
-                                afterPages.put(record_tid, afterList);
-                                break;
-                            }
-                            case COMMIT_RECORD:{
-                                commitIds.add(record_tid);
+                            case UPDATE_RECORD: {
+                                final PageDelta delta = PageDelta.read(reader);
+                                Long recOffset = dirtyPages.get(delta.getPageId());
+                                if (recOffset != null && start >= recOffset
+                                        && !losers.containsKey(record_tid)) {
+                                    redo.redo(delta);
+                                }
                                 break;
                             }
-                            case CHECKPOINT_RECORD:{
+                            case CHECKPOINT_RECORD:
                                 skipCheckPointRecord();
                                 break;
-                            }
                         }
-                        raf.readLong();
-                    } catch (EOFException e) {
-                        break;
+                        reader.readLong();
+                    }
+                } finally {
+                    redo.finish();
+                }
+            }
+
+            // undo
+            if (!losers.isEmpty()) {
+                final long stop = Collections.min(losers.values());
+                final Map<PageId, byte[]> images = new HashMap<>();
+                long end = logEnd;
+                while (end > stop) {
+                    reader.seek(end - LONG_SIZE);
+                    final long start = reader.readLong();
+                    reader.seek(start);
+                    final int type = reader.readInt();
+                    final long record_tid = reader.readLong();
+                    if (type == UPDATE_RECORD && losers.containsKey(record_tid)) {
+                        final PageDelta delta = PageDelta.read(reader);
+                        delta.undo(pageImage(images, delta));
                     }
+                    end = start;
                 }
-                //rollback uncommitted transaction
-                beforePages.forEach((tid, pages)->{
-                    if(!commitIds.contains(tid)){
-                        for(Page page : pages) {
+                installImages(images);
+            }
+
+            currentOffset = logEnd;
+            tailOffset = currentOffset;
+        }
+    }
+
+    /**
+     * Redoes deltas on a fixed number of threads.  Every page belongs to
+     * one thread, chosen by its PageId, so the deltas of a page are applied
+     * in log order and every thread keeps the images of its own pages.
+     */
+    private static final class ParallelRedo {
+        /** Deltas queued per thread before the log reader blocks */
+        private static final int QUEUE_SIZE = 1024;
+
+        private final ThreadPoolExecutor[] workers;
+        private final List<Map<PageId, byte[]>> images = new ArrayList<>();
+        private volatile Exception failure;
+
+        ParallelRedo(int threads) {
+            workers = new ThreadPoolExecutor[threads];
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<>(QUEUE_SIZE), r -> new Thread(r, "redo"),
+                        (r, executor) -> {
+                            // wait for room rather than reorder the deltas of a page
                             try {
-                                Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
-                            } catch (IOException e) {
-                                e.printStackTrace();
+                                executor.getQueue().put(r);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new RejectedExecutionException(e);
                             }
-                        }
+                        });
+                images.add(new HashMap<>());
+            }
+        }
+
+        void redo(PageDelta delta) throws IOException {
+            checkFailure();
+            int w = Math.floorMod(delta.getPageId().hashCode(), workers.length);
+            Map<PageId, byte[]> pages = images.get(w);
+            workers[w].execute(() -> {
+                try {
+                    delta.redo(pageImage(pages, delta));
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+            });
+        }
+
+        /** Wait for all deltas, then write the redone pages to disk. */
+        void finish() throws IOException {
+            for (int w = 0; w < workers.length; w++) {
+                Map<PageId, byte[]> pages = images.get(w);
+                workers[w].execute(() -> {
+                    try {
+                        installImages(pages);
+                    } catch (IOException | RuntimeException e) {
+                        failure = e;
                     }
                 });
-                //redo write commit pages
-                for (final long commitId : commitIds) {
-                    if(afterPages.containsKey(commitId)) {
-                        final List<Page> pages = afterPages.get(commitId);
-                        for(Page page : pages) {
-                            Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
-                        }
-                    }
+                workers[w].shutdown();
+            }
+            try {
+                for (ThreadPoolExecutor worker : workers) {
+                    worker.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted during redo");
+            }
+            checkFailure();
+        }
+
+        private void checkFailure() throws IOException {
+            if (failure != null) {
+                throw new IOException("redo failed", failure);
             }
-         }
+        }
     }
 
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
+    public synchronized void print() throws IOException {
+        writeTail();
+        long curOffset = reader.getFilePointer();
 
-        raf.seek(0);
-
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+        System.out.println("INDEX: checkpoint record at offset " + segments.getCheckpoint());
+        System.out.println("INDEX: segments " + segments.firstSegment() + " TO " + segments.lastSegment()
+                + " of " + segments.getSegmentSize() + " bytes, log starts at offset " + segments.getStart());
+        reader.seek(segments.getStart());
 
         while (true) {
             try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
+                int cpType = reader.readInt();
+                long cpTid = reader.readLong();
 
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
+                System.out.println((reader.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
+                System.out.println((reader.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
 
                 switch (cpType) {
                 case BEGIN_RECORD:
                     System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(reader.getFilePointer() + ": RECORD START OFFSET: " + reader.readLong());
                     break;
                 case ABORT_RECORD:
                     System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(reader.getFilePointer() + ": RECORD START OFFSET: " + reader.readLong());
                     break;
                 case COMMIT_RECORD:
                     System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(reader.getFilePointer() + ": RECORD START OFFSET: " + reader.readLong());
                     break;
 
                 case CHECKPOINT_RECORD:
                     System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
+                    int numTransactions = reader.readInt();
+                    System.out.println((reader.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
 
                     while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                        long tid = reader.readLong();
+                        long firstRecord = reader.readLong();
+                        System.out.println((reader.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
+                        System.out.println((reader.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                    }
+                    int numDirty = reader.readInt();
+                    System.out.println((reader.getFilePointer() - INT_SIZE) + ": NUMBER OF DIRTY PAGES: " + numDirty);
+                    while (numDirty-- > 0) {
+                        PageId pid = PageDelta.readPageId(reader);
+                        long recOffset = reader.readLong();
+                        System.out.println((reader.getFilePointer() - LONG_SIZE) + ": PAGE " + pid.getTableId() + "/"
+                                + pid.getPageNumber() + " FIRST UNWRITTEN RECORD: " + recOffset);
                     }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(reader.getFilePointer() + ": RECORD START OFFSET: " + reader.readLong());
 
                     break;
                 case UPDATE_RECORD:
                     System.out.println(" (UPDATE)");
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
-
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
+                    long start = reader.getFilePointer();
+                    PageDelta delta = PageDelta.read(reader);
 
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
+                    System.out.println(start + ": table id " + delta.getPageId().getTableId());
+                    System.out.println(start + ": page number " + delta.getPageId().getPageNumber());
+                    System.out.println(start + " TO " + reader.getFilePointer() + ": " + delta.getNumRanges()
+                            + " ranges, " + delta.getNumBytes() + " bytes changed");
 
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
-
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(reader.getFilePointer() + ": RECORD START OFFSET: " + reader.readLong());
 
                     break;
                 }
@@ -658,11 +904,118 @@ public class LogFile {
         }
 
         // Return the file pointer to its original position
-        raf.seek(curOffset);
+        reader.seek(curOffset);
+    }
+
+    /** Force all log records appended so far to disk.  Unless the caller
+        holds the LogFile monitor, the force is shared with other threads
+        forcing the log at the same time.
+    */
+    public void force() throws IOException {
+        if (Thread.holdsLock(this)) {
+            writeTail();
+            segments.force();
+            forced(appendedBytes);
+            return;
+        }
+        long end;
+        synchronized (this) {
+            end = appendedBytes;
+        }
+        awaitDurable(end);
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** @return the number of bytes appended to the log so far, to be
+        passed to awaitDurable() */
+    synchronized long appendedEnd() {
+        return appendedBytes;
+    }
+
+    /** Wait until the first end bytes appended to the log are on disk. */
+    void awaitDurable(long end) throws IOException {
+        if (Thread.holdsLock(this)) {
+            force();
+            return;
+        }
+        synchronized (durable) {
+            long seenFailures = failures;
+            boolean interrupted = false;
+            while (durableBytes < end) {
+                if (failures != seenFailures) {
+                    if (end <= failedBytes) {
+                        throw new IOException("log force failed", flushError);
+                    }
+                    seenFailures = failures;
+                }
+                if (end > requestedBytes) {
+                    requestedBytes = end;
+                }
+                if (!flushing) {
+                    flushing = true;
+                    flusher.execute(this::flush);
+                }
+                try {
+                    durable.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Record that the first end bytes appended are on disk. */
+    private void forced(long end) {
+        synchronized (durable) {
+            forces++;
+            if (end > durableBytes) {
+                durableBytes = end;
+            }
+            durable.notifyAll();
+        }
+    }
+
+    /** Body of the flusher thread: force the log until nobody waits.
+        If a force fails, the threads waiting for the bytes it was to make
+        durable are told, and the thread stops; threads waiting for later
+        bytes start it again. */
+    private void flush() {
+        while (true) {
+            long target;
+            synchronized (durable) {
+                if (requestedBytes <= durableBytes) {
+                    flushing = false;
+                    return;
+                }
+                target = requestedBytes;
+            }
+            long window = groupCommitWindowNanos;
+            if (window > 0) {
+                LockSupport.parkNanos(window);
+            }
+            long end;
+            try {
+                synchronized (this) {
+                    writeTail();
+                    end = appendedBytes;
+                }
+                // force without the monitor, so records keep being appended meanwhile
+                segments.force();
+                forced(end);
+            } catch (IOException e) {
+                synchronized (durable) {
+                    failures++;
+                    flushError = e;
+                    failedBytes = target;
+                    requestedBytes = durableBytes;
+                    flushing = false;
+                    durable.notifyAll();
+                }
+                return;
+            }
+        }
     }
 
 }
@@ -0,0 +1,377 @@
+package simpledb.storage;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * LogSegments stores the log as a sequence of fixed-size segment files.
+ * The log is addressed by LSN, a byte offset that never changes: segment
+ * n holds the bytes from n * segmentSize up to (n + 1) * segmentSize and
+ * lives in the file named after the log with ".n" appended.
+ * <p>
+ * The log file itself is the segment index.  It holds the segment size,
+ * the LSN recovery starts reading at when there is no checkpoint, and the
+ * LSN of the last checkpoint:
+ * <pre>
+ * int magic, int segment size, long start LSN, long checkpoint LSN
+ * </pre>
+ * Appends only ever add bytes past the end of the log, and truncation
+ * moves the start forward and deletes the segments wholly before it.
+ * Segment files are opened when they are first read or written, so
+ * recovery only opens the segments it reads.
+ * <p>
+ * LogSegments is not thread-safe, except for force(): the LogFile calls
+ * it while holding its monitor, and forces it without.
+ */
+class LogSegments {
+
+    /** Marks an index file written by this class */
+    private static final int MAGIC = 0x534c4f47;
+    private static final int INDEX_SIZE = 24;
+
+    private final File indexFile;
+    private final RandomAccessFile index;
+    private int segmentSize;
+
+    /** LSN of the first record recovery needs */
+    private long start;
+    private long checkpoint = LogFile.NO_CHECKPOINT_ID;
+    private volatile long length;
+
+    /** Open segments by number; guarded by itself, since force() reads it */
+    private final TreeMap<Long, FileChannel> open = new TreeMap<>();
+    /** Segments before this one are full and on disk; guarded by open */
+    private long firstUnforced;
+
+    private final Reader reader = new Reader();
+
+    /**
+     * Open the log backed by index file f.  If f does not hold a segment
+     * index, the log is empty and new segments are segmentSize bytes.
+     */
+    LogSegments(File f, int segmentSize) throws IOException {
+        this.indexFile = f;
+        this.index = new RandomAccessFile(f, "rw");
+        this.segmentSize = segmentSize;
+        if (index.length() >= INDEX_SIZE && index.readInt() == MAGIC) {
+            this.segmentSize = index.readInt();
+            start = index.readLong();
+            checkpoint = index.readLong();
+        }
+        length = start;
+        long n = segmentOf(start);
+        while (segmentFile(n).exists()) {
+            length = n * this.segmentSize + segmentFile(n).length();
+            n++;
+        }
+        firstUnforced = segmentOf(length);
+    }
+
+    /** Discard the whole log, including segments the index does not know. */
+    void reset(int newSegmentSize) throws IOException {
+        closeSegments();
+        String prefix = indexFile.getName() + ".";
+        File[] files = indexFile.getAbsoluteFile().getParentFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(prefix) && name.length() > prefix.length()
+                        && name.substring(prefix.length()).chars().allMatch(Character::isDigit)) {
+                    file.delete();
+                }
+            }
+        }
+        segmentSize = newSegmentSize;
+        start = 0;
+        checkpoint = LogFile.NO_CHECKPOINT_ID;
+        length = 0;
+        firstUnforced = 0;
+        reader.invalidate();
+        writeIndex();
+    }
+
+    int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** @return the LSN of the first record recovery needs */
+    long getStart() {
+        return start;
+    }
+
+    /** @return the LSN one past the last byte of the log */
+    long length() {
+        return length;
+    }
+
+    /** @return the LSN of the last checkpoint, or NO_CHECKPOINT_ID */
+    long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /** Point the index at a checkpoint record, which must be on disk. */
+    void setCheckpoint(long lsn) throws IOException {
+        checkpoint = lsn;
+        writeIndex();
+    }
+
+    /** @return the number of the first segment that is not deleted */
+    long firstSegment() {
+        return segmentOf(start);
+    }
+
+    /** @return the number of the segment holding the last byte of the log */
+    long lastSegment() {
+        return length == start ? segmentOf(start) : segmentOf(length - 1);
+    }
+
+    File segmentFile(long n) {
+        return new File(indexFile.getPath() + "." + n);
+    }
+
+    private long segmentOf(long lsn) {
+        return lsn / segmentSize;
+    }
+
+    /** @return the reader, which reads the log from any LSN */
+    Reader reader() {
+        return reader;
+    }
+
+    /** Append b at lsn, which is the end of the log or before it. */
+    void write(long lsn, byte[] b) throws IOException {
+        reader.invalidate();
+        int off = 0;
+        while (off < b.length) {
+            long n = segmentOf(lsn + off);
+            int pos = (int) ((lsn + off) % segmentSize);
+            int len = Math.min(b.length - off, segmentSize - pos);
+            FileChannel channel = channel(n, true);
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while (buf.hasRemaining()) {
+                channel.write(buf, pos + buf.position() - off);
+            }
+            off += len;
+        }
+        length = Math.max(length, lsn + b.length);
+    }
+
+    /** Cut the log off at lsn, dropping everything after it. */
+    void setLength(long lsn) throws IOException {
+        reader.invalidate();
+        long last = segmentOf(lsn);
+        for (long n = lastSegment(); n > last; n--) {
+            deleteSegment(n);
+        }
+        FileChannel channel = channel(last, false);
+        if (channel != null) {
+            channel.truncate(lsn % segmentSize);
+        }
+        length = lsn;
+        synchronized (open) {
+            firstUnforced = Math.min(firstUnforced, last);
+        }
+    }
+
+    /**
+     * Move the start of the log forward to lsn and delete the segments
+     * before the one holding it.  The index is updated first, so a crash
+     * in between only leaves unreferenced segment files.
+     *
+     * @return the number of segments deleted
+     */
+    int truncate(long lsn) throws IOException {
+        if (lsn <= start) {
+            return 0;
+        }
+        long first = firstSegment();
+        start = lsn;
+        writeIndex();
+        int deleted = 0;
+        for (long n = first; n < firstSegment(); n++) {
+            deleteSegment(n);
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Force everything written so far to disk.  May be called while
+     * another thread writes; segments it deletes meanwhile are skipped.
+     */
+    void force() throws IOException {
+        List<FileChannel> channels;
+        long last;
+        synchronized (open) {
+            last = segmentOf(length);
+            channels = new ArrayList<>(open.subMap(firstUnforced, true, last, true).values());
+        }
+        for (FileChannel channel : channels) {
+            try {
+                channel.force(true);
+            } catch (ClosedChannelException e) {
+                // deleted by truncate() or setLength(); nothing to force
+            }
+        }
+        synchronized (open) {
+            if (last > firstUnforced) {
+                firstUnforced = last;
+            }
+        }
+    }
+
+    void close() throws IOException {
+        closeSegments();
+        index.close();
+    }
+
+    private void writeIndex() throws IOException {
+        index.seek(0);
+        index.writeInt(MAGIC);
+        index.writeInt(segmentSize);
+        index.writeLong(start);
+        index.writeLong(checkpoint);
+        index.getChannel().force(false);
+    }
+
+    /** @return the channel of segment n, or null if it does not exist and
+        create is false */
+    private FileChannel channel(long n, boolean create) throws IOException {
+        synchronized (open) {
+            FileChannel channel = open.get(n);
+            if (channel == null) {
+                File file = segmentFile(n);
+                if (!create && !file.exists()) {
+                    return null;
+                }
+                channel = new RandomAccessFile(file, "rw").getChannel();
+                open.put(n, channel);
+            }
+            return channel;
+        }
+    }
+
+    private void deleteSegment(long n) throws IOException {
+        synchronized (open) {
+            FileChannel channel = open.remove(n);
+            if (channel != null) {
+                channel.close();
+            }
+        }
+        segmentFile(n).delete();
+    }
+
+    private void closeSegments() throws IOException {
+        synchronized (open) {
+            for (FileChannel channel : open.values()) {
+                channel.close();
+            }
+            open.clear();
+        }
+    }
+
+    /**
+     * Reads the log at a position that can be moved with seek(), like a
+     * RandomAccessFile.  Reads are buffered, and reading past the end of
+     * the log throws EOFException.
+     */
+    final class Reader extends DataInputStream {
+        Reader() {
+            super(new SegmentStream());
+        }
+
+        private SegmentStream stream() {
+            return (SegmentStream) in;
+        }
+
+        void seek(long lsn) {
+            stream().pos = lsn;
+        }
+
+        long getFilePointer() {
+            return stream().pos;
+        }
+
+        void invalidate() {
+            stream().bufLen = 0;
+        }
+    }
+
+    private final class SegmentStream extends InputStream {
+        private static final int BUFFER_SIZE = 8192;
+
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        /** LSN of buf[0], and the number of valid bytes in buf */
+        private long bufStart;
+        private int bufLen;
+        private long pos;
+
+        /** @return the number of buffered bytes at pos, filling the
+            buffer if there are none, or 0 at the end of the log */
+        private int buffered() throws IOException {
+            if (pos >= bufStart && pos < bufStart + bufLen) {
+                return (int) (bufStart + bufLen - pos);
+            }
+            bufLen = 0;
+            if (pos >= length) {
+                return 0;
+            }
+            if (pos < start - start % segmentSize) {
+                throw new IOException("log position " + pos + " was truncated");
+            }
+            FileChannel channel = channel(segmentOf(pos), false);
+            if (channel == null) {
+                throw new IOException("missing log segment " + segmentFile(segmentOf(pos)));
+            }
+            int offset = (int) (pos % segmentSize);
+            int len = (int) Math.min(Math.min(BUFFER_SIZE, segmentSize - offset), length - pos);
+            ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+            while (bb.hasRemaining()) {
+                if (channel.read(bb, offset + bb.position()) < 0) {
+                    break;
+                }
+            }
+            bufStart = pos;
+            bufLen = bb.position();
+            return bufLen;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (buffered() == 0) {
+                return -1;
+            }
+            return buf[(int) (pos++ - bufStart)] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int n = Math.min(len, buffered());
+            if (n == 0) {
+                return -1;
+            }
+            System.arraycopy(buf, (int) (pos - bufStart), b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, length - pos));
+            pos += skipped;
+            return skipped;
+        }
+    }
+}
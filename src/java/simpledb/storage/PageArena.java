@@ -0,0 +1,115 @@
+package simpledb.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * PageArena is a fixed set of page-sized frames carved out of off-heap memory
+ * that is allocated once, when the BufferPool is created. In off-heap mode the
+ * BufferPool reads pages straight into these frames and the pages read their
+ * slots from the frame on demand, so a resident page costs a few objects on
+ * the Java heap instead of a parsed copy of every tuple. The heap, and with it
+ * GC pause times, stays small no matter how large the pool is.
+ * <p>
+ * Direct buffers are limited to 2GB, so the memory is split into chunks of at
+ * most {@link #MAX_CHUNK_BYTES} bytes.
+ * <p>
+ * A frame is handed out by {@link #allocate()} and given back when the
+ * BufferPool drops the page occupying it, see {@link #release(Page)}.
+ *
+ * @see BufferPool#BufferPool(int, int, EvictionPolicy.Kind, boolean)
+ * @see HeapPage
+ */
+public class PageArena {
+
+    /** Upper bound on the size of one direct buffer. */
+    public static final int MAX_CHUNK_BYTES = 1 << 30;
+
+    private final int pageSize;
+
+    private final ByteBuffer[] frames;
+
+    /** Stack of free frame indexes; free[0..numFree) are valid. */
+    private final int[] free;
+    private int numFree;
+
+    /**
+     * Allocates numFrames frames of the current page size.
+     *
+     * @param numFrames the number of frames in the arena
+     */
+    public PageArena(int numFrames) {
+        this.pageSize = BufferPool.getPageSize();
+        this.frames = new ByteBuffer[numFrames];
+        this.free = new int[numFrames];
+
+        int framesPerChunk = Math.max(1, MAX_CHUNK_BYTES / pageSize);
+        for (int first = 0; first < numFrames; first += framesPerChunk) {
+            int n = Math.min(framesPerChunk, numFrames - first);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(n * pageSize);
+            for (int i = 0; i < n; i++) {
+                chunk.limit((i + 1) * pageSize).position(i * pageSize);
+                frames[first + i] = chunk.slice();
+            }
+        }
+        // hand out low frames first
+        for (int i = 0; i < numFrames; i++) {
+            free[i] = numFrames - 1 - i;
+        }
+        this.numFree = numFrames;
+    }
+
+    /** @return the number of frames in this arena */
+    public int getNumFrames() {
+        return frames.length;
+    }
+
+    /** @return the number of frames currently not occupied by a page */
+    public synchronized int getNumFreeFrames() {
+        return numFree;
+    }
+
+    /** @return the size in bytes of every frame */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Take a free frame.
+     *
+     * @return the index of the frame, or -1 if all frames are in use
+     */
+    public synchronized int allocate() {
+        if (numFree == 0) {
+            return -1;
+        }
+        return free[--numFree];
+    }
+
+    /**
+     * Return a view of the given frame. The view is shared, so callers must
+     * only use absolute gets and puts on it, or work on a duplicate.
+     */
+    public ByteBuffer frame(int index) {
+        return frames[index];
+    }
+
+    /** Give back a frame that is no longer in use. */
+    public synchronized void release(int index) {
+        free[numFree++] = index;
+    }
+
+    /**
+     * Give back the frame occupied by a page that is leaving the BufferPool.
+     * The page copies its contents to the heap first, so that anybody still
+     * holding a reference to it keeps seeing valid data. Pages that do not
+     * live in a frame are ignored.
+     */
+    public void release(Page page) {
+        if (page instanceof HeapPage) {
+            int index = ((HeapPage) page).detachFrame();
+            if (index >= 0) {
+                release(index);
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package simpledb.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PageDelta is the body of an UPDATE log record: the byte ranges in which
+ * the serialized after image of a page differs from its before image,
+ * together with the old and the new contents of each range. Since every
+ * page type serializes to a fixed-size byte array, this covers the header
+ * bits and the changed slots of HeapPages as well as the entries of B+ tree
+ * pages, and a single-tuple update logs a few dozen bytes instead of two
+ * full pages.
+ * <p>
+ * Redoing a delta sets every range to its new contents and undoing it sets
+ * every range to its old contents. Both are idempotent, so a page image can
+ * be brought forward by redoing deltas in log order, and back by undoing
+ * them in reverse log order, no matter which of them had already reached
+ * the disk.
+ * <p>
+ * The serialized form is:
+ * <ul>
+ * <li> the class name of the page id, the number of ints in the serialized
+ * page id, and those ints (see {@link PageId#serialize()})
+ * <li> the page size and the number of ranges
+ * <li> for each range its offset and length, followed by the old and the
+ * new bytes of the range
+ * </ul>
+ *
+ * @see LogFile#logWrite
+ */
+class PageDelta {
+
+    /**
+     * Unchanged runs shorter than this are logged as part of the surrounding
+     * ranges, which is cheaper than the offset and length of a new range.
+     */
+    static final int MERGE_GAP = 8;
+
+    private final PageId pid;
+    private final int pageSize;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(PageId pid, int pageSize, int[] offsets, byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.pageSize = pageSize;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /** Compute the delta that turns before into after. */
+    static PageDelta diff(Page before, Page after) {
+        byte[] old = before.getPageData();
+        byte[] now = after.getPageData();
+        if (old.length != now.length) {
+            throw new IllegalArgumentException("before and after image differ in size");
+        }
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < now.length) {
+            if (old[i] == now[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // extend the range over changes separated by short unchanged runs
+            for (int j = end; j < now.length && j < end + MERGE_GAP; j++) {
+                if (old[j] != now[j]) {
+                    end = j + 1;
+                }
+            }
+            ranges.add(new int[] {start, end});
+            i = end;
+        }
+        int[] offsets = new int[ranges.size()];
+        byte[][] b = new byte[ranges.size()][];
+        byte[][] a = new byte[ranges.size()][];
+        for (int r = 0; r < offsets.length; r++) {
+            int start = ranges.get(r)[0];
+            int end = ranges.get(r)[1];
+            offsets[r] = start;
+            b[r] = Arrays.copyOfRange(old, start, end);
+            a[r] = Arrays.copyOfRange(now, start, end);
+        }
+        return new PageDelta(after.getId(), now.length, offsets, b, a);
+    }
+
+    /** @return the id of the page this delta applies to */
+    PageId getPageId() {
+        return pid;
+    }
+
+    /** @return the size of the serialized page */
+    int getPageSize() {
+        return pageSize;
+    }
+
+    /** @return the number of changed ranges */
+    int getNumRanges() {
+        return offsets.length;
+    }
+
+    /** @return the number of changed bytes, merged gaps included */
+    int getNumBytes() {
+        int n = 0;
+        for (byte[] range : after) {
+            n += range.length;
+        }
+        return n;
+    }
+
+    /** Set every range of the page image to its new contents. */
+    void redo(byte[] page) {
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(after[r], 0, page, offsets[r], after[r].length);
+        }
+    }
+
+    /** Set every range of the page image to its old contents. */
+    void undo(byte[] page) {
+        for (int r = 0; r < offsets.length; r++) {
+            System.arraycopy(before[r], 0, page, offsets[r], before[r].length);
+        }
+    }
+
+    void write(DataOutput out) throws IOException {
+        writePageId(out, pid);
+        out.writeInt(pageSize);
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(after[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    static PageDelta read(DataInput in) throws IOException {
+        PageId pid = readPageId(in);
+        int pageSize = in.readInt();
+        int numRanges = in.readInt();
+        int[] offsets = new int[numRanges];
+        byte[][] before = new byte[numRanges][];
+        byte[][] after = new byte[numRanges][];
+        for (int r = 0; r < numRanges; r++) {
+            offsets[r] = in.readInt();
+            int length = in.readInt();
+            before[r] = new byte[length];
+            in.readFully(before[r]);
+            after[r] = new byte[length];
+            in.readFully(after[r]);
+        }
+        return new PageDelta(pid, pageSize, offsets, before, after);
+    }
+
+    /**
+     * Skip over a serialized delta, without reading its ranges.
+     *
+     * @return the id of the page the delta applies to
+     */
+    static PageId skip(DataInput in) throws IOException {
+        PageId pid = readPageId(in);
+        in.readInt();
+        int numRanges = in.readInt();
+        for (int r = 0; r < numRanges; r++) {
+            in.readInt();
+            int length = in.readInt();
+            skipFully(in, 2 * length);
+        }
+        return pid;
+    }
+
+    private static void skipFully(DataInput in, int n) throws IOException {
+        while (n > 0) {
+            int skipped = in.skipBytes(n);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            n -= skipped;
+        }
+    }
+
+    /** Write the class name and serialized form of a page id. */
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int[] pageInfo = pid.serialize();
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(pageInfo.length);
+        for (int j : pageInfo) {
+            out.writeInt(j);
+        }
+    }
+
+    /** Read a page id written by {@link #writePageId}. */
+    static PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        Object[] idArgs = new Object[in.readInt()];
+        for (int i = 0; i < idArgs.length; i++) {
+            idArgs[i] = in.readInt();
+        }
+        try {
+            Constructor<?>[] idConsts = Class.forName(idClassName).getDeclaredConstructors();
+            return (PageId) idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e) {
+            throw new IOException("cannot read page id of class " + idClassName, e);
+        }
+    }
+}
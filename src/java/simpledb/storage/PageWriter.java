@@ -0,0 +1,186 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * PageWriter writes pages of the BufferPool to disk on a background thread.
+ * It does two jobs:
+ * <ul>
+ * <li> It trickles pages from the dirty page table to disk, at most a
+ * configured number of pages per second. It works through the table in
+ * order of recovery LSN, so the oldest entries, which hold back the redo
+ * point of the next checkpoint and the truncation of the log, go first.
+ * Only pages no running transaction has changed are trickled.
+ * <li> In STEAL mode it keeps a fraction of the frames of every partition
+ * free or clean, so that getPage can evict a page without waiting for a
+ * write. Pages with committed changes are written before dirty pages of
+ * running transactions, and this is not rate limited.
+ * </ul>
+ * The BufferPool logs every page and forces the log before writing it.
+ *
+ * @see BufferPool#setBackgroundWriter(int)
+ * @see BufferPool#setWritePolicy(BufferPool.WritePolicy)
+ */
+class PageWriter implements Runnable {
+
+    /** How long the writer sleeps when there is nothing to write. */
+    static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final BufferPool pool;
+
+    private final LongAdder pagesWritten = new LongAdder();
+
+    /** Pause between two trickled writes, or 0 if trickling is off. */
+    private volatile long intervalNanos;
+
+    /** Fraction of the frames to keep clean, or 0 if cleaning is off. */
+    private volatile double cleanFraction;
+
+    private Thread thread;
+
+    PageWriter(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Write at most pagesPerSecond pages per second, starting the writer
+     * thread if it is not running; 0 stops it.
+     */
+    synchronized void setRate(int pagesPerSecond) {
+        if (pagesPerSecond < 0) {
+            throw new IllegalArgumentException("negative write rate: " + pagesPerSecond);
+        }
+        intervalNanos = pagesPerSecond == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / pagesPerSecond;
+        startOrStop();
+    }
+
+    /**
+     * Keep the given fraction of the frames of every partition clean,
+     * writing dirty pages if the pool is in STEAL mode; 0 turns it off.
+     */
+    synchronized void setCleanFraction(double fraction) {
+        cleanFraction = fraction;
+        startOrStop();
+    }
+
+    private boolean active() {
+        return intervalNanos > 0 || cleanFraction > 0;
+    }
+
+    /**
+     * Stop the writer and wait for the thread to finish the write it is
+     * doing, so that no page is written after this returns.
+     */
+    synchronized void stop() {
+        intervalNanos = 0;
+        cleanFraction = 0;
+        Thread running = thread;
+        startOrStop();
+        if (running != null && running != Thread.currentThread()) {
+            boolean interrupted = false;
+            while (running.isAlive()) {
+                try {
+                    running.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void startOrStop() {
+        if (!active()) {
+            if (thread != null) {
+                LockSupport.unpark(thread);
+                thread = null;
+            }
+        } else if (thread == null) {
+            thread = new Thread(this, "page-writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /** @return the number of pages written by the writer */
+    long getPagesWritten() {
+        return pagesWritten.sum();
+    }
+
+    @Override
+    public void run() {
+        Deque<PageId> pending = new ArrayDeque<>();
+        while (active() && Database.getBufferPool() == pool) {
+            double fraction = cleanFraction;
+            if (fraction > 0 && clean(fraction)) {
+                continue;
+            }
+            if (intervalNanos == 0) {
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+            if (pending.isEmpty()) {
+                pending.addAll(oldestFirst(pool.dirtyPageTable()));
+                if (pending.isEmpty()) {
+                    LockSupport.parkNanos(IDLE_NANOS);
+                    continue;
+                }
+            }
+            try {
+                if (pool.writeBack(pending.poll(), false)) {
+                    pagesWritten.increment();
+                    LockSupport.parkNanos(intervalNanos);
+                }
+            } catch (IOException e) {
+                // the page stays in the dirty page table; try again later
+                e.printStackTrace();
+                pending.clear();
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Write the pages needed to keep fraction of the frames clean.
+     *
+     * @return true if any page was written
+     */
+    private boolean clean(double fraction) {
+        boolean steal = pool.getWritePolicy() == BufferPool.WritePolicy.STEAL_NO_FORCE;
+        boolean written = false;
+        for (PageId pid : pool.pagesToClean(fraction)) {
+            try {
+                if (pool.writeBack(pid, steal)) {
+                    pagesWritten.increment();
+                    written = true;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return written;
+            }
+        }
+        return written;
+    }
+
+    private static List<PageId> oldestFirst(Map<PageId, Long> dirtyPages) {
+        List<Map.Entry<PageId, Long>> entries = new ArrayList<>(dirtyPages.entrySet());
+        entries.sort(Map.Entry.comparingByValue());
+        List<PageId> pids = new ArrayList<>(entries.size());
+        for (Map.Entry<PageId, Long> e : entries) {
+            pids.add(e.getKey());
+        }
+        return pids;
+    }
+}
@@ -0,0 +1,178 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ReadAhead watches the pages the BufferPool hands out and, once a HeapFile
+ * is being read sequentially, reads the next pages of the file into the pool
+ * on background threads before the scan asks for them. A scan that would
+ * otherwise wait for one disk read per page then mostly finds its pages
+ * resident, and several reads are in flight at the same time.
+ * <p>
+ * The read-ahead window of every file adapts to the scan: it starts at
+ * {@link #MIN_WINDOW} pages and doubles whenever the scan catches up with
+ * the pages being read ahead, and it is halved when pages read ahead were
+ * evicted again before the scan got to them. The window never exceeds a
+ * quarter of the pool, nor what fits in the scan's ring next to the pages
+ * that may still be in flight.
+ *
+ * @see BufferPool#setReadAhead(boolean)
+ */
+class ReadAhead {
+
+    /** Number of threads reading ahead, shared by all buffer pools. */
+    static final int THREADS = 4;
+
+    /** Pages read in a row before a file counts as being scanned. */
+    static final int SEQUENTIAL_RUN = 2;
+
+    static final int MIN_WINDOW = 2;
+
+    static final int MAX_WINDOW = 64;
+
+    private static final ThreadPoolExecutor IO = new ThreadPoolExecutor(THREADS, THREADS,
+            5, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "read-ahead");
+                t.setDaemon(true);
+                return t;
+            });
+
+    static {
+        IO.allowCoreThreadTimeOut(true);
+    }
+
+    /** Sequential access state of one file. */
+    private static final class Stream {
+        int lastPage = -1;
+        int run;
+        int window = MIN_WINDOW;
+        /** Highest page read ahead in the current run. */
+        int issuedUpTo = -1;
+    }
+
+    private final BufferPool pool;
+
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+
+    private final Map<PageId, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder pagesRead = new LongAdder();
+
+    ReadAhead(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /** @return the number of pages read into the pool ahead of a scan */
+    long getPagesRead() {
+        return pagesRead.sum();
+    }
+
+    /**
+     * Wait for a read ahead of pid that is in flight, if there is one.
+     *
+     * @return true if there was one, so pid is probably resident now
+     */
+    boolean awaitRead(PageId pid) {
+        CompletableFuture<Void> read = inFlight.get(pid);
+        if (read == null) {
+            return false;
+        }
+        read.join();
+        return true;
+    }
+
+    /**
+     * Record that pid was handed out and read ahead of it if its file is
+     * being scanned.
+     *
+     * @param pid the page handed out
+     * @param ring the ring of the scan, or null
+     * @param miss true if the page was not resident
+     * @param waited true if the page was being read ahead when it was asked for
+     */
+    void pageAccessed(PageId pid, ScanRing ring, boolean miss, boolean waited) {
+        if (!(pid instanceof HeapPageId)) {
+            return;
+        }
+        Stream s = streams.computeIfAbsent(pid.getTableId(), id -> new Stream());
+        int from, to;
+        synchronized (s) {
+            int page = pid.getPageNumber();
+            if (page != s.lastPage + 1) {
+                s.lastPage = page;
+                s.run = 0;
+                s.window = MIN_WINDOW;
+                s.issuedUpTo = page;
+                return;
+            }
+            s.lastPage = page;
+            if (++s.run < SEQUENTIAL_RUN) {
+                return;
+            }
+            if (miss && page <= s.issuedUpTo) {
+                // read ahead, but evicted again before the scan got there
+                s.window = Math.max(MIN_WINDOW, s.window / 2);
+            } else if (waited || miss) {
+                // the scan is faster than the reads ahead of it
+                s.window = s.window * 2;
+            }
+            s.window = Math.min(s.window, maxWindow(ring));
+            from = Math.max(s.issuedUpTo, page) + 1;
+            to = page + s.window;
+            if (from > to) {
+                return;
+            }
+            to = Math.min(to, numPages(pid.getTableId()) - 1);
+            s.issuedUpTo = Math.max(s.issuedUpTo, to);
+        }
+        for (int n = from; n <= to; n++) {
+            submit(new HeapPageId(pid.getTableId(), n), ring);
+        }
+    }
+
+    private int maxWindow(ScanRing ring) {
+        int max = Math.min(MAX_WINDOW, pool.getNumPages() / 4);
+        if (ring != null) {
+            // pages read ahead out of order must not push each other out of the ring
+            max = Math.min(max, ring.size() - THREADS - 1);
+        }
+        return Math.max(0, max);
+    }
+
+    private static int numPages(int tableId) {
+        try {
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            return file instanceof HeapFile ? ((HeapFile) file).numPages() : 0;
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private void submit(PageId pid, ScanRing ring) {
+        CompletableFuture<Void> read = new CompletableFuture<>();
+        if (inFlight.putIfAbsent(pid, read) != null) {
+            return;
+        }
+        IO.execute(() -> {
+            try {
+                if (pool.prefetch(pid, ring)) {
+                    pagesRead.increment();
+                }
+            } catch (DbException | RuntimeException e) {
+                // reading ahead is best effort; the scan reads the page itself
+            } finally {
+                inFlight.remove(pid);
+                read.complete(null);
+            }
+        });
+    }
+}
@@ -0,0 +1,45 @@
+package simpledb.storage;
+
+/**
+ * ScanRing is a small, private set of buffer pool frames used by one large
+ * sequential scan, in the spirit of PostgreSQL's bulk-read buffer access
+ * strategy. Pages the scan has to read from disk are installed through the
+ * ring; once the ring is full, the next page read recycles the frame of the
+ * oldest one instead of asking the eviction policy for a victim. A scan over
+ * a table much larger than the pool therefore only ever occupies a handful of
+ * frames and leaves the working set of other transactions alone.
+ * <p>
+ * Pages that somebody else hits while they sit in the ring are no longer the
+ * ring's to recycle; the BufferPool keeps track of that.
+ *
+ * @see BufferPool#newScanRing()
+ * @see BufferPool#getPage(simpledb.transaction.TransactionId, PageId, simpledb.common.Permissions, ScanRing)
+ */
+public class ScanRing {
+
+    private final PageId[] slots;
+    private int next;
+
+    ScanRing(int size) {
+        this.slots = new PageId[Math.max(1, size)];
+        this.next = 0;
+    }
+
+    /** @return the number of frames this ring may occupy */
+    public int size() {
+        return slots.length;
+    }
+
+    /**
+     * Record that pid now occupies the next frame of the ring.
+     *
+     * @return the page that occupied that frame before, or null while the
+     *         ring is still filling up
+     */
+    synchronized PageId add(PageId pid) {
+        PageId old = slots[next];
+        slots[next] = pid;
+        next = (next + 1) % slots.length;
+        return old;
+    }
+}
@@ -0,0 +1,108 @@
+package simpledb.storage;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Full 2Q replacement (Johnson and Shasha). New pages enter the FIFO queue
+ * A1in. When they are evicted from there their ids are remembered in the
+ * ghost queue A1out; a page that is read again while its id is still in A1out
+ * has proven it is reused and goes to the LRU queue Am. Pages that are only
+ * touched once, like those of a large scan, therefore never displace the Am
+ * working set.
+ * <p>
+ * A page that is not evictable when it comes up as the victim is set aside
+ * until it is cleaned, and then goes to the back of the queue it left. All
+ * operations are O(1), picking a victim amortized over those pages.
+ */
+public class TwoQEvictionPolicy extends AbstractEvictionPolicy {
+
+    private final int kIn;
+    private final int kOut;
+
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    private final LinkedHashSet<PageId> am;
+
+    /** Pages set aside by chooseVictim, with the queue they left */
+    private final Map<PageId, LinkedHashSet<PageId>> parked;
+
+    public TwoQEvictionPolicy(int capacity) {
+        // the sizes recommended in the paper: 25% for A1in, 50% for A1out
+        this.kIn = Math.max(1, capacity / 4);
+        this.kOut = Math.max(1, capacity / 2);
+        this.a1in = new LinkedHashSet<>();
+        this.a1out = new LinkedHashSet<>();
+        this.am = new LinkedHashSet<>();
+        this.parked = new HashMap<>();
+    }
+
+    @Override
+    protected void recordHit(PageId pid) {
+        // hits inside A1in are deliberately ignored: they are most likely
+        // correlated references from the access that loaded the page
+        if (am.remove(pid)) {
+            am.add(pid);
+        }
+    }
+
+    @Override
+    protected void recordLoad(PageId pid) {
+        if (a1in.contains(pid) || am.contains(pid) || parked.containsKey(pid)) {
+            recordHit(pid);
+            return;
+        }
+        if (a1out.remove(pid)) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        LinkedHashSet<PageId> queue = parked.remove(pid);
+        if (queue == a1in || a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > kOut) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public void pageCleaned(PageId pid) {
+        LinkedHashSet<PageId> queue = parked.remove(pid);
+        if (queue != null) {
+            queue.add(pid);
+        }
+    }
+
+    public PageId chooseVictim(Predicate<PageId> evictable) {
+        boolean fromIn = a1in.size() > kIn || am.isEmpty();
+        PageId victim = firstEvictable(fromIn ? a1in : am, evictable);
+        if (victim == null) {
+            victim = firstEvictable(fromIn ? am : a1in, evictable);
+        }
+        return victim;
+    }
+
+    /** Park the pages at the head of queue up to the first evictable one. */
+    private PageId firstEvictable(LinkedHashSet<PageId> queue, Predicate<PageId> evictable) {
+        Iterator<PageId> it = queue.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.test(pid)) {
+                return pid;
+            }
+            it.remove();
+            parked.put(pid, queue);
+        }
+        return null;
+    }
+}
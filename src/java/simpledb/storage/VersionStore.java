@@ -0,0 +1,142 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+/**
+ * VersionStore keeps the page versions that snapshot transactions read.
+ * <p>
+ * Commits that change pages are numbered by a commit clock, and a snapshot
+ * is the value of the clock when it began: it sees exactly the commits
+ * numbered up to there.  A transaction that gets a page for writing first
+ * saves the page's committed image.  While it runs, snapshots read that
+ * image instead of the page.  When it commits, the images it saved become
+ * versions: each is stored with the number of the commit that replaced it,
+ * and a snapshot reads the oldest version replaced after it began, or the
+ * current page if there is none.  Versions no running snapshot can read are
+ * dropped when a snapshot ends, and no versions are kept while no snapshot
+ * runs.
+ * <p>
+ * All methods synchronize on the store.  A page is copied while holding
+ * the monitor, and the writer saves its committed image, also under the
+ * monitor, before changing it, so a snapshot never copies a page while it
+ * is being changed.
+ */
+class VersionStore {
+
+    /** Number of the last commit that changed pages */
+    private long clock;
+
+    /** The snapshot of every running snapshot transaction */
+    private final Map<TransactionId, Long> snapshots = new HashMap<>();
+    /** How many running snapshots began at each clock value */
+    private final TreeMap<Long, Integer> snapshotCounts = new TreeMap<>();
+
+    /** Committed images of the pages each running writer got for writing */
+    private final Map<TransactionId, Map<PageId, byte[]>> writerImages = new HashMap<>();
+    /** The same images by page; a page has one writer at a time */
+    private final Map<PageId, byte[]> uncommitted = new HashMap<>();
+
+    /** Replaced page versions by page, keyed by the number of the commit
+        that replaced them */
+    private final Map<PageId, TreeMap<Long, byte[]>> versions = new HashMap<>();
+
+    /** Begin a snapshot of the current committed state for tid. */
+    synchronized void begin(TransactionId tid) {
+        if (snapshots.putIfAbsent(tid, clock) == null) {
+            snapshotCounts.merge(clock, 1, Integer::sum);
+        }
+    }
+
+    /** @return tid's snapshot, or null if tid is not a snapshot transaction */
+    synchronized Long snapshotOf(TransactionId tid) {
+        return snapshots.get(tid);
+    }
+
+    /** End tid's snapshot and drop the versions nobody can read anymore. */
+    synchronized void end(TransactionId tid) {
+        Long snapshot = snapshots.remove(tid);
+        if (snapshot == null) {
+            return;
+        }
+        snapshotCounts.computeIfPresent(snapshot, (s, n) -> n == 1 ? null : n - 1);
+        if (snapshotCounts.isEmpty()) {
+            versions.clear();
+            return;
+        }
+        // a snapshot reads the oldest version replaced after it began
+        long oldest = snapshotCounts.firstKey();
+        for (Iterator<TreeMap<Long, byte[]>> it = versions.values().iterator(); it.hasNext(); ) {
+            TreeMap<Long, byte[]> pageVersions = it.next();
+            pageVersions.headMap(oldest, true).clear();
+            if (pageVersions.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /** Save the committed image of page, which writer is about to change,
+        unless writer saved it already. */
+    synchronized void saveCommitted(TransactionId writer, Page page) {
+        Map<PageId, byte[]> images = writerImages.computeIfAbsent(writer, t -> new HashMap<>());
+        PageId pid = page.getId();
+        if (!images.containsKey(pid)) {
+            byte[] image = page.getPageData();
+            images.put(pid, image);
+            uncommitted.put(pid, image);
+        }
+    }
+
+    /** Make writer's changes visible to snapshots that begin from now on. */
+    synchronized void commit(TransactionId writer) {
+        Map<PageId, byte[]> images = writerImages.remove(writer);
+        if (images == null) {
+            return;
+        }
+        long number = ++clock;
+        for (Map.Entry<PageId, byte[]> e : images.entrySet()) {
+            uncommitted.remove(e.getKey());
+            if (!snapshots.isEmpty()) {
+                versions.computeIfAbsent(e.getKey(), pid -> new TreeMap<>()).put(number, e.getValue());
+            }
+        }
+    }
+
+    /** Forget the images writer saved; its pages are restored already. */
+    synchronized void abort(TransactionId writer) {
+        Map<PageId, byte[]> images = writerImages.remove(writer);
+        if (images != null) {
+            uncommitted.keySet().removeAll(images.keySet());
+        }
+    }
+
+    /**
+     * @param current supplies a copy of the resident page
+     * @return the image of pid that snapshot sees
+     */
+    synchronized byte[] read(long snapshot, PageId pid, Supplier<byte[]> current) {
+        TreeMap<Long, byte[]> pageVersions = versions.get(pid);
+        if (pageVersions != null) {
+            Map.Entry<Long, byte[]> replaced = pageVersions.higherEntry(snapshot);
+            if (replaced != null) {
+                return replaced.getValue();
+            }
+        }
+        byte[] image = uncommitted.get(pid);
+        return image != null ? image : current.get();
+    }
+
+    /** @return the number of page versions kept for snapshots */
+    synchronized int getVersionCount() {
+        int count = 0;
+        for (TreeMap<Long, byte[]> pageVersions : versions.values()) {
+            count += pageVersions.size();
+        }
+        return count;
+    }
+}
@@ -1,25 +1,283 @@
 package simpledb.transaction;
 
+import simpledb.common.DeadlockException;
 import simpledb.common.Permissions;
 import simpledb.storage.PageId;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * LockManager keeps the locks of transactions on tables and pages.
+ * <p>
+ * Locking is multi-granularity: before a transaction locks a page SHARED
+ * or EXCLUSIVE, it locks the page's table INTENTION_SHARED or
+ * INTENTION_EXCLUSIVE, unless it holds a table lock that covers the page
+ * lock already.  A transaction that locks a whole table, because it scans
+ * it or because it crossed the escalation threshold, does not lock its
+ * pages at all.  See LockMode for which modes are compatible.
+ * <p>
+ * Every locked table or page has an entry in the lock table with its
+ * holders and a FIFO queue of waiting requests.  A request that conflicts
+ * with the holders, or that would overtake a waiting request, joins the
+ * queue and sleeps on its own condition; releasing a lock grants the
+ * requests at the head of the queue that have become compatible and wakes
+ * exactly those.  A transaction that already holds a lock on the entry
+ * upgrades it to the combination of both modes, without queueing if no
+ * other holder conflicts, and at the head of the queue otherwise.
+ * <p>
+ * Requests wait without a timeout.  Deadlocks are found in a waits-for
+ * graph, which has an edge from every waiting transaction to each holder
+ * or earlier waiter it conflicts with.  An entry updates the edges of its
+ * waiters whenever its holders or queue change, and a transaction that is
+ * about to block looks for a cycle through itself.  The youngest
+ * transaction of a cycle is aborted with a DeadlockException: right away
+ * if it is the one blocking, by waking it otherwise.
+ * <p>
+ * Every transaction has an index of the entries it holds locks on, so
+ * releasing its locks costs as much as it has locked, and an entry leaves
+ * the lock table as soon as nobody holds or waits for a lock on it.
+ * <p>
+ * Once a transaction holds more than the escalation threshold of page
+ * locks in one table, its intention lock is escalated to a SHARED or
+ * EXCLUSIVE table lock and the page locks are released.  Escalation never
+ * waits: if another transaction's lock conflicts, the transaction keeps
+ * locking pages and tries again with its next page lock.
+ */
 public class LockManager {
-    private static final Byte FK = 0;
-    private static final int MINTIME = 100, MAXLEN = 900;
-    private final Random random = new Random();
 
-    private final Map<PageId, Map<TransactionId, Byte>> pageReadHolders;
-    private final Map<PageId, TransactionId> pageWriteHolders;
+    /** Page locks a transaction may hold in one table before escalation */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    /** Lock table entries, keyed by PageId for pages and by the Integer
+        table id for tables */
+    private final Map<Object, LockEntry> lockTable = new ConcurrentHashMap<>();
+
+    /** The locks every transaction holds */
+    private final Map<TransactionId, Held> heldLocks = new ConcurrentHashMap<>();
+
+    /** Waits-for graph: the transactions every waiting transaction waits
+        for.  The edges of a transaction are set by the entry it waits on,
+        while holding that entry's latch. */
+    private final Map<TransactionId, Set<TransactionId>> waitsFor = new ConcurrentHashMap<>();
+    /** The request every waiting transaction waits on */
+    private final Map<TransactionId, Request> waiting = new ConcurrentHashMap<>();
+    /** Serializes deadlock detection; taken before any entry latch */
+    private final Object detector = new Object();
+
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+
+    /** The entries a transaction holds locks on; guarded by itself. */
+    private static final class Held {
+        final Set<Object> resources = new HashSet<>();
+        /** Number of page locks held per table id */
+        final Map<Integer, Integer> pagesPerTable = new HashMap<>();
+    }
+
+    /** A waiting lock request; guarded by the latch of its entry. */
+    private static final class Request {
+        final TransactionId tid;
+        /** The mode the transaction will hold once granted */
+        final LockMode mode;
+        final LockEntry entry;
+        final Condition granted;
+        boolean isGranted;
+        /** Chosen as the victim of a deadlock */
+        boolean isAborted;
+
+        Request(TransactionId tid, LockMode mode, LockEntry entry) {
+            this.tid = tid;
+            this.mode = mode;
+            this.entry = entry;
+            this.granted = entry.latch.newCondition();
+        }
+    }
+
+    /** The holders and waiters of the locks on one table or page. */
+    private final class LockEntry {
+        final Object resource;
+        final ReentrantLock latch = new ReentrantLock();
+        /** Set once the entry left the lock table; a thread that finds it
+            set looks the resource up again */
+        boolean removed;
+        final Map<TransactionId, LockMode> holders = new HashMap<>();
+        final ArrayDeque<Request> waiters = new ArrayDeque<>();
+
+        LockEntry(Object resource) {
+            this.resource = resource;
+        }
+
+        boolean holds(TransactionId tid, LockMode mode) {
+            LockMode held = holders.get(tid);
+            return held != null && held.covers(mode);
+        }
+
+        boolean compatible(TransactionId tid, LockMode mode) {
+            for (Map.Entry<TransactionId, LockMode> h : holders.entrySet()) {
+                if (!h.getKey().equals(tid) && !h.getValue().isCompatibleWith(mode)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void grant(TransactionId tid, LockMode mode) {
+            if (holders.put(tid, mode) == null) {
+                held(tid, resource, true);
+            }
+        }
+
+        void enqueue(Request request, boolean first) {
+            if (first) {
+                waiters.addFirst(request);
+            } else {
+                waiters.addLast(request);
+            }
+            waiting.put(request.tid, request);
+            updateWaitsFor();
+        }
+
+        /** Take a request that will not be granted out of the queue. */
+        void dequeue(Request request) {
+            waiters.remove(request);
+            waiting.remove(request.tid, request);
+            waitsFor.remove(request.tid);
+            grantWaiters();
+            reclaimIfUnused();
+        }
+
+        /** Grant the requests at the head of the queue that are compatible. */
+        void grantWaiters() {
+            Request head;
+            while ((head = waiters.peek()) != null && compatible(head.tid, head.mode)) {
+                waiters.poll();
+                grant(head.tid, head.mode);
+                head.isGranted = true;
+                waiting.remove(head.tid, head);
+                waitsFor.remove(head.tid);
+                head.granted.signal();
+            }
+            updateWaitsFor();
+        }
+
+        /** Set the waits-for edges of every request in the queue: the
+            holders it conflicts with, and the requests ahead of it that
+            it conflicts with, since those are granted first. */
+        void updateWaitsFor() {
+            List<Request> ahead = new ArrayList<>();
+            for (Request r : waiters) {
+                Set<TransactionId> blockers = new HashSet<>();
+                for (Map.Entry<TransactionId, LockMode> h : holders.entrySet()) {
+                    if (!h.getValue().isCompatibleWith(r.mode)) {
+                        blockers.add(h.getKey());
+                    }
+                }
+                for (Request a : ahead) {
+                    if (!a.mode.isCompatibleWith(r.mode)) {
+                        blockers.add(a.tid);
+                    }
+                }
+                blockers.remove(r.tid);
+                waitsFor.put(r.tid, blockers);
+                ahead.add(r);
+            }
+        }
+
+        /** Drop tid's lock and grant whatever that makes possible. */
+        void release(TransactionId tid) {
+            if (holders.remove(tid) != null) {
+                held(tid, resource, false);
+            }
+            grantWaiters();
+            reclaimIfUnused();
+        }
+
+        /** Drop the entry from the lock table once it is unused. */
+        void reclaimIfUnused() {
+            if (holders.isEmpty() && waiters.isEmpty()) {
+                removed = true;
+                lockTable.remove(resource, this);
+            }
+        }
+    }
 
     public LockManager(){
-        this.pageReadHolders = new ConcurrentHashMap<PageId, Map<TransactionId, Byte>>();
-        this.pageWriteHolders = new ConcurrentHashMap<PageId, TransactionId>();
+    }
+
+    /** Record that tid acquired or released its lock on resource. */
+    private void held(TransactionId tid, Object resource, boolean acquired) {
+        Held held = acquired ? heldLocks.computeIfAbsent(tid, key -> new Held()) : heldLocks.get(tid);
+        if (held == null) {
+            return;
+        }
+        synchronized (held) {
+            boolean changed = acquired ? held.resources.add(resource) : held.resources.remove(resource);
+            if (changed && resource instanceof PageId) {
+                held.pagesPerTable.merge(((PageId) resource).getTableId(), acquired ? 1 : -1, Integer::sum);
+            }
+        }
+    }
+
+    /** @return the lock table entry of resource, with its latch held */
+    private LockEntry latchEntry(Object resource) {
+        while (true) {
+            LockEntry entry = lockTable.computeIfAbsent(resource, LockEntry::new);
+            entry.latch.lock();
+            if (!entry.removed) {
+                return entry;
+            }
+            entry.latch.unlock();
+        }
+    }
+
+    /**
+     * Lock resource in mode for tid, or upgrade its lock.
+     *
+     * @param wait false to give up rather than wait for a conflicting lock
+     * @return false if the lock was not granted without waiting
+     */
+    private boolean lock(TransactionId tid, Object resource, LockMode mode, boolean wait)
+            throws TransactionAbortedException {
+        LockEntry entry = latchEntry(resource);
+        Request request;
+        try {
+            LockMode held = entry.holders.get(tid);
+            if (held != null && held.covers(mode)) {
+                return true;
+            }
+            LockMode target = held == null ? mode : held.combine(mode);
+            // FIFO: a new request does not overtake waiting ones, an upgrade does
+            if ((held != null || entry.waiters.isEmpty()) && entry.compatible(tid, target)) {
+                entry.grant(tid, target);
+                return true;
+            }
+            if (!wait) {
+                entry.reclaimIfUnused();
+                return false;
+            }
+            request = new Request(tid, target, entry);
+            entry.enqueue(request, held != null);
+        } finally {
+            entry.latch.unlock();
+        }
+        // detect without the entry latch, which detection may need for a victim
+        breakDeadlocks(tid);
+        entry.latch.lock();
+        try {
+            await(request);
+        } finally {
+            entry.latch.unlock();
+        }
+        return true;
     }
 
     /**
@@ -29,65 +287,185 @@ public class LockManager {
      * @param p
      */
     public void acquire(TransactionId tid, PageId pid, Permissions p) throws TransactionAbortedException{
+        LockMode mode = p == Permissions.READ_ONLY ? LockMode.SHARED : LockMode.EXCLUSIVE;
+        Integer table = pid.getTableId();
+        if (holds(tid, table, mode)) {
+            return;
+        }
+        lock(tid, table, mode == LockMode.SHARED ? LockMode.INTENTION_SHARED : LockMode.INTENTION_EXCLUSIVE, true);
+        lock(tid, pid, mode, true);
+        escalateIfNeeded(tid, table);
+    }
+
+    /**
+     * Like {@link #acquire}, but give up rather than wait for another
+     * transaction's lock.
+     *
+     * @return false if the lock was not granted
+     */
+    public boolean tryAcquire(TransactionId tid, PageId pid, Permissions p) throws TransactionAbortedException {
+        LockMode mode = p == Permissions.READ_ONLY ? LockMode.SHARED : LockMode.EXCLUSIVE;
+        Integer table = pid.getTableId();
+        if (holds(tid, table, mode)) {
+            return true;
+        }
+        if (!lock(tid, table, mode == LockMode.SHARED ? LockMode.INTENTION_SHARED : LockMode.INTENTION_EXCLUSIVE, false)
+                || !lock(tid, pid, mode, false)) {
+            return false;
+        }
+        escalateIfNeeded(tid, table);
+        return true;
+    }
+
+    /**
+     * Lock a whole table for tid: SHARED for READ_ONLY, EXCLUSIVE
+     * otherwise.  The transaction then needs no locks on the table's pages.
+     */
+    public void acquireTable(TransactionId tid, int tableId, Permissions p) throws TransactionAbortedException {
+        lock(tid, tableId, p == Permissions.READ_ONLY ? LockMode.SHARED : LockMode.EXCLUSIVE, true);
+    }
+
+    /**
+     * Replace tid's page locks in table by a table lock, if it holds more
+     * than the escalation threshold of them and the table lock can be
+     * granted without waiting.
+     */
+    private void escalateIfNeeded(TransactionId tid, Integer table) throws TransactionAbortedException {
+        Held held = heldLocks.get(tid);
+        if (held == null) {
+            return;
+        }
+        synchronized (held) {
+            if (held.pagesPerTable.getOrDefault(table, 0) <= escalationThreshold) {
+                return;
+            }
+        }
+        LockMode intention = getTableLockMode(tid, table);
+        LockMode mode = intention != null && intention.covers(LockMode.INTENTION_EXCLUSIVE)
+                ? LockMode.EXCLUSIVE : LockMode.SHARED;
+        if (!lock(tid, table, mode, false)) {
+            return;
+        }
+        List<PageId> pages = new ArrayList<>();
+        synchronized (held) {
+            for (Object resource : held.resources) {
+                if (resource instanceof PageId && ((PageId) resource).getTableId() == table) {
+                    pages.add((PageId) resource);
+                }
+            }
+        }
+        for (PageId pid : pages) {
+            release(tid, pid);
+        }
+    }
+
+    /** Wait for request to be granted, or to be aborted as a deadlock
+        victim.  Called with the request's entry latch held. */
+    private void await(Request request) throws TransactionAbortedException {
         try {
-            if(p == Permissions.READ_ONLY) {
-                acquireReadLock(tid, pid);
-            } else {
-                acquireWriteLock(tid, pid);
+            while (!request.isGranted && !request.isAborted) {
+                request.granted.await();
             }
         } catch (InterruptedException e) {
+            // an interrupted wait aborts the transaction
+        } finally {
+            if (!request.isGranted && !request.isAborted) {
+                request.entry.dequeue(request);
+            }
+        }
+        if (request.isAborted) {
+            throw new DeadlockException();
+        }
+        if (!request.isGranted) {
             throw new TransactionAbortedException();
         }
     }
 
     /**
-     * 事物tid尝试对页pid上读锁
-     * @param tid
-     * @param pid
+     * Abort the youngest transaction of every cycle through tid in the
+     * waits-for graph.  Any new cycle goes through the transaction whose
+     * request added the last edge, so checking when a request blocks finds
+     * every deadlock.
      */
-    public void acquireReadLock(TransactionId tid, PageId pid) throws InterruptedException {
-        if(!hold(tid, pid)) {
-            synchronized (pid) {
-                Thread thread = Thread.currentThread();
-                Timer timer = new Timer(true);
-                timer.schedule(new TimerTask() {
-                    @Override
-                    public void run() {
-                        thread.interrupt();
-                    }
-                }, MINTIME + random.nextInt(MAXLEN));
-                while(pageWriteHolders.containsKey(pid)) {
-                    pid.wait(5);
+    private void breakDeadlocks(TransactionId tid) {
+        synchronized (detector) {
+            List<TransactionId> cycle;
+            while ((cycle = findCycle(tid)) != null) {
+                TransactionId victim = Collections.max(cycle,
+                        (a, b) -> Long.compare(a.getId(), b.getId()));
+                Request request = waiting.get(victim);
+                if (request == null || !abort(request)) {
+                    // the victim was granted meanwhile, which broke the cycle
+                    return;
                 }
-                timer.cancel();
-                pageReadHolders.computeIfAbsent(pid, key-> new ConcurrentHashMap<TransactionId, Byte>()).put(tid, FK);
             }
         }
     }
 
-    /**
-     * 事物tid尝试对页pid上写锁
-     * @param tid
-     * @param pid
-     */
-    public void acquireWriteLock(TransactionId tid, PageId pid) throws InterruptedException{
-        if(!holdWriteLock(tid, pid)) {
-            synchronized (pid) {
-                Thread thread = new Thread();
-                Timer timer = new Timer(true);
-                timer.schedule(new TimerTask() {
-                    @Override
-                    public void run() {
-                        thread.interrupt();
-                    }
-                }, MINTIME + random.nextInt(MAXLEN));
-                while(haveOtherReadersOnPage(tid, pid) || pageWriteHolders.containsKey(pid)) {
-                    pid.wait(5);
+    /** @return the transactions of a cycle through tid, or null if there
+        is none */
+    private List<TransactionId> findCycle(TransactionId tid) {
+        List<TransactionId> path = new ArrayList<>();
+        path.add(tid);
+        return findCycle(tid, path, new HashSet<>()) ? path : null;
+    }
+
+    private boolean findCycle(TransactionId target, List<TransactionId> path, Set<TransactionId> visited) {
+        Set<TransactionId> next = waitsFor.get(path.get(path.size() - 1));
+        if (next == null) {
+            return false;
+        }
+        for (TransactionId t : next) {
+            if (t.equals(target)) {
+                return true;
+            }
+            if (visited.add(t)) {
+                path.add(t);
+                if (findCycle(target, path, visited)) {
+                    return true;
                 }
-                timer.cancel();
-                pageWriteHolders.put(pid, tid);
+                path.remove(path.size() - 1);
             }
         }
+        return false;
+    }
+
+    /** Abort a waiting request, waking its thread.
+        @return false if it is no longer waiting */
+    private boolean abort(Request request) {
+        LockEntry entry = request.entry;
+        entry.latch.lock();
+        try {
+            if (request.isGranted || request.isAborted) {
+                return false;
+            }
+            request.isAborted = true;
+            entry.dequeue(request);
+            request.granted.signal();
+            return true;
+        } finally {
+            entry.latch.unlock();
+        }
+    }
+
+    /** @return true if tid holds a lock on resource that covers mode */
+    private boolean holds(TransactionId tid, Object resource, LockMode mode) {
+        LockEntry entry = lockTable.get(resource);
+        if (entry == null) {
+            return false;
+        }
+        entry.latch.lock();
+        try {
+            return entry.holds(tid, mode);
+        } finally {
+            entry.latch.unlock();
+        }
+    }
+
+    /** @return true if tid may access pid in mode, by a lock on the page or
+        on its table */
+    private boolean holdsPage(TransactionId tid, PageId pid, LockMode mode) {
+        return holds(tid, pid, mode) || holds(tid, pid.getTableId(), mode);
     }
 
     /**
@@ -97,7 +475,7 @@ public class LockManager {
      * @return
      */
     public boolean hold(TransactionId tid, PageId pid) {
-        return holdReadLock(tid, pid) || holdWriteLock(tid, pid);
+        return holdsPage(tid, pid, LockMode.SHARED);
     }
 
     /**
@@ -106,9 +484,7 @@ public class LockManager {
      * @return
      */
     public boolean holdReadLock(TransactionId tid, PageId pid) {
-        synchronized (pid) {
-            return pageReadHolders.containsKey(pid) && pageReadHolders.get(pid).containsKey(tid);
-        }
+        return holdsPage(tid, pid, LockMode.SHARED);
     }
 
     /**
@@ -118,66 +494,67 @@ public class LockManager {
      * @return
      */
     public boolean holdWriteLock(TransactionId tid, PageId pid) {
-        synchronized (pid) {
-            return pageWriteHolders.containsKey(pid) && pageWriteHolders.get(pid).equals(tid);
+        return holdsPage(tid, pid, LockMode.EXCLUSIVE);
+    }
+
+    /** @return the mode of tid's lock on a table, or null if it holds none */
+    public LockMode getTableLockMode(TransactionId tid, int tableId) {
+        LockEntry entry = lockTable.get(tableId);
+        if (entry == null) {
+            return null;
+        }
+        entry.latch.lock();
+        try {
+            return entry.holders.get(tid);
+        } finally {
+            entry.latch.unlock();
         }
     }
 
-    /**
-     * 判断页面pid上是否有除了事物tid外其他的读锁
-     * @param tid
-     * @param pid
-     * @return
-     */
-    public boolean haveOtherReadersOnPage(TransactionId tid, PageId pid) {
-        synchronized (pid) {
-            if(pageReadHolders.containsKey(pid)) {
-                for(TransactionId t : pageReadHolders.get(pid).keySet()) {
-                    if(!t.equals(tid)) {
-                        return true;
-                    }
-                }
-            }
-            return false;
+    /** Escalate to a table lock once a transaction holds more than
+        threshold page locks in one table */
+    public void setEscalationThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("negative escalation threshold: " + threshold);
         }
+        escalationThreshold = threshold;
     }
 
-    /**
-     * 释放事物tid在页面pid上的所有锁
-     * @param tid
-     * @param pid
-     */
-    public void release(TransactionId tid, PageId pid) {
-        releaseReadLock(tid, pid);
-        releaseWriteLock(tid, pid);
+    public int getEscalationThreshold() {
+        return escalationThreshold;
     }
 
-    /**
-     * 删除事物tid在页面pid上的读锁
-     * @param tid
-     * @param pid
-     */
-    public void releaseReadLock(TransactionId tid, PageId pid) {
-        if(holdReadLock(tid, pid)) {
-            synchronized (pid) {
-                pageReadHolders.get(pid).remove(tid);
-                if(pageReadHolders.get(pid).isEmpty()) {
-                    pageReadHolders.remove(pid);
-                }
+    /** @return the number of pages in the lock table, which are the pages
+        some transaction holds or waits for a lock on */
+    public int getLockedPageCount() {
+        int pages = 0;
+        for (Object resource : lockTable.keySet()) {
+            if (resource instanceof PageId) {
+                pages++;
             }
         }
+        return pages;
     }
 
     /**
-     * 删除事物tid在页面pid上的写锁
+     * 释放事物tid在页面pid上的所有锁
      * @param tid
      * @param pid
      */
-    public void releaseWriteLock(TransactionId tid, PageId pid) {
-        if(holdWriteLock(tid, pid)) {
-            synchronized (pid) {
-                pageWriteHolders.remove(pid);
-            }
+    public void release(TransactionId tid, PageId pid) {
+        releaseEntry(tid, pid);
+    }
+
+    private void releaseEntry(TransactionId tid, Object resource) {
+        LockEntry entry = lockTable.get(resource);
+        if (entry == null) {
+            return;
+        }
+        entry.latch.lock();
+        try {
+            entry.release(tid);
+        } finally {
+            entry.latch.unlock();
         }
     }
 
@@ -186,12 +563,17 @@ public class LockManager {
      * @param tid
      */
     public void releaseAll(TransactionId tid) {
-        for(PageId pid : pageWriteHolders.keySet()) {
-            releaseWriteLock(tid, pid);
+        Held held = heldLocks.remove(tid);
+        if (held == null) {
+            return;
         }
-        for(PageId pid : pageReadHolders.keySet()) {
-            releaseReadLock(tid, pid);
+        List<Object> resources;
+        synchronized (held) {
+            resources = new ArrayList<>(held.resources);
         }
-     }
+        for (Object resource : resources) {
+            releaseEntry(tid, resource);
+        }
+    }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,61 @@
+package simpledb.transaction;
+
+/**
+ * The modes of the multi-granularity locks of LockManager.  Pages are only
+ * locked SHARED or EXCLUSIVE; a table may be locked in any mode, where the
+ * intention modes announce locks on its pages.
+ */
+public enum LockMode {
+    /** Intends to lock pages of the table SHARED */
+    INTENTION_SHARED,
+    /** Intends to lock pages of the table EXCLUSIVE */
+    INTENTION_EXCLUSIVE,
+    SHARED,
+    /** SHARED on the table, and intends to lock pages EXCLUSIVE */
+    SHARED_INTENTION_EXCLUSIVE,
+    EXCLUSIVE;
+
+    /** COMPATIBLE[held][requested], in declaration order */
+    private static final boolean[][] COMPATIBLE = {
+            { true,  true,  true,  true,  false },
+            { true,  true,  false, false, false },
+            { true,  false, true,  false, false },
+            { true,  false, false, false, false },
+            { false, false, false, false, false },
+    };
+
+    /** @return true if another transaction may hold m while this is held */
+    public boolean isCompatibleWith(LockMode m) {
+        return COMPATIBLE[ordinal()][m.ordinal()];
+    }
+
+    /** @return true if holding this mode grants everything m grants */
+    public boolean covers(LockMode m) {
+        if (this == m || this == EXCLUSIVE) {
+            return true;
+        }
+        switch (this) {
+        case INTENTION_EXCLUSIVE:
+        case SHARED:
+            return m == INTENTION_SHARED;
+        case SHARED_INTENTION_EXCLUSIVE:
+            return m != EXCLUSIVE;
+        default:
+            return false;
+        }
+    }
+
+    /** @return the weakest mode that covers both this and m */
+    public LockMode combine(LockMode m) {
+        if (covers(m)) {
+            return this;
+        }
+        if (m.covers(this)) {
+            return m;
+        }
+        if ((this == SHARED && m == INTENTION_EXCLUSIVE) || (this == INTENTION_EXCLUSIVE && m == SHARED)) {
+            return SHARED_INTENTION_EXCLUSIVE;
+        }
+        return EXCLUSIVE;
+    }
+}
@@ -11,15 +11,35 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly if true, the transaction reads a snapshot of the
+     *        database taken when it starts, without locking pages, and
+     *        cannot write; see {@link simpledb.storage.BufferPool#beginSnapshot}
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly) {
+            // nothing to undo or redo, so nothing to log
+            Database.getBufferPool().beginSnapshot(tid);
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -44,18 +64,17 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
+        if (started && readOnly) {
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+        } else if (started) {
             //write abort log record and rollback transaction
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
-            } 
-
-            // Release locks and flush pages if needed
-            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-
-            // write commit log record
-            if (!abort) {
-            	Database.getLogFile().logCommit(tid);
+                Database.getBufferPool().transactionComplete(tid, false); // release locks
+            } else {
+                // flush or log pages and write the commit log record, then release locks
+                Database.getBufferPool().commitTransaction(tid);
             }
 
             //setting this here means we could possibly write multiple abort records -- OK?
@@ -174,6 +174,33 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator() on a page whose entries
+	 * are no longer in adjacent slots
+	 */
+	@Test public void reverseIteratorSkipsEmptySlots() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		List<BTreeEntry> entries = new ArrayList<>();
+		page.iterator().forEachRemaining(entries::add);
+		page.deleteKeyAndRightChild(entries.get(3));
+		page.deleteKeyAndRightChild(entries.get(4));
+		page.deleteKeyAndRightChild(entries.get(9));
+
+		List<BTreeEntry> expected = new ArrayList<>();
+		page.iterator().forEachRemaining(expected::add);
+		Collections.reverse(expected);
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		for (BTreeEntry e : expected) {
+			assertTrue(it.hasNext());
+			BTreeEntry r = it.next();
+			assertEquals(e.getKey(), r.getKey());
+			assertEquals(e.getLeftChild(), r.getLeftChild());
+			assertEquals(e.getRightChild(), r.getRightChild());
+			assertEquals(e.getRecordId(), r.getRecordId());
+		}
+		assertFalse(it.hasNext());
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
@@ -0,0 +1,137 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeLatchCouplingTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private BufferPool bp;
+	private BTreeFile bigFile;
+	private BTreePageId rootPtrId;
+	private BTreePageId rootId;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		// This should create a B+ tree with an internal root over 100 leaf pages
+		bigFile = BTreeUtility.createRandomBTreeFile(2, 50200, null, null, 0);
+		bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		tid = new TransactionId();
+
+		rootPtrId = BTreeRootPtrPage.getId(bigFile.getId());
+		TransactionId reader = new TransactionId();
+		rootId = ((BTreeRootPtrPage) bp.getPage(reader, rootPtrId, Permissions.READ_ONLY)).getRootId();
+		bp.transactionComplete(reader);
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+	}
+
+	@After
+	public void tearDown() {
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * A search keeps the locks on the leaves it reads, but not on the pages above them.
+	 */
+	@Test
+	public void searchLocksLeavesOnly() throws Exception {
+		DbFileIterator fit = bigFile.indexIterator(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(1000)));
+		fit.open();
+		assertTrue(fit.hasNext());
+		PageId leafId = fit.next().getRecordId().getPageId();
+		fit.close();
+
+		assertTrue(bp.holdsLock(tid, leafId));
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+		assertFalse(bp.holdsLock(tid, rootId));
+	}
+
+	/**
+	 * An insert that does not split its leaf keeps the write lock on the leaf only.
+	 */
+	@Test
+	public void insertLocksLeafOnly() throws Exception {
+		// make room in a leaf
+		TransactionId deleter = new TransactionId();
+		DbFileIterator fit = bigFile.iterator(deleter);
+		fit.open();
+		Tuple t = fit.next();
+		fit.close();
+		bp.deleteTuple(deleter, t);
+		bp.transactionComplete(deleter);
+
+		bp.insertTuple(tid, bigFile.getId(), t);
+		assertTrue(bp.holdsLock(tid, t.getRecordId().getPageId()));
+		assertFalse(bp.holdsLock(tid, rootPtrId));
+		assertFalse(bp.holdsLock(tid, rootId));
+	}
+
+	/**
+	 * A running reader does not keep other transactions from changing the root.
+	 */
+	@Test
+	public void rootIsFreeWhileReaderRuns() throws Exception {
+		DbFileIterator fit = bigFile.iterator(tid);
+		fit.open();
+		assertTrue(fit.hasNext());
+
+		TransactionId writer = new TransactionId();
+		assertNotNull(bp.tryGetPage(writer, rootPtrId, Permissions.READ_WRITE));
+		assertNotNull(bp.tryGetPage(writer, rootId, Permissions.READ_WRITE));
+		bp.transactionComplete(writer, false);
+		fit.close();
+	}
+
+	/**
+	 * A descent that meets a page another transaction changes waits for it, and
+	 * then finds its leaf.
+	 */
+	@Test
+	public void descentWaitsForChangedPage() throws Exception {
+		TransactionId writer = new TransactionId();
+		bp.getPage(writer, rootId, Permissions.READ_WRITE);
+
+		Thread search = new Thread(() -> {
+			try {
+				DbFileIterator fit = bigFile.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(1000)));
+				fit.open();
+				fit.close();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		search.start();
+		search.join(200);
+		assertTrue(search.isAlive());
+
+		bp.transactionComplete(writer);
+		search.join();
+		assertFalse(bp.holdsLock(tid, rootId));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLatchCouplingTest.class);
+	}
+}
@@ -1,7 +1,11 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.PrintWriter;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -12,9 +16,11 @@ import org.junit.Before;
 import org.junit.Test;
 
 import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.Utility;
 import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
@@ -97,6 +103,25 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * Check that the mmap table option of the schema file is honored
+     */
+    @Test public void loadSchemaMemoryMapped() throws Exception {
+        File schema = File.createTempFile("catalog", ".txt");
+        schema.deleteOnExit();
+        String plain = "t" + r.nextInt(Integer.MAX_VALUE);
+        String mapped = "m" + r.nextInt(Integer.MAX_VALUE);
+        try (PrintWriter out = new PrintWriter(schema)) {
+            out.println(plain + " (a int, b int)");
+            out.println(mapped + " (a int pk, b string) mmap");
+        }
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        Catalog catalog = Database.getCatalog();
+        assertFalse(((HeapFile) catalog.getDatabaseFile(catalog.getTableId(plain))).isMemoryMapped());
+        assertTrue(((HeapFile) catalog.getDatabaseFile(catalog.getTableId(mapped))).isMemoryMapped());
+        assertEquals("a", catalog.getPrimaryKey(catalog.getTableId(mapped)));
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,67 @@
+package simpledb;
+
+import java.io.EOFException;
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.storage.DbFileChannel;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class DbFileChannelTest extends SimpleDbTestBase {
+
+    private File file;
+    private DbFileChannel channel;
+
+    @Before public void setUp() throws Exception {
+        file = File.createTempFile("channel", ".dat");
+        file.deleteOnExit();
+        channel = new DbFileChannel(file);
+    }
+
+    @After public void tearDown() throws Exception {
+        channel.close();
+    }
+
+    /**
+     * Positional writes land where they are asked to and extend the file.
+     */
+    @Test public void positionalReadWrite() throws Exception {
+        channel.write(new byte[] {1, 2, 3, 4}, 8);
+        channel.write(new byte[] {9}, 0);
+        assertEquals(12, channel.size());
+        assertEquals(12, file.length());
+        assertArrayEquals(new byte[] {9, 0}, channel.read(0, 2));
+        assertArrayEquals(new byte[] {2, 3, 4}, channel.read(9, 3));
+    }
+
+    /**
+     * Reading beyond the end of the file fails instead of returning garbage.
+     */
+    @Test(expected = EOFException.class) public void readPastEnd() throws Exception {
+        channel.write(new byte[] {1, 2}, 0);
+        channel.read(1, 4);
+    }
+
+    /**
+     * A closed channel is reopened on the next access.
+     */
+    @Test public void reopenAfterClose() throws Exception {
+        channel.write(new byte[] {5}, 0);
+        channel.close();
+        assertArrayEquals(new byte[] {5}, channel.read(0, 1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DbFileChannelTest.class);
+    }
+}
@@ -0,0 +1,145 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.storage.ClockEvictionPolicy;
+import simpledb.storage.EvictionPolicy;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LRUKEvictionPolicy;
+import simpledb.storage.PageId;
+import simpledb.storage.TwoQEvictionPolicy;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static PageId pid(int pgno) {
+        return new HeapPageId(1, pgno);
+    }
+
+    private static void load(EvictionPolicy policy, int... pgnos) {
+        for (int pgno : pgnos) {
+            policy.pageLoaded(pid(pgno));
+        }
+    }
+
+    /**
+     * CLOCK gives referenced pages a second chance.
+     */
+    @Test public void clockSecondChance() {
+        EvictionPolicy policy = new ClockEvictionPolicy(3);
+        load(policy, 0, 1, 2);
+        policy.pageHit(pid(0));
+        assertEquals(pid(1), policy.chooseVictim(p -> true));
+        policy.pageRemoved(pid(1));
+        policy.pageLoaded(pid(3));
+        assertEquals(pid(2), policy.chooseVictim(p -> true));
+    }
+
+    /**
+     * LRU-2 evicts pages referenced once before pages referenced twice.
+     */
+    @Test public void lruKPrefersColdPages() {
+        EvictionPolicy policy = new LRUKEvictionPolicy(4, 2);
+        load(policy, 0, 1, 2);
+        policy.pageHit(pid(0));
+        policy.pageHit(pid(1));
+        assertEquals(pid(2), policy.chooseVictim(p -> true));
+        policy.pageRemoved(pid(2));
+        // among hot pages the oldest second-to-last reference goes first
+        assertEquals(pid(0), policy.chooseVictim(p -> true));
+    }
+
+    /**
+     * LRU-K remembers the history of a page across an eviction.
+     */
+    @Test public void lruKRetainsHistory() {
+        EvictionPolicy policy = new LRUKEvictionPolicy(4, 2);
+        load(policy, 0, 1);
+        policy.pageHit(pid(0));
+        policy.pageRemoved(pid(0));
+        policy.pageLoaded(pid(0));
+        load(policy, 2);
+        // page 0 now has two references, 1 and 2 only one
+        assertEquals(pid(1), policy.chooseVictim(p -> true));
+    }
+
+    /**
+     * A 2Q scan only cycles through A1in and leaves Am alone.
+     */
+    @Test public void twoQScanResistance() {
+        EvictionPolicy policy = new TwoQEvictionPolicy(8);
+        load(policy, 0);
+        policy.pageRemoved(pid(0));
+        // reloaded while remembered in A1out: promoted to Am
+        load(policy, 0, 1, 2, 3, 4, 5, 6, 7);
+        for (int pgno = 100; pgno < 120; pgno++) {
+            PageId victim = policy.chooseVictim(p -> true);
+            assertNotEquals(pid(0), victim);
+            policy.pageRemoved(victim);
+            load(policy, pgno);
+        }
+    }
+
+    /**
+     * Every policy skips pages that may not be evicted.
+     */
+    @Test public void respectsEvictable() {
+        for (EvictionPolicy.Kind kind : EvictionPolicy.Kind.values()) {
+            EvictionPolicy policy = kind.create(4);
+            load(policy, 0, 1, 2, 3);
+            assertEquals(kind.name(), pid(3), policy.chooseVictim(p -> p.getPageNumber() == 3));
+            assertNull(kind.name(), policy.chooseVictim(p -> false));
+        }
+    }
+
+    /**
+     * LRU-K and 2Q test a page that may not be evicted only once, until it
+     * is cleaned.
+     */
+    @Test public void parksUntilCleaned() {
+        EvictionPolicy.Kind[] parking = {EvictionPolicy.Kind.LRU_K, EvictionPolicy.Kind.TWO_Q};
+        for (EvictionPolicy.Kind kind : parking) {
+            EvictionPolicy policy = kind.create(4);
+            load(policy, 0, 1, 2, 3);
+            int[] tests = {0};
+            assertNull(kind.name(), policy.chooseVictim(p -> tests[0]++ < 0));
+            assertNull(kind.name(), policy.chooseVictim(p -> tests[0]++ < 0));
+            assertEquals(kind.name(), 4, tests[0]);
+            policy.pageCleaned(pid(2));
+            assertEquals(kind.name(), pid(2), policy.chooseVictim(p -> true));
+            policy.pageRemoved(pid(2));
+            // a page that leaves the pool while set aside is forgotten
+            policy.pageRemoved(pid(1));
+            policy.pageCleaned(pid(1));
+            assertNull(kind.name(), policy.chooseVictim(p -> true));
+            policy.pageCleaned(pid(0));
+            assertEquals(kind.name(), pid(0), policy.chooseVictim(p -> true));
+        }
+    }
+
+    /**
+     * Hits and misses are counted per policy.
+     */
+    @Test public void counters() {
+        for (EvictionPolicy.Kind kind : EvictionPolicy.Kind.values()) {
+            EvictionPolicy policy = kind.create(4);
+            load(policy, 0, 1);
+            policy.pageHit(pid(0));
+            policy.pageHit(pid(0));
+            policy.pageHit(pid(1));
+            assertEquals(kind.name(), 3, policy.getHits());
+            assertEquals(kind.name(), 2, policy.getMisses());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
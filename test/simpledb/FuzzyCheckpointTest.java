@@ -0,0 +1,79 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+
+import static org.junit.Assert.*;
+
+public class FuzzyCheckpointTest extends SimpleDbTestBase {
+
+    /**
+     * A checkpoint leaves the pages of running transactions in the pool.
+     */
+    @Test public void checkpointLeavesDirtyPages() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] onDisk = hf.readPage(pid).getPageData();
+
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] {7, 7}));
+        Database.getLogFile().logCheckpoint();
+
+        assertArrayEquals(onDisk, hf.readPage(pid).getPageData());
+        Page page = Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_ONLY);
+        assertEquals(t.getId(), page.isDirty());
+
+        t.commit();
+        tuples.add(Arrays.asList(7, 7));
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * A transaction that was running during a checkpoint and committed
+     * afterwards is redone by recovery.
+     */
+    @Test public void redoAfterCheckpoint() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+        Page original = hf.readPage(new HeapPageId(hf.getId(), 0));
+
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] {7, 7}));
+        Database.getLogFile().logCheckpoint();
+        t.commit();
+        tuples.add(Arrays.asList(7, 7));
+
+        // lose the write of the committed page
+        hf.writePage(original);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getLogFile().recover();
+
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FuzzyCheckpointTest.class);
+    }
+}
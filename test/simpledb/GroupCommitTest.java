@@ -0,0 +1,135 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.storage.Page;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    private static final int THREADS = 8;
+
+    private File file;
+    /** The first segment of the log, which holds all its records */
+    private File segment;
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        file = File.createTempFile("log", ".dat");
+        file.deleteOnExit();
+        segment = new File(file.getPath() + ".0");
+        segment.deleteOnExit();
+        log = new LogFile(file);
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.reset();
+    }
+
+    /**
+     * Transactions committing at the same time share a force of the log.
+     */
+    @Test public void commitsShareForce() throws Exception {
+        log.setGroupCommitWindow(20, TimeUnit.MILLISECONDS);
+        CyclicBarrier start = new CyclicBarrier(THREADS);
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    TransactionId tid = new TransactionId();
+                    log.logXactionBegin(tid);
+                    start.await();
+                    log.logCommit(tid);
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(new ArrayList<Throwable>(), errors);
+        assertTrue(log.getForceCount() > 0);
+        assertTrue(log.getForceCount() < THREADS);
+        assertEquals(2 * THREADS, log.getTotalRecords());
+    }
+
+    /**
+     * Records are buffered until the log is forced, and are then on disk.
+     */
+    @Test public void recordsWrittenOnForce() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Page page = hf.readPage(new HeapPageId(hf.getId(), 0));
+        log.logWrite(tid, page, page);
+        long before = segment.length();
+
+        log.force();
+        assertTrue(segment.length() > before);
+        assertEquals(1, log.getForceCount());
+
+        // nothing new to force, but the caller still returns
+        log.force();
+    }
+
+    /**
+     * A force that fails is reported to the commit waiting for it, and the
+     * log can be forced again once the failure is gone.
+     */
+    @Test public void transientForceFailure() throws Exception {
+        log = new LogFile(file, 64);
+        TransactionId[] tids = new TransactionId[4];
+        for (int i = 0; i < tids.length; i++) {
+            tids[i] = new TransactionId();
+            log.logXactionBegin(tids[i]);
+        }
+        // the records do not fit in the first segment, and the second cannot be created
+        File blocked = new File(file.getPath() + ".1");
+        assertTrue(blocked.mkdir());
+        try {
+            log.logCommit(tids[0]);
+            fail("expected the force to fail");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            assertTrue(blocked.delete());
+        }
+
+        log.logCommit(tids[1]);
+        log.force();
+        assertTrue(blocked.isFile());
+        blocked.deleteOnExit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
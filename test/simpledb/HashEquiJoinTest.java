@@ -0,0 +1,109 @@
+package simpledb;
+
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleIterator;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+    /** A tuple list that counts how often it is rewound. */
+    private static class CountingTupleIterator extends TupleIterator {
+        private static final long serialVersionUID = 1L;
+        int rewinds;
+
+        CountingTupleIterator(List<Tuple> tuples) {
+            super(Utility.getTupleDesc(2), tuples);
+        }
+
+        @Override
+        public void rewind() {
+            rewinds++;
+            super.rewind();
+        }
+    }
+
+    private void checkJoin(List<Tuple> left, List<Tuple> right, int memoryPages) throws Exception {
+        CountingTupleIterator scan1 = new CountingTupleIterator(left);
+        CountingTupleIterator scan2 = new CountingTupleIterator(right);
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                scan1, scan2, memoryPages);
+        int granted = Database.getBufferPool().getGrantedPages();
+        join.open();
+        assertTrue(Database.getBufferPool().getGrantedPages() > granted);
+        List<List<Integer>> expected = SystemTestUtil.expectedJoin(left, right, Predicate.Op.EQUALS);
+        assertEquals(expected, SystemTestUtil.drain(join));
+        assertEquals(0, scan1.rewinds);
+        assertEquals(0, scan2.rewinds);
+
+        join.rewind();
+        assertEquals(expected, SystemTestUtil.drain(join));
+        join.close();
+        assertEquals(granted, Database.getBufferPool().getGrantedPages());
+    }
+
+    /**
+     * A build side that fits in memory is joined in one pass.
+     */
+    @Test public void joinInMemory() throws Exception {
+        Random r = new Random(1);
+        checkJoin(SystemTestUtil.randomTuples(r, 1000, 300), SystemTestUtil.randomTuples(r, 1500, 300),
+                HashEquiJoin.DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * A build side larger than the memory budget is partitioned to disk, and
+     * neither child is read more than once.
+     */
+    @Test public void joinSpilledPartitions() throws Exception {
+        Random r = new Random(2);
+        checkJoin(SystemTestUtil.randomTuples(r, 3000, 500), SystemTestUtil.randomTuples(r, 2000, 500), 1);
+    }
+
+    /**
+     * A partition too large for memory because all its tuples share a key is
+     * still joined.
+     */
+    @Test public void joinSkewedKeys() throws Exception {
+        Random r = new Random(3);
+        checkJoin(SystemTestUtil.randomTuples(r, 1500, 2), SystemTestUtil.randomTuples(r, 100, 3), 1);
+    }
+
+    /**
+     * Join fields other than ints are hashed as fields.
+     */
+    @Test public void joinStringKeys() throws Exception {
+        OpIterator scan1 = TestUtil.createTupleList(2, new Object[] {"a", 1, "b", 2, "c", 3, "a", 4});
+        OpIterator scan2 = TestUtil.createTupleList(2, new Object[] {"a", 5, "c", 6, "d", 7});
+        OpIterator expected = TestUtil.createTupleList(4,
+                new Object[] {"a", 1, "a", 5, "c", 3, "c", 6, "a", 4, "a", 5});
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), scan1, scan2);
+        join.open();
+        TestUtil.matchAllTuples(expected, join);
+        expected.rewind();
+        TestUtil.matchAllTuples(join, expected);
+        join.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashEquiJoinTest.class);
+    }
+}
@@ -0,0 +1,160 @@
+package simpledb;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class HeapFileFreeSpaceTest extends SimpleDbTestBase {
+
+    /** Tuples of two int fields per page. */
+    private static final int PER_PAGE = (BufferPool.getPageSize() * 8) / (8 * 8 + 1);
+
+    private HeapFile hf;
+    private TransactionId tid;
+
+    /**
+     * Five full pages followed by a page with free slots.
+     */
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, PER_PAGE * 5 + 10, null, null);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private int insert(HeapFile f) throws Exception {
+        List<Page> pages = f.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        assertEquals(1, pages.size());
+        return pages.get(0).getId().getPageNumber();
+    }
+
+    /**
+     * An insert goes straight to the page with room, without locking the full
+     * pages in front of it.
+     */
+    @Test public void insertSkipsFullPages() throws Exception {
+        assertEquals(5, insert(hf));
+        for (int i = 0; i < 5; i++) {
+            assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), i)));
+        }
+        assertEquals(6, hf.numPages());
+    }
+
+    /**
+     * The free space of written pages is persisted next to the heap file and
+     * picked up by a new HeapFile over the same file.
+     */
+    @Test public void persistedAcrossInstances() throws Exception {
+        assertEquals(5, insert(hf));
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(new File(hf.getFile().getPath() + ".fsm").exists());
+
+        HeapFile reopened = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        tid = new TransactionId();
+        assertEquals(5, insert(reopened));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), 0)));
+    }
+
+    /**
+     * A sidecar that does not match the heap file is not trusted; the map is
+     * rebuilt from the page headers instead.
+     */
+    @Test public void mismatchedSidecarIsRebuilt() throws Exception {
+        assertEquals(5, insert(hf));
+        Database.getBufferPool().transactionComplete(tid);
+        File sidecar = new File(hf.getFile().getPath() + ".fsm");
+        // every page full according to the counts, were they trusted
+        Files.write(sidecar.toPath(), new byte[(int) sidecar.length()]);
+
+        HeapFile reopened = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        tid = new TransactionId();
+        assertEquals(5, insert(reopened));
+        assertEquals(6, reopened.numPages());
+    }
+
+    /**
+     * The sidecar of a heap file that was deleted goes once a map is loaded
+     * from the same directory.
+     */
+    @Test public void orphanedSidecarIsDeleted() throws Exception {
+        assertEquals(5, insert(hf));
+        Database.getBufferPool().transactionComplete(tid);
+        File dir = Files.createTempDirectory("fsm").toFile();
+        dir.deleteOnExit();
+        File copy = new File(dir, "copy.dat");
+        copy.deleteOnExit();
+        Files.copy(hf.getFile().toPath(), copy.toPath());
+        File orphan = new File(dir, "gone.dat.fsm");
+        orphan.deleteOnExit();
+        Files.copy(new File(hf.getFile().getPath() + ".fsm").toPath(), orphan.toPath());
+
+        HeapFile other = new HeapFile(copy, hf.getTupleDesc());
+        Database.getCatalog().addTable(other);
+        tid = new TransactionId();
+        assertEquals(5, insert(other));
+        assertFalse(orphan.exists());
+        new File(dir, "copy.dat.fsm").deleteOnExit();
+    }
+
+    /**
+     * Deleting a tuple from a full page makes it the next insert target.
+     */
+    @Test public void deleteFreesSlot() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 1);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        List<Tuple> tuples = new ArrayList<>();
+        page.iterator().forEachRemaining(tuples::add);
+        Database.getBufferPool().deleteTuple(tid, tuples.get(0));
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        assertEquals(1, insert(hf));
+        assertEquals(5, insert(hf));
+    }
+
+    /**
+     * Inserts that fill the last page and are then rolled back leave its
+     * slots free for the next insert.
+     */
+    @Test public void abortRestoresFreeSpace() throws Exception {
+        for (int i = 10; i < PER_PAGE; i++) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(1, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        assertEquals(5, insert(hf));
+        assertEquals(6, hf.numPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileFreeSpaceTest.class);
+    }
+}
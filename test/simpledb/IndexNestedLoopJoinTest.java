@@ -0,0 +1,174 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.IndexNestedLoopJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleIterator;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+    private static final int MAX_VALUE = 5000;
+
+    private List<List<Integer>> bigTuples;
+    private BTreeFile big;
+    private TransactionId tid;
+
+    /**
+     * Create a B+ tree table of many pages, with names for its fields
+     */
+    @Before public void createTable() throws Exception {
+        bigTuples = new ArrayList<>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 20000, MAX_VALUE, null, bigTuples, 0);
+        big = BTreeUtility.openBTreeFile(2, "c", f.getFile(), 0);
+        Database.getCatalog().addTable(big, "big");
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+    }
+
+    private static List<Tuple> outerTuples(int... keys) {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            tuples.add(Utility.getHeapTuple(new int[] { keys[i], i }));
+        }
+        return tuples;
+    }
+
+    private List<List<Integer>> expectedJoin(List<Tuple> outer, Predicate.Op op) {
+        return SystemTestUtil.expectedJoin(outer, SystemTestUtil.listsToTuples(bigTuples), op);
+    }
+
+    private IndexNestedLoopJoin join(List<Tuple> outer, Predicate.Op op) {
+        return new IndexNestedLoopJoin(new JoinPredicate(0, op, 0),
+                new TupleIterator(Utility.getTupleDesc(2), outer),
+                new SeqScan(tid, big.getId(), "b"));
+    }
+
+    /**
+     * An equi-join probes the B+ tree and reads only a few of its pages.
+     */
+    @Test public void equiJoin() throws Exception {
+        List<Tuple> outer = outerTuples(bigTuples.get(0).get(0), bigTuples.get(1).get(0), MAX_VALUE + 1);
+        IndexNestedLoopJoin op = join(outer, Predicate.Op.EQUALS);
+        long misses = Database.getBufferPool().getMissCount();
+        op.open();
+        List<List<Integer>> expected = expectedJoin(outer, Predicate.Op.EQUALS);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, SystemTestUtil.drain(op));
+        assertTrue(Database.getBufferPool().getMissCount() - misses < big.numPages() / 4);
+
+        op.rewind();
+        assertEquals(expected, SystemTestUtil.drain(op));
+        op.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Range predicates look up the keys on the other side of the outer key.
+     */
+    @Test public void rangeJoins() throws Exception {
+        List<Tuple> outer = outerTuples(100, 2500, MAX_VALUE - 100);
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+                Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ }) {
+            IndexNestedLoopJoin join = join(outer, op);
+            join.open();
+            assertEquals(expectedJoin(outer, op), SystemTestUtil.drain(join));
+            join.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Only a scan of a B+ tree on the join field can be probed.
+     */
+    @Test public void canProbe() {
+        assertTrue(IndexNestedLoopJoin.canProbe(new SeqScan(tid, big.getId(), "b"), 0));
+        assertFalse(IndexNestedLoopJoin.canProbe(new SeqScan(tid, big.getId(), "b"), 1));
+        assertFalse(IndexNestedLoopJoin.canProbe(new TupleIterator(Utility.getTupleDesc(2), outerTuples()), 0));
+    }
+
+    /**
+     * The optimizer probes the index of a large table for a small one, and
+     * the physical plan uses an index join for it.
+     */
+    @Test public void optimizerPicksIndexJoin() throws Exception {
+        List<List<Integer>> smallTuples = new ArrayList<>();
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, 10, MAX_VALUE, null, smallTuples, "c");
+        Database.getCatalog().addTable(small, "small");
+        TableStats.setTableStats("small", new TableStats(small.getId(), 1000));
+        TableStats.setTableStats("big", new TableStats(big.getId(), 1000));
+
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM small s, big b WHERE s.c0 = b.c0;");
+        JoinOptimizer jo = new JoinOptimizer(lp, new ArrayList<>());
+        LogicalJoinNode lj = new LogicalJoinNode("s", "b", "c0", "c0", Predicate.Op.EQUALS);
+        double cost1 = TableStats.getTableStats("small").estimateScanCost();
+        double cost2 = TableStats.getTableStats("big").estimateScanCost();
+        double indexCost = jo.estimateIndexJoinCost(lj, 10, 20000, cost1, cost2);
+        assertTrue(indexCost < jo.estimateJoinCost(lj, 10, 20000, cost1, cost2));
+        assertEquals(Double.POSITIVE_INFINITY,
+                jo.estimateIndexJoinCost(lj.swapInnerOuter(), 20000, 10, cost2, cost1), 0);
+
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(containsIndexJoin(plan));
+        int expected = 0;
+        for (List<Integer> s : smallTuples) {
+            for (List<Integer> b : bigTuples) {
+                if (s.get(0).equals(b.get(0))) {
+                    expected++;
+                }
+            }
+        }
+        plan.open();
+        assertEquals(expected, SystemTestUtil.drain(plan).size());
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static boolean containsIndexJoin(OpIterator it) {
+        if (it instanceof IndexNestedLoopJoin) {
+            return true;
+        }
+        if (it instanceof Operator) {
+            for (OpIterator child : ((Operator) it).getChildren()) {
+                if (child != null && containsIndexJoin(child)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+    }
+}
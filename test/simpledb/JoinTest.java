@@ -8,13 +8,20 @@ import junit.framework.JUnit4TestAdapter;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import simpledb.common.Database;
 import simpledb.common.Utility;
 import simpledb.execution.Join;
 import simpledb.execution.JoinPredicate;
 import simpledb.execution.OpIterator;
 import simpledb.execution.Predicate;
+import simpledb.storage.BufferPool;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
 import simpledb.systemtest.SimpleDbTestBase;
 
 public class JoinTest extends SimpleDbTestBase {
@@ -112,6 +119,65 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /** A tuple list that counts how often it is rewound. */
+  private static class CountingTupleIterator extends TupleIterator {
+    private static final long serialVersionUID = 1L;
+    int rewinds;
+
+    CountingTupleIterator(TupleDesc td, List<Tuple> tuples) {
+      super(td, tuples);
+    }
+
+    @Override
+    public void rewind() {
+      rewinds++;
+      super.rewind();
+    }
+  }
+
+  /**
+   * Unit test for Join.getNext() with a left child of several blocks: the
+   * right child is scanned once per block, and the memory granted for the
+   * blocks is given back on close.
+   */
+  @Test public void blockJoin() throws Exception {
+    List<Tuple> left = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      left.add(Utility.getHeapTuple(new int[] { i, i % 7 }));
+    }
+    List<Tuple> right = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      right.add(Utility.getHeapTuple(new int[] { i, i % 5, i }));
+    }
+    CountingTupleIterator inner = new CountingTupleIterator(Utility.getTupleDesc(width2), right);
+    Join op = new Join(new JoinPredicate(1, Predicate.Op.LESS_THAN, 1),
+        new TupleIterator(Utility.getTupleDesc(width1), left), inner, 1);
+    int granted = Database.getBufferPool().getGrantedPages();
+    op.open();
+    assertEquals(granted + 1, Database.getBufferPool().getGrantedPages());
+
+    int expected = 0;
+    for (Tuple t1 : left) {
+      for (Tuple t2 : right) {
+        if (((IntField) t1.getField(1)).getValue() < ((IntField) t2.getField(1)).getValue()) {
+          expected++;
+        }
+      }
+    }
+    int count = 0;
+    while (op.hasNext()) {
+      assertEquals(width1 + width2, op.next().getTupleDesc().numFields());
+      count++;
+    }
+    assertEquals(expected, count);
+    int tuplesPerBlock = BufferPool.getPageSize() / Utility.getTupleDesc(width1).getSize();
+    int blocks = (left.size() + tuplesPerBlock - 1) / tuplesPerBlock;
+    assertEquals(blocks - 1, inner.rewinds);
+
+    op.close();
+    assertEquals(granted, Database.getBufferPool().getGrantedPages());
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,263 @@
+package simpledb;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.DeadlockException;
+import simpledb.common.Permissions;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.LockMode;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private LockManager locks;
+    private PageId pid;
+
+    @Before public void setUp() {
+        locks = new LockManager();
+        pid = new HeapPageId(1, 0);
+    }
+
+    /** Acquires a lock on a thread of its own. */
+    private class Acquirer extends Thread {
+        private final TransactionId tid;
+        private final PageId page;
+        private final Permissions perm;
+        volatile boolean acquired;
+        volatile boolean aborted;
+
+        Acquirer(TransactionId tid, Permissions perm) {
+            this(tid, pid, perm);
+        }
+
+        Acquirer(TransactionId tid, PageId page, Permissions perm) {
+            this.tid = tid;
+            this.page = page;
+            this.perm = perm;
+            start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                locks.acquire(tid, page, perm);
+                acquired = true;
+            } catch (TransactionAbortedException e) {
+                aborted = true;
+            }
+        }
+    }
+
+    /** Wait until the thread is parked on its lock request. */
+    private static void awaitBlocked(Thread t) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (t.getState() != Thread.State.WAITING && t.getState() != Thread.State.TIMED_WAITING) {
+            assertTrue("thread did not block", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * The only reader of a page upgrades to a write lock right away.
+     */
+    @Test public void soleReaderUpgrades() throws Exception {
+        TransactionId tid = new TransactionId();
+        locks.acquire(tid, pid, Permissions.READ_ONLY);
+        locks.acquire(tid, pid, Permissions.READ_WRITE);
+        assertTrue(locks.holdWriteLock(tid, pid));
+    }
+
+    /**
+     * A reader arriving after a waiting writer does not overtake it, and
+     * the writer gets the lock as soon as the readers are gone.
+     */
+    @Test public void waitersAreGrantedInOrder() throws Exception {
+        TransactionId reader = new TransactionId();
+        locks.acquire(reader, pid, Permissions.READ_ONLY);
+
+        Acquirer writer = new Acquirer(new TransactionId(), Permissions.READ_WRITE);
+        awaitBlocked(writer);
+        Acquirer lateReader = new Acquirer(new TransactionId(), Permissions.READ_ONLY);
+        awaitBlocked(lateReader);
+        assertFalse(lateReader.acquired);
+
+        locks.releaseAll(reader);
+        writer.join();
+        assertTrue(writer.acquired);
+        assertFalse(lateReader.acquired);
+
+        locks.releaseAll(writer.tid);
+        lateReader.join();
+        assertTrue(lateReader.acquired);
+    }
+
+    /**
+     * An upgrade waits for the other readers only, ahead of queued writers.
+     */
+    @Test public void upgradeWaitsAheadOfWriters() throws Exception {
+        TransactionId upgrader = new TransactionId();
+        TransactionId other = new TransactionId();
+        locks.acquire(upgrader, pid, Permissions.READ_ONLY);
+        locks.acquire(other, pid, Permissions.READ_ONLY);
+
+        Acquirer writer = new Acquirer(new TransactionId(), Permissions.READ_WRITE);
+        awaitBlocked(writer);
+        Acquirer upgrade = new Acquirer(upgrader, Permissions.READ_WRITE);
+        awaitBlocked(upgrade);
+
+        locks.releaseAll(other);
+        upgrade.join();
+        assertTrue(upgrade.acquired);
+        assertFalse(writer.acquired);
+        locks.releaseAll(upgrader);
+        writer.join();
+        assertTrue(writer.acquired);
+    }
+
+    /**
+     * Of two transactions waiting for each other, the younger one is
+     * aborted with a DeadlockException as soon as the cycle closes, and
+     * the older one gets its lock.
+     */
+    @Test public void deadlockAbortsYoungest() throws Exception {
+        PageId other = new HeapPageId(1, 1);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        locks.acquire(older, pid, Permissions.READ_WRITE);
+        locks.acquire(younger, other, Permissions.READ_WRITE);
+
+        Acquirer olderWaits = new Acquirer(older, other, Permissions.READ_WRITE);
+        awaitBlocked(olderWaits);
+        try {
+            locks.acquire(younger, pid, Permissions.READ_WRITE);
+            fail("expected a DeadlockException");
+        } catch (DeadlockException e) {
+            // expected
+        }
+        locks.releaseAll(younger);
+        olderWaits.join();
+        assertTrue(olderWaits.acquired);
+    }
+
+    /**
+     * A transaction waiting on a long-held lock is not aborted.
+     */
+    @Test public void longWaitIsNotAborted() throws Exception {
+        TransactionId holder = new TransactionId();
+        locks.acquire(holder, pid, Permissions.READ_WRITE);
+        Acquirer waiter = new Acquirer(new TransactionId(), Permissions.READ_WRITE);
+        awaitBlocked(waiter);
+        Thread.sleep(1500);
+        assertFalse(waiter.aborted);
+        locks.releaseAll(holder);
+        waiter.join();
+        assertTrue(waiter.acquired);
+    }
+
+    /**
+     * releaseAll drops the locks of one transaction only, and pages nobody
+     * locks leave the lock table.
+     */
+    @Test public void releaseAllDropsOwnLocks() throws Exception {
+        TransactionId tid = new TransactionId();
+        TransactionId other = new TransactionId();
+        for (int i = 1; i <= 10; i++) {
+            locks.acquire(tid, new HeapPageId(1, i), Permissions.READ_WRITE);
+        }
+        locks.acquire(tid, pid, Permissions.READ_ONLY);
+        locks.acquire(other, pid, Permissions.READ_ONLY);
+        assertEquals(11, locks.getLockedPageCount());
+
+        locks.releaseAll(tid);
+        assertFalse(locks.hold(tid, new HeapPageId(1, 5)));
+        assertTrue(locks.holdReadLock(other, pid));
+        assertEquals(1, locks.getLockedPageCount());
+
+        locks.releaseAll(other);
+        assertEquals(0, locks.getLockedPageCount());
+    }
+
+    /**
+     * A SHARED table lock lets readers of its pages in and keeps writers
+     * out.
+     */
+    @Test public void tableLockCoversPages() throws Exception {
+        TransactionId scanner = new TransactionId();
+        locks.acquireTable(scanner, pid.getTableId(), Permissions.READ_ONLY);
+        assertTrue(locks.holdReadLock(scanner, new HeapPageId(1, 7)));
+        assertEquals(0, locks.getLockedPageCount());
+
+        TransactionId reader = new TransactionId();
+        locks.acquire(reader, pid, Permissions.READ_ONLY);
+        assertEquals(LockMode.INTENTION_SHARED, locks.getTableLockMode(reader, pid.getTableId()));
+
+        Acquirer writer = new Acquirer(new TransactionId(), new HeapPageId(1, 3), Permissions.READ_WRITE);
+        awaitBlocked(writer);
+        locks.releaseAll(scanner);
+        writer.join();
+        assertTrue(writer.acquired);
+    }
+
+    /**
+     * Reading and then writing a locked table combines the locks.
+     */
+    @Test public void tableLockUpgrades() throws Exception {
+        TransactionId tid = new TransactionId();
+        locks.acquireTable(tid, pid.getTableId(), Permissions.READ_ONLY);
+        locks.acquire(tid, pid, Permissions.READ_WRITE);
+        assertEquals(LockMode.SHARED_INTENTION_EXCLUSIVE, locks.getTableLockMode(tid, pid.getTableId()));
+        assertTrue(locks.holdWriteLock(tid, pid));
+        assertFalse(locks.holdWriteLock(tid, new HeapPageId(1, 1)));
+    }
+
+    /**
+     * Crossing the escalation threshold replaces page locks by a table lock.
+     */
+    @Test public void pageLocksEscalate() throws Exception {
+        locks.setEscalationThreshold(5);
+        TransactionId reader = new TransactionId();
+        TransactionId writer = new TransactionId();
+        for (int i = 0; i < 6; i++) {
+            locks.acquire(reader, new HeapPageId(1, i), Permissions.READ_ONLY);
+            locks.acquire(writer, new HeapPageId(2, i), Permissions.READ_WRITE);
+        }
+        assertEquals(LockMode.SHARED, locks.getTableLockMode(reader, 1));
+        assertEquals(LockMode.EXCLUSIVE, locks.getTableLockMode(writer, 2));
+        assertEquals(0, locks.getLockedPageCount());
+        assertTrue(locks.holdReadLock(reader, new HeapPageId(1, 100)));
+        assertTrue(locks.holdWriteLock(writer, new HeapPageId(2, 100)));
+    }
+
+    /**
+     * Escalation does not wait for other transactions' locks.
+     */
+    @Test public void escalationDoesNotWait() throws Exception {
+        locks.setEscalationThreshold(5);
+        TransactionId reader = new TransactionId();
+        locks.acquire(reader, new HeapPageId(1, 100), Permissions.READ_ONLY);
+        TransactionId writer = new TransactionId();
+        for (int i = 0; i < 10; i++) {
+            locks.acquire(writer, new HeapPageId(1, i), Permissions.READ_WRITE);
+        }
+        assertEquals(LockMode.INTENTION_EXCLUSIVE, locks.getTableLockMode(writer, 1));
+        assertEquals(11, locks.getLockedPageCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,100 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.storage.Page;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class LogDeltaTest extends SimpleDbTestBase {
+
+    /**
+     * Updating a single tuple logs the changed bytes, not the whole page.
+     */
+    @Test public void smallRecordForSingleTuple() throws Exception {
+        File file = File.createTempFile("log", ".dat");
+        file.deleteOnExit();
+        File segment = new File(file.getPath() + ".0");
+        segment.deleteOnExit();
+        LogFile log = new LogFile(file);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        Page before = page.getBeforeImage();
+        page.insertTuple(Utility.getHeapTuple(5, 2));
+
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.force();
+        long length = segment.length();
+        log.logWrite(tid, before, page);
+        log.force();
+        assertTrue(segment.length() - length < 128);
+    }
+
+    /**
+     * Rolling back undoes the deltas of B+ tree pages written to disk.
+     */
+    @Test public void rollbackBTreePages() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 100, null, tuples, 0);
+
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), bf.getId(),
+                BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE + 1, 2));
+        Database.getBufferPool().flushAllPages();
+        t.abort();
+
+        SystemTestUtil.matchTuples(bf, tuples);
+    }
+
+    /**
+     * Recovery redoes the deltas of committed transactions whose pages did
+     * not make it to disk.
+     */
+    @Test public void redoCommittedPages() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+        Page original = hf.readPage(new HeapPageId(hf.getId(), 0));
+
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] {7, 7}));
+        t.commit();
+        tuples.add(Arrays.asList(7, 7));
+
+        // lose the write of the committed page
+        hf.writePage(original);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getLogFile().recover();
+
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogDeltaTest.class);
+    }
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.storage.Page;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class LogSegmentTest extends SimpleDbTestBase {
+
+    /** Small enough that a few records fill a segment */
+    private static final int SEGMENT_SIZE = 64;
+
+    private File file;
+
+    @Before public void setUp() throws Exception {
+        file = File.createTempFile("log", ".dat");
+        file.deleteOnExit();
+    }
+
+    @After public void tearDown() throws Exception {
+        File[] segments = file.getParentFile().listFiles((dir, name) -> name.startsWith(file.getName() + "."));
+        for (File segment : segments) {
+            segment.delete();
+        }
+        Database.reset();
+    }
+
+    private File segment(int n) {
+        return new File(file.getPath() + "." + n);
+    }
+
+    private static void commitMany(LogFile log, int transactions) throws Exception {
+        for (int i = 0; i < transactions; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+        }
+    }
+
+    /**
+     * A checkpoint deletes the segments no running transaction needs.
+     */
+    @Test public void checkpointDeletesOldSegments() throws Exception {
+        LogFile log = new LogFile(file, SEGMENT_SIZE);
+        commitMany(log, 20);
+        assertTrue(segment(0).exists());
+        assertTrue(segment(5).exists());
+
+        log.logCheckpoint();
+        assertFalse(segment(0).exists());
+        assertFalse(segment(5).exists());
+    }
+
+    /**
+     * The segments holding the first record of a running transaction are
+     * kept across a checkpoint.
+     */
+    @Test public void checkpointKeepsSegmentsOfRunningTransactions() throws Exception {
+        LogFile log = new LogFile(file, SEGMENT_SIZE);
+        commitMany(log, 5);
+        TransactionId running = new TransactionId();
+        log.logXactionBegin(running);
+        commitMany(log, 20);
+
+        log.logCheckpoint();
+        // 5 transactions of two 20 byte records end in the fourth segment
+        assertFalse(segment(2).exists());
+        assertTrue(segment(3).exists());
+
+        log.logCommit(running);
+    }
+
+    /**
+     * Recovery redoes committed changes whose records span segments.
+     */
+    @Test public void redoAcrossSegments() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+
+        LogFile log = new LogFile(file, SEGMENT_SIZE);
+        commitMany(log, 3);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        for (int i = 0; i < 10; i++) {
+            Page before = page.getBeforeImage();
+            page.insertTuple(Utility.getHeapTuple(new int[] {i, -i}));
+            tuples.add(Arrays.asList(i, -i));
+            log.logWrite(tid, before, page);
+            page.setBeforeImage();
+        }
+        log.logCommit(tid);
+        assertTrue(segment(5).exists());
+
+        // the committed page never reached the disk; reopen the log and recover
+        new LogFile(file).recover();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentTest.class);
+    }
+}
@@ -0,0 +1,109 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+
+public class MemoryMappedFileTest extends SimpleDbTestBase {
+
+    private static HeapFile mapped(HeapFile f) {
+        HeapFile m = new HeapFile(f.getFile(), f.getTupleDesc(), true);
+        Database.getCatalog().addTable(m, SystemTestUtil.getUUID());
+        return m;
+    }
+
+    /**
+     * A memory mapped heap file returns the same pages and tuples as a
+     * regular one.
+     */
+    @Test public void heapFileReads() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1200, null, tuples);
+        HeapFile m = mapped(f);
+        assertTrue(m.isMemoryMapped());
+        assertEquals(f.numPages(), m.numPages());
+        for (int i = 0; i < f.numPages(); i++) {
+            HeapPageId pid = new HeapPageId(f.getId(), i);
+            assertArrayEquals(f.readPage(pid).getPageData(),
+                    m.readPage(new HeapPageId(m.getId(), i)).getPageData());
+        }
+        SystemTestUtil.matchTuples(m, tuples);
+    }
+
+    /**
+     * Modifying a mapped page does not touch the file until the page is
+     * written back.
+     */
+    @Test public void copyOnWrite() throws Exception {
+        HeapFile m = mapped(SystemTestUtil.createRandomHeapFile(2, 10, null, null));
+        HeapPageId pid = new HeapPageId(m.getId(), 0);
+        HeapPage page = (HeapPage) m.readPage(pid);
+        byte[] before = page.getPageData();
+
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        assertArrayEquals(before, m.readPage(pid).getPageData());
+        assertArrayEquals(before, page.getBeforeImage().getPageData());
+
+        m.writePage(page);
+        assertArrayEquals(page.getPageData(), m.readPage(pid).getPageData());
+    }
+
+    /**
+     * Pages appended after the file was mapped are mapped as well.
+     */
+    @Test public void remapsWhenFileGrows() throws Exception {
+        HeapFile m = mapped(SystemTestUtil.createRandomHeapFile(2, 10, null, null));
+        m.readPage(new HeapPageId(m.getId(), 0));
+
+        HeapPageId pid = new HeapPageId(m.getId(), m.numPages());
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        m.writePage(page);
+        assertEquals(2, m.numPages());
+        assertArrayEquals(page.getPageData(), m.readPage(pid).getPageData());
+    }
+
+    /**
+     * A memory mapped B+ tree file returns the same pages as a regular one.
+     */
+    @Test public void bTreeFileReads() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 5000, null, tuples, 0);
+        BTreeFile m = new BTreeFile(f.getFile(), 0, f.getTupleDesc(), true);
+        Database.getCatalog().addTable(m, SystemTestUtil.getUUID());
+        assertTrue(m.isMemoryMapped());
+
+        assertArrayEquals(f.readPage(BTreeRootPtrPage.getId(f.getId())).getPageData(),
+                m.readPage(BTreeRootPtrPage.getId(m.getId())).getPageData());
+        BTreeRootPtrPage root = (BTreeRootPtrPage) m.readPage(BTreeRootPtrPage.getId(m.getId()));
+        BTreePageId rootId = root.getRootId();
+        assertArrayEquals(
+                f.readPage(new BTreePageId(f.getId(), rootId.getPageNumber(), rootId.pgcateg())).getPageData(),
+                m.readPage(rootId).getPageData());
+        SystemTestUtil.matchTuples(m, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MemoryMappedFileTest.class);
+    }
+}
@@ -0,0 +1,159 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageArena;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class PageArenaTest extends SimpleDbTestBase {
+
+    /**
+     * Frames are handed out until the arena is exhausted and can be reused
+     * once they are given back.
+     */
+    @Test public void allocateAndRelease() {
+        PageArena arena = new PageArena(4);
+        assertEquals(BufferPool.getPageSize(), arena.frame(0).capacity());
+        int[] frames = new int[4];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = arena.allocate();
+            assertTrue(frames[i] >= 0);
+        }
+        assertEquals(-1, arena.allocate());
+        assertEquals(0, arena.getNumFreeFrames());
+        arena.release(frames[2]);
+        assertEquals(frames[2], arena.allocate());
+    }
+
+    /**
+     * A page read into a frame behaves exactly like one parsed on the heap,
+     * before and after modifications and after giving the frame back.
+     */
+    @Test public void framePageMatchesHeapPage() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 300, null, null);
+        HeapPageId pid = new HeapPageId(f.getId(), 0);
+        PageArena arena = new PageArena(2);
+        HeapPage heap = (HeapPage) f.readPage(pid);
+        HeapPage framed = (HeapPage) f.readPage(pid, arena);
+        byte[] original = heap.getPageData();
+
+        assertEquals(1, arena.getNumFreeFrames());
+        assertArrayEquals(original, framed.getPageData());
+        assertSameTuples(heap, framed);
+
+        Tuple added = Utility.getHeapTuple(7, 2);
+        heap.insertTuple(Utility.getHeapTuple(7, 2));
+        framed.insertTuple(added);
+        assertEquals(heap.getNumEmptySlots(), framed.getNumEmptySlots());
+        assertEquals(pid, added.getRecordId().getPageId());
+        Tuple deleted = framed.iterator().next();
+        heap.deleteTuple(heap.iterator().next());
+        framed.deleteTuple(deleted);
+        assertArrayEquals(heap.getPageData(), framed.getPageData());
+        assertArrayEquals(original, framed.getBeforeImage().getPageData());
+
+        arena.release(framed);
+        assertEquals(2, arena.getNumFreeFrames());
+        // the page keeps its contents once the frame is gone
+        int frame = arena.allocate();
+        arena.frame(frame).duplicate().put(new byte[BufferPool.getPageSize()]);
+        assertArrayEquals(heap.getPageData(), framed.getPageData());
+        assertSameTuples(heap, framed);
+    }
+
+    /**
+     * A reader of a page never sees the bytes of another page, even while
+     * the frame the page lives in is given back and reused under it.
+     */
+    @Test public void frameReusedUnderReader() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 300, null, null);
+        HeapPageId pid = new HeapPageId(f.getId(), 0);
+        PageArena arena = new PageArena(1);
+        List<List<Integer>> expected = new ArrayList<>();
+        ((HeapPage) f.readPage(pid)).iterator().forEachRemaining(t -> expected.add(SystemTestUtil.tupleToList(t)));
+        byte[] garbage = new byte[BufferPool.getPageSize()];
+        Arrays.fill(garbage, (byte) 0x55);
+
+        for (int i = 0; i < 200; i++) {
+            HeapPage page = (HeapPage) f.readPage(pid, arena);
+            List<List<Integer>> read = new ArrayList<>();
+            Thread reader = new Thread(() -> page.iterator().forEachRemaining(
+                    t -> read.add(SystemTestUtil.tupleToList(t))));
+            reader.start();
+            arena.release(page);
+            int frame = arena.allocate();
+            arena.frame(frame).duplicate().put(garbage);
+            reader.join();
+            arena.release(frame);
+            assertEquals(expected, read);
+        }
+    }
+
+    /**
+     * An off-heap pool serves scans and updates of a table larger than itself.
+     */
+    @Test public void offHeapBufferPool() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20 * 504, null, tuples);
+        BufferPool pool = Database.resetBufferPool(
+                new BufferPool(8, 1, BufferPool.DEFAULT_EVICTION_POLICY, true));
+        assertEquals(8, pool.getArena().getNumFrames());
+
+        SystemTestUtil.matchTuples(f, tuples);
+        SystemTestUtil.matchTuples(f, tuples);
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        Tuple first = it.next();
+        it.close();
+        pool.deleteTuple(tid, first);
+        pool.insertTuple(tid, f.getId(), Utility.getHeapTuple(new int[] {-1, -2}));
+        pool.transactionComplete(tid);
+        tuples.remove(SystemTestUtil.tupleToList(first));
+        tuples.add(Arrays.asList(-1, -2));
+
+        // the changes made it to disk
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    private static void assertSameTuples(HeapPage expected, HeapPage actual) {
+        Iterator<Tuple> e = expected.iterator();
+        Iterator<Tuple> a = actual.iterator();
+        while (e.hasNext()) {
+            assertTrue(a.hasNext());
+            Tuple et = e.next();
+            Tuple at = a.next();
+            assertTrue(TestUtil.compareTuples(et, at));
+            assertEquals(et.getRecordId(), at.getRecordId());
+        }
+        assertFalse(a.hasNext());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageArenaTest.class);
+    }
+}
@@ -0,0 +1,137 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.Page;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+
+import static org.junit.Assert.*;
+
+public class RecoveryTest extends SimpleDbTestBase {
+
+    /** Tuples of two int fields per page. */
+    private static final int PER_PAGE = (BufferPool.getPageSize() * 8) / (8 * 8 + 1);
+
+    private static final int PAGES = 12;
+
+    /**
+     * Delete the first tuple of every page of hf in transaction t, and
+     * remove it from tuples.
+     */
+    private static void deleteFirstOfEachPage(HeapFile hf, Transaction t, List<List<Integer>> tuples)
+            throws Exception {
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(t.getId(),
+                    new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            Tuple victim = page.iterator().next();
+            Database.getBufferPool().deleteTuple(t.getId(), victim);
+            List<Integer> values = new ArrayList<>();
+            values.add(((IntField) victim.getField(0)).getValue());
+            values.add(((IntField) victim.getField(1)).getValue());
+            tuples.remove(values);
+        }
+    }
+
+    private static List<Page> readPages(HeapFile hf) {
+        List<Page> pages = new ArrayList<>();
+        for (int i = 0; i < hf.numPages(); i++) {
+            pages.add(hf.readPage(new HeapPageId(hf.getId(), i)));
+        }
+        return pages;
+    }
+
+    /**
+     * Committed changes to many pages are redone when their writes were lost.
+     */
+    @Test public void redoAcrossThreads() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, PER_PAGE * PAGES, null, tuples);
+        List<Page> original = readPages(hf);
+
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstOfEachPage(hf, t, tuples);
+        t.commit();
+
+        for (Page page : original) {
+            hf.writePage(page);
+        }
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getLogFile().recover();
+
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Pages that were written before a checkpoint are not redone, even if
+     * their log records are still in the log.
+     */
+    @Test public void checkpointSkipsWrittenPages() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, PER_PAGE * 2, null, tuples);
+        List<List<Integer>> before = new ArrayList<>(tuples);
+        List<Page> original = readPages(hf);
+
+        // keeps the records of the committed transaction in the log
+        Transaction open = new Transaction();
+        open.start();
+
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstOfEachPage(hf, t, tuples);
+        t.commit();
+        Database.getLogFile().logCheckpoint();
+
+        // had the records been redone, the deletes would reappear
+        for (Page page : original) {
+            hf.writePage(page);
+        }
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getLogFile().recover();
+
+        SystemTestUtil.matchTuples(hf, before);
+    }
+
+    /**
+     * Changes of a transaction that never ended are undone, also when they
+     * were written before the last checkpoint.
+     */
+    @Test public void undoAcrossCheckpoint() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, PER_PAGE * 3, null, tuples);
+        List<List<Integer>> before = new ArrayList<>(tuples);
+
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstOfEachPage(hf, t, tuples);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getLogFile().recover();
+
+        SystemTestUtil.matchTuples(hf, before);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
@@ -0,0 +1,134 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+
+import static org.junit.Assert.*;
+
+public class SnapshotTest extends SimpleDbTestBase {
+
+    private BufferPool bp;
+    private HeapFile hf;
+    private List<List<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<>();
+        hf = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /** Insert a tuple, leaving the writer running. */
+    private Transaction insert(int value) throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        bp.insertTuple(writer.getId(), hf.getId(), Utility.getHeapTuple(new int[] {value, value}));
+        return writer;
+    }
+
+    /**
+     * A snapshot does not see commits after it began, and a later one does.
+     */
+    @Test public void snapshotIgnoresLaterCommits() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        insert(42).commit();
+
+        SystemTestUtil.matchTuples(hf, reader.getId(), tuples);
+        reader.commit();
+
+        Transaction later = new Transaction(true);
+        later.start();
+        List<List<Integer>> all = new ArrayList<>(tuples);
+        all.add(Arrays.asList(42, 42));
+        SystemTestUtil.matchTuples(hf, later.getId(), all);
+        later.commit();
+    }
+
+    /**
+     * A reader neither waits for the locks of a running writer nor sees its
+     * changes.
+     */
+    @Test public void readerDoesNotWaitForWriters() throws Exception {
+        Transaction writer = insert(42);
+        assertTrue(bp.holdsLock(writer.getId(), new HeapPageId(hf.getId(), 0)));
+
+        Transaction reader = new Transaction(true);
+        reader.start();
+        SystemTestUtil.matchTuples(hf, reader.getId(), tuples);
+        assertFalse(bp.holdsLock(reader.getId(), new HeapPageId(hf.getId(), 0)));
+        reader.commit();
+        writer.abort();
+    }
+
+    /**
+     * A snapshot sees a page appended after it began as empty, both while
+     * the insert that appended it runs and after it commits.
+     */
+    @Test public void snapshotIgnoresAppendedPages() throws Exception {
+        int perPage = (BufferPool.getPageSize() * 8) / (8 * 8 + 1);
+        tuples = new ArrayList<>();
+        hf = SystemTestUtil.createRandomHeapFile(2, perPage, null, tuples);
+
+        Transaction reader = new Transaction(true);
+        reader.start();
+        Transaction writer = insert(42);
+        assertEquals(2, hf.numPages());
+        assertTrue(bp.holdsLock(writer.getId(), new HeapPageId(hf.getId(), 1)));
+        SystemTestUtil.matchTuples(hf, reader.getId(), tuples);
+
+        writer.commit();
+        SystemTestUtil.matchTuples(hf, reader.getId(), tuples);
+        reader.commit();
+    }
+
+    /**
+     * Replaced versions are kept while a snapshot may read them only.
+     */
+    @Test public void versionsAreDroppedWithSnapshots() throws Exception {
+        insert(1).commit();
+        assertEquals(0, bp.getSnapshotVersionCount());
+
+        Transaction reader = new Transaction(true);
+        reader.start();
+        insert(2).commit();
+        insert(3).commit();
+        assertEquals(2, bp.getSnapshotVersionCount());
+
+        reader.commit();
+        assertEquals(0, bp.getSnapshotVersionCount());
+    }
+
+    /**
+     * Read-only transactions cannot get pages for writing.
+     */
+    @Test(expected = DbException.class)
+    public void readOnlyCannotWrite() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        bp.getPage(reader.getId(), new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotTest.class);
+    }
+}
@@ -0,0 +1,123 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.execution.SortMergeJoin;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleIterator;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+    private void checkJoin(OpIterator scan1, OpIterator scan2, List<List<Integer>> expected,
+            Predicate.Op op, int memoryPages) throws Exception {
+        SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, op, 0), scan1, scan2, memoryPages);
+        int granted = Database.getBufferPool().getGrantedPages();
+        join.open();
+        assertTrue(Database.getBufferPool().getGrantedPages() > granted);
+        assertEquals(expected, SystemTestUtil.drain(join));
+        join.rewind();
+        assertEquals(expected, SystemTestUtil.drain(join));
+        join.close();
+        assertEquals(granted, Database.getBufferPool().getGrantedPages());
+    }
+
+    private void checkJoin(List<Tuple> left, List<Tuple> right, Predicate.Op op, int memoryPages)
+            throws Exception {
+        checkJoin(new TupleIterator(Utility.getTupleDesc(2), left),
+                new TupleIterator(Utility.getTupleDesc(2), right),
+                SystemTestUtil.expectedJoin(left, right, op), op, memoryPages);
+    }
+
+    /**
+     * An equi-join of inputs sorted in memory.
+     */
+    @Test public void equiJoinInMemory() throws Exception {
+        Random r = new Random(1);
+        checkJoin(SystemTestUtil.randomTuples(r, 1000, 300), SystemTestUtil.randomTuples(r, 1500, 300),
+                Predicate.Op.EQUALS, SortMergeJoin.DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * An equi-join of inputs larger than the memory budget, which are sorted
+     * externally, with keys repeated on both sides.
+     */
+    @Test public void equiJoinExternalSort() throws Exception {
+        Random r = new Random(2);
+        checkJoin(SystemTestUtil.randomTuples(r, 6000, 500), SystemTestUtil.randomTuples(r, 5000, 500),
+                Predicate.Op.EQUALS, 3);
+    }
+
+    /**
+     * Every range predicate joins the same tuples as a nested-loop join,
+     * whether the inner input is in memory or spilled.
+     */
+    @Test public void rangeJoins() throws Exception {
+        Random r = new Random(3);
+        List<Tuple> left = SystemTestUtil.randomTuples(r, 150, 400);
+        List<Tuple> right = SystemTestUtil.randomTuples(r, 4000, 400);
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+                Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ }) {
+            checkJoin(left, right, op, SortMergeJoin.DEFAULT_MEMORY_PAGES);
+            checkJoin(left, right, op, 3);
+        }
+    }
+
+    /**
+     * Inputs scanned in order from a B+ tree on the join field are joined
+     * without sorting them, whether read by a BTreeScan or a SeqScan.
+     */
+    @Test public void orderedInputs() throws Exception {
+        List<List<Integer>> tuples1 = new ArrayList<>();
+        List<List<Integer>> tuples2 = new ArrayList<>();
+        BTreeFile f1 = BTreeUtility.createRandomBTreeFile(2, 300, 1000, null, tuples1, 0);
+        BTreeFile f2 = BTreeUtility.createRandomBTreeFile(2, 2000, 1000, null, tuples2, 0);
+        List<Tuple> left = SystemTestUtil.listsToTuples(tuples1);
+        List<Tuple> right = SystemTestUtil.listsToTuples(tuples2);
+
+        TransactionId tid = new TransactionId();
+        BTreeScan scan1 = new BTreeScan(tid, f1.getId(), "t1", null);
+        BTreeScan scan2 = new BTreeScan(tid, f2.getId(), "t2", null);
+        assertTrue(SortMergeJoin.isOrdered(scan1, 0));
+        assertFalse(SortMergeJoin.isOrdered(scan1, 1));
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS, Predicate.Op.GREATER_THAN }) {
+            checkJoin(scan1, scan2, SystemTestUtil.expectedJoin(left, right, op), op, 3);
+        }
+
+        // the optimizer plans sequential scans, which read a B+ tree in key order too
+        SeqScan seq1 = new SeqScan(tid, f1.getId(), "t1");
+        SeqScan seq2 = new SeqScan(tid, f2.getId(), "t2");
+        assertTrue(SortMergeJoin.isOrdered(seq1, 0));
+        assertFalse(SortMergeJoin.isOrdered(seq1, 1));
+        assertFalse(SortMergeJoin.isOrdered(new TupleIterator(Utility.getTupleDesc(2), left), 0));
+        checkJoin(seq1, seq2, SystemTestUtil.expectedJoin(left, right, Predicate.Op.EQUALS),
+                Predicate.Op.EQUALS, 3);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
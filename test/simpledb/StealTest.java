@@ -0,0 +1,180 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.LogFile;
+import simpledb.storage.Page;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class StealTest extends SimpleDbTestBase {
+
+    /** Tuples of two int fields per page. */
+    private static final int PER_PAGE = (BufferPool.getPageSize() * 8) / (8 * 8 + 1);
+
+    private static final int PAGES = 12;
+
+    /** Fewer frames than the pages a transaction dirties. */
+    private static final int POOL_PAGES = 4;
+
+    private static BufferPool stealingPool(int pages) {
+        BufferPool pool = Database.resetBufferPool(pages);
+        pool.setWritePolicy(BufferPool.WritePolicy.STEAL_NO_FORCE);
+        return pool;
+    }
+
+    /**
+     * Delete the first tuple of every page of hf in transaction t, and
+     * remove it from tuples.
+     */
+    private static void deleteFirstOfEachPage(HeapFile hf, Transaction t, List<List<Integer>> tuples)
+            throws Exception {
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(t.getId(),
+                    new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            Tuple victim = page.iterator().next();
+            Database.getBufferPool().deleteTuple(t.getId(), victim);
+            tuples.remove(Arrays.asList(((IntField) victim.getField(0)).getValue(),
+                    ((IntField) victim.getField(1)).getValue()));
+        }
+    }
+
+    /**
+     * A transaction may dirty more pages than the pool has frames.
+     */
+    @Test public void dirtyPagesAreStolen() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, PER_PAGE * PAGES, null, tuples);
+        stealingPool(POOL_PAGES);
+
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstOfEachPage(hf, t, tuples);
+        t.commit();
+
+        SystemTestUtil.matchTuples(hf, tuples);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getLogFile().recover();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Aborting undoes the changes of pages that were stolen.
+     */
+    @Test public void abortUndoesStolenPages() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, PER_PAGE * PAGES, null, tuples);
+        List<List<Integer>> before = new ArrayList<>(tuples);
+        stealingPool(POOL_PAGES);
+
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstOfEachPage(hf, t, tuples);
+        t.abort();
+
+        SystemTestUtil.matchTuples(hf, before);
+    }
+
+    /**
+     * Recovery undoes the stolen changes of a transaction that never ended.
+     */
+    @Test public void recoveryUndoesStolenPages() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, PER_PAGE * PAGES, null, tuples);
+        List<List<Integer>> before = new ArrayList<>(tuples);
+        stealingPool(POOL_PAGES);
+
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstOfEachPage(hf, t, tuples);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getLogFile().recover();
+        SystemTestUtil.matchTuples(hf, before);
+    }
+
+    /**
+     * The page writer writes committed pages, which a commit only logs.
+     */
+    @Test public void writerCleansCommittedPages() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, PER_PAGE * 2, null, tuples);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Page original = hf.readPage(pid);
+        BufferPool pool = stealingPool(BufferPool.DEFAULT_PAGES);
+
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstOfEachPage(hf, t, tuples);
+        t.commit();
+
+        pool.setCleanFraction(1.0);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (Arrays.equals(original.getPageData(), hf.readPage(pid).getPageData())) {
+            assertTrue("page was not written", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertTrue(pool.getBackgroundWriteCount() > 0);
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * A committing transaction keeps its locks until its COMMIT record is
+     * forced, so nobody reads a commit that a crash could still undo.
+     */
+    @Test public void locksHeldUntilCommitForced() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, PER_PAGE, null, tuples);
+        BufferPool pool = stealingPool(BufferPool.DEFAULT_PAGES);
+        LogFile log = Database.getLogFile();
+        log.setGroupCommitWindow(200, TimeUnit.MILLISECONDS);
+
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstOfEachPage(hf, t, tuples);
+        long forces = log.getForceCount();
+        AtomicLong forcesSeen = new AtomicLong(-1);
+        Thread reader = new Thread(() -> {
+            TransactionId tid = new TransactionId();
+            try {
+                pool.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+                forcesSeen.set(log.getForceCount());
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                pool.transactionComplete(tid);
+            }
+        });
+        reader.start();
+        t.commit();
+        reader.join();
+        assertTrue(forcesSeen.get() > forces);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(StealTest.class);
+    }
+}
@@ -212,6 +212,10 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public Page createPage(PageId id, byte[] data) {
+            throw new RuntimeException("not implemented");
+        }
+
         public void writePage(Page p) {
             throw new RuntimeException("not implemented");
         }
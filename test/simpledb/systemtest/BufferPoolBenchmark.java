@@ -0,0 +1,85 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.transaction.TransactionId;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures BufferPool.getPage throughput on a fully cached table for a
+ * growing number of threads, once with a single partition and once with the
+ * default partitioning, to show how getPage scales with thread count.
+ * <p>
+ * Run with <code>ant bench -Dbench=BufferPoolBenchmark</code>; optional
+ * arguments are the table size in pages and the getPage calls per thread.
+ */
+public class BufferPoolBenchmark {
+
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+
+    public static void main(String[] args) throws Exception {
+        int tablePages = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int opsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+
+        HeapFile table = SystemTestUtil.createRandomHeapFile(1, 992 * tablePages, null, null);
+        int poolPages = 2 * table.numPages();
+        int partitioned = new BufferPool(poolPages).getNumPartitions();
+
+        System.out.printf("table: %d pages, pool: %d pages, %d getPage calls per thread%n",
+                table.numPages(), poolPages, opsPerThread);
+        System.out.printf("%8s %18s %18s%n", "threads", "1 partition", partitioned + " partitions");
+        for (int threads : THREADS) {
+            double single = run(table, poolPages, 1, threads, opsPerThread);
+            double striped = run(table, poolPages, partitioned, threads, opsPerThread);
+            System.out.printf("%8d %14.0f/s %14.0f/s%n", threads, single, striped);
+        }
+        System.exit(0);
+    }
+
+    /** @return getPage calls per second over all threads */
+    private static double run(HeapFile table, int poolPages, int partitions, int threads, int opsPerThread)
+            throws Exception {
+        BufferPool pool = Database.resetBufferPool(
+                new BufferPool(poolPages, partitions, BufferPool.DEFAULT_EVICTION_POLICY));
+        int tableId = table.getId();
+        int numPages = table.numPages();
+
+        // warm up the pool and take the shared locks once, so that the timed
+        // loop measures the frame table and not the disk or the lock manager
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < numPages; i++) {
+            pool.getPage(tid, new HeapPageId(tableId, i), Permissions.READ_ONLY);
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                    for (int i = 0; i < opsPerThread; i++) {
+                        pool.getPage(tid, new HeapPageId(tableId, random.nextInt(numPages)), Permissions.READ_ONLY);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            });
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        pool.transactionComplete(tid);
+        return (double) threads * opsPerThread / (elapsed / 1e9);
+    }
+}
@@ -110,6 +110,89 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /** Verifies that scanning a table larger than the buffer pool does not
+     * evict the pages of a small table that was read before.
+     * @throws TransactionAbortedException
+     * @throws DbException */
+    @Test public void testScanRing() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> hotTuples = new ArrayList<>();
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(1, 992*4, null, hotTuples);
+        List<List<Integer>> bigTuples = new ArrayList<>();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(1, 992*100, null, bigTuples);
+        BufferPool pool = Database.resetBufferPool(40);
+
+        SystemTestUtil.matchTuples(hot, hotTuples);
+        assertEquals(4, pool.getMissCount());
+
+        // the big table does not fit, so it is read through a ring
+        SystemTestUtil.matchTuples(big, bigTuples);
+        long misses = pool.getMissCount();
+
+        SystemTestUtil.matchTuples(hot, hotTuples);
+        assertEquals(misses, pool.getMissCount());
+
+        // an explicit bulk read keeps cycling through its ring even though
+        // the table would fit in the pool
+        HeapFile mid = SystemTestUtil.createRandomHeapFile(1, 992*10, null, null);
+        pool = Database.resetBufferPool(40);
+        assertTrue(pool.newScanRing().size() < 10);
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, mid.getId(), "mid", true);
+        for (int pass = 0; pass < 2; pass++) {
+            scan.open();
+            while (scan.hasNext()) {
+                scan.next();
+            }
+            scan.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        // the first pass leaves only the last ring's worth of pages behind
+        assertEquals(10 + 10 - pool.newScanRing().size(), pool.getMissCount());
+    }
+
+    /** Verifies that memory granted to operators is taken from the pages the
+     * pool caches, and given back when it is released */
+    @Test public void testMemoryGrant() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(1, 992*30, null, tuples);
+        BufferPool pool = Database.resetBufferPool(40);
+        pool.setReadAhead(false);
+        SystemTestUtil.matchTuples(f, tuples);
+        SystemTestUtil.matchTuples(f, tuples);
+        assertEquals(30, pool.getMissCount());
+
+        // with half the pool granted away, the table no longer fits
+        int granted = pool.grantMemory(20);
+        assertEquals(20, granted);
+        SystemTestUtil.matchTuples(f, tuples);
+        long misses = pool.getMissCount();
+        SystemTestUtil.matchTuples(f, tuples);
+        assertTrue(pool.getMissCount() > misses);
+
+        pool.releaseMemory(granted);
+        SystemTestUtil.matchTuples(f, tuples);
+        misses = pool.getMissCount();
+        SystemTestUtil.matchTuples(f, tuples);
+        assertEquals(misses, pool.getMissCount());
+    }
+
+    /** Verifies that a sequential scan of a cold table is read ahead */
+    @Test public void testReadAhead() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(1, 992*60, null, tuples);
+        BufferPool pool = Database.resetBufferPool(200);
+        SystemTestUtil.matchTuples(f, tuples);
+        assertTrue(pool.getReadAheadCount() > 0);
+        // pages read ahead are not read a second time
+        assertEquals(60, pool.getMissCount());
+
+        pool = Database.resetBufferPool(200);
+        pool.setReadAhead(false);
+        SystemTestUtil.matchTuples(f, tuples);
+        assertEquals(0, pool.getReadAheadCount());
+        assertEquals(60, pool.getMissCount());
+    }
+
     /** Verifies SeqScan's getTupleDesc prefixes the table name + "." to the field names
      * @throws IOException
      */
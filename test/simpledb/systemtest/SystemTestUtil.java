@@ -11,7 +11,9 @@ import java.util.UUID;
 import org.junit.Assert;
 
 import simpledb.common.*;
+import simpledb.execution.JoinPredicate;
 import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionAbortedException;
@@ -151,6 +153,75 @@ public class SystemTestUtil {
         }
     }
 
+    /**
+     * @return rows tuples of two int fields: a random key below keys, and the
+     *         number of the row
+     */
+    public static List<Tuple> randomTuples(Random r, int rows, int keys) {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            Tuple t = new Tuple(Utility.getTupleDesc(2));
+            t.setField(0, new IntField(r.nextInt(keys)));
+            t.setField(1, new IntField(i));
+            tuples.add(t);
+        }
+        return tuples;
+    }
+
+    /** @return tuples of int fields with the values of lists */
+    public static List<Tuple> listsToTuples(List<List<Integer>> lists) {
+        List<Tuple> tuples = new ArrayList<>();
+        for (List<Integer> list : lists) {
+            tuples.add(Utility.getHeapTuple(list.stream().mapToInt(Integer::intValue).toArray()));
+        }
+        return tuples;
+    }
+
+    /**
+     * @return the rows a join of left and right on their first fields should
+     *         return, computed by a nested loop, in the order of compareRows
+     */
+    public static List<List<Integer>> expectedJoin(List<Tuple> left, List<Tuple> right, Predicate.Op op) {
+        JoinPredicate p = new JoinPredicate(0, op, 0);
+        List<List<Integer>> result = new ArrayList<>();
+        for (Tuple l : left) {
+            for (Tuple r : right) {
+                if (p.filter(l, r)) {
+                    List<Integer> row = tupleToList(l);
+                    row.addAll(tupleToList(r));
+                    result.add(row);
+                }
+            }
+        }
+        result.sort(SystemTestUtil::compareRows);
+        return result;
+    }
+
+    /** Orders rows of ints by their first field, then by the next, and so on. */
+    public static int compareRows(List<Integer> a, List<Integer> b) {
+        for (int i = 0; i < a.size(); i++) {
+            int c = a.get(i).compareTo(b.get(i));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the tuples left in an open iterator as lists of ints, in the
+     *         order of compareRows
+     */
+    public static List<List<Integer>> drain(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        List<List<Integer>> result = new ArrayList<>();
+        while (it.hasNext()) {
+            result.add(tupleToList(it.next()));
+        }
+        result.sort(SystemTestUtil::compareRows);
+        return result;
+    }
+
     /**
      * Returns number of bytes of RAM used by JVM after calling System.gc many times.
      * @return amount of RAM (in bytes) used by JVM